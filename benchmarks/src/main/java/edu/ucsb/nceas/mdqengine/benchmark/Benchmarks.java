@@ -0,0 +1,29 @@
+package edu.ucsb.nceas.mdqengine.benchmark;
+
+import org.openjdk.jmh.Main;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs the JMH benchmarks. Any JMH command line options can be given, e.g. a pattern to select
+ * benchmarks. Unless other result options are given, the results are written as JSON to
+ * 'jmh-result.json' so that they can be compared between runs.
+ */
+public class Benchmarks {
+
+	public static void main(String[] args) throws Exception {
+		List<String> options = new ArrayList<String>(Arrays.asList(args));
+		if (!options.contains("-rf")) {
+			options.add("-rf");
+			options.add("json");
+		}
+		if (!options.contains("-rff")) {
+			options.add("-rff");
+			options.add("jmh-result.json");
+		}
+		Main.main(options.toArray(new String[0]));
+	}
+
+}
@@ -0,0 +1,93 @@
+package edu.ucsb.nceas.mdqengine.benchmark;
+
+import edu.ucsb.nceas.mdqengine.model.Run;
+import edu.ucsb.nceas.mdqengine.model.Suite;
+import edu.ucsb.nceas.mdqengine.serialize.XmlMarshaller;
+import org.apache.commons.io.IOUtils;
+import org.xml.sax.SAXException;
+
+import javax.xml.bind.JAXBException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The sample documents, suites and run results that the benchmarks use
+ */
+public class Corpus {
+
+	/**
+	 * The metadata documents in the corpus
+	 */
+	public static final String EML = "eml.1.1.xml";
+	public static final String ISO = "iso19139.xml";
+
+	/**
+	 * Read a metadata document
+	 * @param name the name of the document, e.g. {@link #EML}
+	 * @return the document bytes
+	 * @throws IOException
+	 */
+	public static byte[] getDocument(String name) throws IOException {
+		return read("/corpus/" + name);
+	}
+
+	/**
+	 * Read the benchmark suite for an environment. The suites for each environment have the same
+	 * checks, for both EML and ISO documents, implemented in that environment.
+	 * @param environment 'java', 'javascript' or 'python'
+	 * @return the suite
+	 * @throws IOException
+	 * @throws JAXBException
+	 * @throws SAXException
+	 */
+	public static Suite getSuite(String environment) throws IOException, JAXBException, SAXException {
+		String xml = new String(read("/corpus/suites/benchmark-" + environment + ".xml"), "UTF-8");
+		return (Suite) XmlMarshaller.fromXml(xml, Suite.class);
+	}
+
+	/**
+	 * Read a sample run with results for a number of checks
+	 * @return the run
+	 * @throws IOException
+	 * @throws JAXBException
+	 * @throws SAXException
+	 */
+	public static Run getRun() throws IOException, JAXBException, SAXException {
+		String xml = new String(read("/corpus/run.xml"), "UTF-8");
+		return (Run) XmlMarshaller.fromXml(xml, Run.class);
+	}
+
+	/**
+	 * Write the MetaDIG configuration that the benchmarks run the engine with to a file, as the
+	 * engine only reads its configuration from a file
+	 * @return the configuration file, which is deleted when the JVM exits
+	 * @throws IOException
+	 */
+	public static File getConfiguration() throws IOException {
+		File file = File.createTempFile("metadig-benchmark", ".properties");
+		file.deleteOnExit();
+		OutputStream output = new FileOutputStream(file);
+		try {
+			output.write(read("/benchmark.properties"));
+		} finally {
+			output.close();
+		}
+		return file;
+	}
+
+	private static byte[] read(String resource) throws IOException {
+		InputStream input = Corpus.class.getResourceAsStream(resource);
+		if (input == null) {
+			throw new IOException("Missing corpus resource: " + resource);
+		}
+		try {
+			return IOUtils.toByteArray(input);
+		} finally {
+			input.close();
+		}
+	}
+
+}
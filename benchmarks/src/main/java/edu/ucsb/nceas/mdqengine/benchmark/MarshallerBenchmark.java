@@ -0,0 +1,32 @@
+package edu.ucsb.nceas.mdqengine.benchmark;
+
+import edu.ucsb.nceas.mdqengine.model.Run;
+import edu.ucsb.nceas.mdqengine.serialize.XmlMarshaller;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of serializing a run report, as is done for every assessment before it is stored
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MarshallerBenchmark {
+
+	private Run run;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		run = Corpus.getRun();
+	}
+
+	@Benchmark
+	public String toXml() throws Exception {
+		return XmlMarshaller.toXml(run, true);
+	}
+
+}
@@ -0,0 +1,54 @@
+package edu.ucsb.nceas.mdqengine.benchmark;
+
+import edu.ucsb.nceas.mdqengine.MDQEngine;
+import edu.ucsb.nceas.mdqengine.MDQconfig;
+import edu.ucsb.nceas.mdqengine.model.Run;
+import edu.ucsb.nceas.mdqengine.model.Suite;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of a complete assessment of a document: the same suite of checks, implemented in
+ * each of the script environments that run in the JVM. The engine is configured from
+ * 'benchmark.properties' unless another configuration file is given with the
+ * {@link MDQconfig#CONFIG_PROPERTY} system property.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class RunSuiteBenchmark {
+
+	@Param({"java", "javascript", "python"})
+	public String environment;
+
+	@Param({Corpus.EML, Corpus.ISO})
+	public String document;
+
+	private MDQEngine engine;
+
+	private Suite suite;
+
+	private byte[] bytes;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		if (System.getProperty(MDQconfig.CONFIG_PROPERTY) == null) {
+			System.setProperty(MDQconfig.CONFIG_PROPERTY, Corpus.getConfiguration().getPath());
+		}
+		engine = new MDQEngine();
+		suite = Corpus.getSuite(environment);
+		bytes = Corpus.getDocument(document);
+	}
+
+	@Benchmark
+	public Run runSuite() throws Exception {
+		return engine.runSuite(suite, new ByteArrayInputStream(bytes), new HashMap<String, Object>(), null);
+	}
+
+}
@@ -0,0 +1,115 @@
+package edu.ucsb.nceas.mdqengine.benchmark;
+
+import edu.ucsb.nceas.mdqengine.model.Check;
+import edu.ucsb.nceas.mdqengine.model.Dialect;
+import edu.ucsb.nceas.mdqengine.processor.XMLDialect;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.w3c.dom.Document;
+
+import javax.xml.namespace.QName;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+import java.io.ByteArrayInputStream;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the per-document work of the XML dialect: parsing a document, selecting values
+ * and deciding whether a check applies to the document. Selection is measured as the evaluation
+ * of a compiled expression against the parsed document, which is what a selector costs when its
+ * value is not cached yet.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class XMLDialectBenchmark {
+
+	@State(Scope.Thread)
+	public static class DocumentState {
+
+		@Param({Corpus.EML, Corpus.ISO})
+		public String document;
+
+		public byte[] bytes;
+
+		public XMLDialect xml;
+
+		public Document dom;
+
+		@Setup(Level.Trial)
+		public void setup() throws Exception {
+			bytes = Corpus.getDocument(document);
+			xml = new XMLDialect(new ByteArrayInputStream(bytes));
+			dom = xml.getDocumentModel().getDocument();
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class SelectorState {
+
+		@Param({"//dataset/title", "//attribute/attributeName", "count(//dataset/dataTable | //dataset/otherEntity)",
+				"//CI_Citation/title/CharacterString"})
+		public String xpath;
+
+		public XPathExpression expression;
+
+		// NODESET for paths, STRING for expressions such as count() that do not select nodes
+		public QName type;
+
+		@Setup(Level.Trial)
+		public void setup(DocumentState state) throws XPathExpressionException {
+			expression = state.xml.getXPathCache().getExpression(xpath);
+			try {
+				expression.evaluate(state.dom, XPathConstants.NODESET);
+				type = XPathConstants.NODESET;
+			} catch (XPathExpressionException e) {
+				type = XPathConstants.STRING;
+			}
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class CheckState {
+
+		public Check check;
+
+		@Setup(Level.Trial)
+		public void setup() {
+			Dialect dialect = new Dialect();
+			dialect.setName("EML");
+			dialect.setXpath("boolean(/*[local-name() = 'eml'])");
+			check = new Check();
+			check.setId("benchmark.dialect");
+			check.setDialect(Collections.singletonList(dialect));
+		}
+	}
+
+	private static final String[] VALUES = {"42", "3.14", "true", "no", "A title for the data package"};
+
+	@Benchmark
+	public XMLDialect construction(DocumentState state) throws Exception {
+		return new XMLDialect(new ByteArrayInputStream(state.bytes));
+	}
+
+	@Benchmark
+	public Object select(DocumentState state, SelectorState selector) throws Exception {
+		return selector.expression.evaluate(state.dom, selector.type);
+	}
+
+	@Benchmark
+	public boolean isCheckValid(DocumentState state, CheckState check) throws Exception {
+		return state.xml.isCheckValid(check.check);
+	}
+
+	@Benchmark
+	public void retypeObject(Blackhole blackhole) {
+		for (String value: VALUES) {
+			blackhole.consume(XMLDialect.retypeObject(value));
+		}
+	}
+
+}
@@ -4,6 +4,9 @@ import com.rabbitmq.client.*;
 import edu.ucsb.nceas.mdqengine.authorization.BookkeeperClient;
 import edu.ucsb.nceas.mdqengine.scorer.ScorerQueueEntry;
 import edu.ucsb.nceas.mdqengine.exception.MetadigException;
+import edu.ucsb.nceas.mdqengine.exception.MetadigFilestoreException;
+import edu.ucsb.nceas.mdqengine.filestore.ClaimCheckStore;
+import edu.ucsb.nceas.mdqengine.serialize.QueueEntryMarshaller;
 import org.apache.commons.configuration2.ex.ConfigurationException;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -61,6 +64,8 @@ public class Controller {
     private static int RabbitMQport = 0;
     private static String RabbitMQpassword = null;
     private static String RabbitMQusername = null;
+    // Metadata documents of at least this many bytes are put in the claim check store instead of the message, 0 never does
+    private static int claimThreshold = 0;
     private static Controller instance;
     private boolean isStarted = false;
     private int testCount = 0;
@@ -250,6 +255,8 @@ public class Controller {
         RabbitMQhost = cfg.getString("RabbitMQ.host");
         RabbitMQport = cfg.getInt("RabbitMQ.port");
         bookkeeperEnabled = new Boolean(cfg.getString("bookkeeper.enabled"));
+        QueueEntryMarshaller.setLegacyFormat(Boolean.parseBoolean(cfg.getString("queue.legacy.format")));
+        claimThreshold = cfg.getInt("claim.check.threshold", 0);
     }
 
 
@@ -356,8 +363,19 @@ public class Controller {
             buf.write((byte) result);
             result = bis.read();
         }
-        // StandardCharsets.UTF_8.name() > JDK 7
-        String metadataDoc = buf.toString("UTF-8");
+        // A large document is left in the claim check store, and the worker reads it from there
+        String metadataDoc = null;
+        String metadataDocClaim = null;
+        if (claimThreshold > 0 && buf.size() >= claimThreshold) {
+            try {
+                metadataDocClaim = new ClaimCheckStore().put(buf.toByteArray());
+            } catch (MetadigFilestoreException e) {
+                throw new IOException("Unable to store metadata document for pid " + metadataPid + ": " + e.getMessage(), e);
+            }
+        } else {
+            // StandardCharsets.UTF_8.name() > JDK 7
+            metadataDoc = buf.toString("UTF-8");
+        }
 
         //try {
         //    sysmeta = TypeMarshaller.unmarshalTypeFromStream(SystemMetadata.class, systemMetadata);
@@ -395,13 +413,16 @@ public class Controller {
 
         qEntry = new QueueEntry(memberNode, metadataPid, metadataDoc, qualitySuiteId, localFilePath, requestDateTime, sysmeta,
                 runXML, null);
+        qEntry.setMetadataDocClaim(metadataDocClaim);
 
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        ObjectOutput out = new ObjectOutputStream(bos);
-        out.writeObject(qEntry);
-        message = bos.toByteArray();
-
-        this.writeInProcessChannel(message, QUALITY_ROUTING_KEY);
+        try {
+            message = QueueEntryMarshaller.toBytes(qEntry);
+            this.writeInProcessChannel(message, QUALITY_ROUTING_KEY);
+        } catch (IOException e) {
+            // No worker will release the claim of a request that wasn't queued
+            releaseClaim(metadataDocClaim);
+            throw e;
+        }
         log.info(" [x] Queued report request for pid: '" + qEntry.getMetadataPid() + "'" + " quality suite " + qualitySuiteId);
     }
 
@@ -461,10 +482,7 @@ public class Controller {
 
         qEntry = new ScorerQueueEntry(collectionId, qualitySuiteId, nodeId, formatFamily, requestDateTime);
 
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        ObjectOutput out = new ObjectOutputStream(bos);
-        out.writeObject(qEntry);
-        message = bos.toByteArray();
+        message = QueueEntryMarshaller.toBytes(qEntry);
 
         this.writeInProcessChannel(message, SCORER_ROUTING_KEY);
         log.info(" [x] Queued Scorer request for id: '" + qEntry.getCollectionId() + "'" + ", quality suite " + qualitySuiteId + ", nodeId: " + nodeId + ", formatFamily: " + formatFamily);
@@ -529,15 +547,14 @@ public class Controller {
             @Override
             public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) throws IOException {
 
-                ByteArrayInputStream bis = new ByteArrayInputStream(body);
-                ObjectInput in = new ObjectInputStream(bis);
                 if(properties.getType().equalsIgnoreCase(MESSAGE_TYPE_QUALITY)) {
 
                     QueueEntry qEntry = null;
                     try {
-                        qEntry = (QueueEntry) in.readObject();
-                    } catch (java.lang.ClassNotFoundException e) {
-                        log.info("Class 'QueueEntry' not found");
+                        qEntry = QueueEntryMarshaller.queueEntryFromBytes(body);
+                    } catch (IOException e) {
+                        log.error("Unable to read completed report: " + e.getMessage());
+                        return;
                     } finally {
                         completedChannel.basicAck(envelope.getDeliveryTag(), false);
                     }
@@ -548,6 +565,18 @@ public class Controller {
                     log.info("Total indexing time for worker " + qEntry.getHostname() + " for PID " + qEntry.getMetadataPid() + ": " + qEntry.getIndexingElapsedTimeSeconds());
                     log.info("Total elapsed time for worker " + qEntry.getHostname() + " for PID " + qEntry.getMetadataPid() + ": " + qEntry.getTotalElapsedTimeSeconds());
 
+                    // A large report is returned through the claim check store, read it back and release the claim,
+                    // now that the message has been acknowledged
+                    if (qEntry.getRunXMLClaim() != null) {
+                        try {
+                            qEntry.setRunXML(qEntry.getRunXML(new ClaimCheckStore()));
+                        } catch (MetadigFilestoreException | IOException e) {
+                            log.error("Unable to read completed report for pid " + qEntry.getMetadataPid() + ": " + e.getMessage());
+                        }
+                        releaseClaim(qEntry.getRunXMLClaim());
+                        qEntry.setRunXMLClaim(null);
+                    }
+
                     /* An exception caught by the worker will be passed back to the controller via the queue entry
                      * 'exception' field. Check this now and take the appropriate action.
                      */
@@ -578,9 +607,10 @@ public class Controller {
                 } else if(properties.getType().equalsIgnoreCase(MESSAGE_TYPE_SCORER)) {
                     ScorerQueueEntry qEntry = null;
                     try {
-                        qEntry = (ScorerQueueEntry) in.readObject();
-                    } catch (java.lang.ClassNotFoundException e) {
-                        log.info("Class 'ScorerQueueEntry' not found");
+                        qEntry = QueueEntryMarshaller.scorerQueueEntryFromBytes(body);
+                    } catch (IOException e) {
+                        log.error("Unable to read completed score: " + e.getMessage());
+                        return;
                     } finally {
                         completedChannel.basicAck(envelope.getDeliveryTag(), false);
                     }
@@ -611,6 +641,22 @@ public class Controller {
         completedChannel.basicConsume(COMPLETED_QUEUE_NAME, false, consumer);
     }
 
+    /**
+     * Release a claim on the claim check store, so that the payload is deleted when no other message refers to it.
+     *
+     * @param claim the claim, or null if there is none
+     */
+    private static void releaseClaim(String claim) {
+        if (claim == null) {
+            return;
+        }
+        try {
+            new ClaimCheckStore().release(claim);
+        } catch (MetadigFilestoreException | IOException e) {
+            log.warn("Unable to release claim " + claim + ": " + e.getMessage());
+        }
+    }
+
     /**
      * Write an entry to the "InProcess" queue.
      *
@@ -1,10 +1,14 @@
 package edu.ucsb.nceas.mdqengine;
 
+import edu.ucsb.nceas.mdqengine.dispatch.Dispatcher;
+import edu.ucsb.nceas.mdqengine.dispatch.DispatcherPool;
 import edu.ucsb.nceas.mdqengine.dispatch.MDQCache;
+import edu.ucsb.nceas.mdqengine.dispatch.RDispatcher;
 import edu.ucsb.nceas.mdqengine.exception.MetadigException;
 import edu.ucsb.nceas.mdqengine.model.*;
 import edu.ucsb.nceas.mdqengine.processor.GroupLookupCheck;
 import edu.ucsb.nceas.mdqengine.processor.XMLDialect;
+import edu.ucsb.nceas.mdqengine.processor.XPathCache;
 import edu.ucsb.nceas.mdqengine.serialize.JsonMarshaller;
 import edu.ucsb.nceas.mdqengine.serialize.XmlMarshaller;
 import edu.ucsb.nceas.mdqengine.store.InMemoryStore;
@@ -29,28 +33,88 @@ import java.net.MalformedURLException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class MDQEngine {
 	
 	//private static final String RESOLVE_PREFIX = getConfiguration().getString("D1Client.CN_URL") + "/v2/resolve/";
 	
 	/**
-	 * Default store uses the in-memory implementation
+	 * Default store uses the in-memory implementation, with the suites and checks of the
+	 * process' registry
 	 */
 
 	private MDQStore store = null;
 
 	protected Log log = LogFactory.getLog(this.getClass());
 	private static String metadigDataDir = null;
+
+	/**
+	 * Compiled XPath expressions, kept for as long as the check they were compiled for is in use
+	 */
+	private static Map<Object, XPathCache> xPathCaches = Collections.synchronizedMap(new WeakHashMap<Object, XPathCache>());
+
+	/**
+	 * The number of checks of a suite that can run at the same time. Checks that inherit state
+	 * always run in order, after the check they inherit from.
+	 */
+	private int checkThreads = 1;
+
+	private ExecutorService checkExecutor = null;
+
+	/**
+	 * Documents of at least this many bytes have their selectors evaluated in a streaming pass
+	 * instead of with a DOM. Zero (the default) always uses the DOM.
+	 */
+	private int streamingThreshold = 0;
+
+	/**
+	 * Run the standalone R checks of a suite with one R invocation per document
+	 */
+	private boolean batchR = false;
+
+	/**
+	 * How long a check, and all the checks of a suite, can run in milliseconds. Zero (the default) is no limit.
+	 */
+	private long checkTimeout = 0;
+
+	private long suiteTimeout = 0;
+
+	/**
+	 * Suites that have been prepared by this engine, kept for as long as the suite instance is in use
+	 */
+	private Map<Suite, PreparedSuite> preparedSuites = new WeakHashMap<Suite, PreparedSuite>();
+
+	// set once the R worker options of the process have been configured
+	private static final AtomicBoolean rWorkerConfigured = new AtomicBoolean(false);
 	
 	public MDQEngine() throws MetadigException, IOException, ConfigurationException {
 		store = new InMemoryStore();
 		//store = new MNStore();
 		MDQconfig cfg = new MDQconfig ();
 		metadigDataDir = cfg.getString("metadig.data.dir");
+		checkThreads = cfg.getInt("check.threads", 1);
+		streamingThreshold = cfg.getInt("selector.streaming.threshold", 0);
+		batchR = Boolean.parseBoolean(cfg.getString("r.batch.enabled"));
+		checkTimeout = TimeUnit.SECONDS.toMillis(cfg.getInt("check.timeout", 0));
+		suiteTimeout = TimeUnit.SECONDS.toMillis(cfg.getInt("suite.timeout", 0));
+		// a check that ignores its timeout keeps a thread busy, so only so many of them are tolerated
+		int maxRunaways = cfg.getInt("check.timeout.max.running", 0);
+		if (maxRunaways > 0) {
+			Dispatcher.setMaxRunaways(maxRunaways);
+		}
+		// the pools are shared by all engines, so only change them if configured
+		int poolSize = cfg.getInt("dispatcher.pool.size", 0);
+		if (poolSize > 0) {
+			DispatcherPool.setMaxSize(poolSize);
+		}
+		// R checks only run in warm worker processes if r.worker.max.requests is set. The options are
+		// shared by all engines, so they are read by the first one
+		if (rWorkerConfigured.compareAndSet(false, true)) {
+			RDispatcher.setWorkerOptions(cfg.getInt("r.worker.max.requests", 0),
+					TimeUnit.SECONDS.toMillis(cfg.getInt("r.worker.timeout", 600)));
+		}
 		MDQCache.initialize(null);
 	}
 
@@ -71,70 +135,76 @@ public class MDQEngine {
 			throws MalformedURLException, IOException, SAXException, 
 			ParserConfigurationException, XPathExpressionException, ScriptException {
 
-	    // Make the location of the data directory available to checks that need to
-		// read data files located there.
-		if(metadigDataDir != null || ! params.containsKey("metadigDataDir")) {
-			log.debug("Setting metadigDataDir: " + metadigDataDir);
-			params.put("metadigDataDir", metadigDataDir);
-		}
-
-		log.debug("Running suite: " + suite.getId());
+		return prepare(suite).run(input, sysMeta, params);
+	}
 
-		String content = IOUtils.toString(input, "UTF-8");
-		String metadataContent = content;
-		
-		XMLDialect xml = new XMLDialect(IOUtils.toInputStream(metadataContent, "UTF-8"));
-		xml.setParams(params);
-		xml.setSystemMetadata(sysMeta);
-		Path tempDir = Files.createTempDirectory("mdq_run");
-		xml.setDirectory(tempDir.toFile().getAbsolutePath());
-		// include the default namespaces from the suite
-		xml.mergeNamespaces(suite.getNamespace());
-		
-		// make a run to capture results
-		Run run = new Run();
-		run.setSuiteId(suite.getId());
-		run.setId(UUID.randomUUID().toString());
-		run.setTimestamp(Calendar.getInstance().getTime());
-		List<Result> results = new ArrayList<Result>();
+	/**
+	 * Executes several suites for a given object in a single pass. The object is only parsed
+	 * once, and checks that the suites have in common are only run once.
+	 * @param suites the suites to run
+	 * @param input the InputStream for the object to QC
+	 * @param params optional additional parameters to make available for the suites
+	 * @param sysMeta the system metadata for the object, if available
+	 * @return the Run results for each suite, in the same order as the suites
+	 * @throws IOException
+	 * @throws SAXException
+	 * @throws ParserConfigurationException
+	 * @throws XPathExpressionException
+	 * @throws ScriptException
+	 */
+	public List<Run> runSuites(List<Suite> suites, InputStream input, Map<String, Object> params, SystemMetadata sysMeta)
+			throws IOException, SAXException, ParserConfigurationException, XPathExpressionException, ScriptException {
 
-		// run the checks in the suite to get results
-		for (Check check: suite.getCheck()) {
-			// is this a reference to existing check?
-			if (check.getCode() == null && check.getId() != null) {
-				// then load it
-				Check origCheck = check;
-				check = store.getCheck(origCheck.getId());
-
-				// handle missing references gracefully
-				if (check == null) {
-					String msg = "Could not locate referenced check in store: " + origCheck.getId();
-					log.warn(msg);
-					Result r = new Result();
-					r.setCheck(origCheck);
-					r.setStatus(Status.SKIP);
-					r.setOutput(new Output(msg));
-					results.add(r);
-					continue;
-				}
+		List<PreparedSuite> prepared = new ArrayList<PreparedSuite>();
+		for (Suite suite: suites) {
+			prepared.add(prepare(suite));
+		}
+		return PreparedSuite.run(prepared, input, sysMeta, params);
+	}
 
-				// The check type and level from the suite definition file takes precedence over the check type
-				// and level defined in the check definition file.
-				if(origCheck.getLevel() != null) check.setLevel(origCheck.getLevel());
-                if(origCheck.getType() != null) check.setType(origCheck.getType());
+	/**
+	 * Prepare a suite so that it can be run on many documents. Check references are resolved
+	 * and the expressions of the checks compiled once, and the prepared suite is kept for as
+	 * long as the suite instance is in use, so runSuite() can be called repeatedly with it.
+	 * @param suite the suite to prepare
+	 * @return the prepared suite, which runs its checks with this engine's settings
+	 */
+	public PreparedSuite prepare(Suite suite) {
+		ExecutorService executor = checkThreads > 1 ? getCheckExecutor() : null;
+		synchronized (preparedSuites) {
+			PreparedSuite prepared = preparedSuites.get(suite);
+			if (prepared == null) {
+				prepared = new PreparedSuite(suite, store);
+				prepared.setDataDirectory(metadigDataDir);
+				prepared.setExecutor(executor);
+				prepared.setStreamingThreshold(streamingThreshold);
+				prepared.setBatchR(batchR);
+				prepared.setCheckTimeout(checkTimeout);
+				prepared.setSuiteTimeout(suiteTimeout);
+				preparedSuites.put(suite, prepared);
 			}
-			Result result = xml.runCheck(check);
-			results.add(result);
+			return prepared;
 		}
-		run.setResult(results);
-
-		log.trace("Run results: " + JsonMarshaller.toJson(run));
-		
-		// clean up
-		tempDir.toFile().delete();
-		
-		return run;
-		
+	}
+	
+	/**
+	 * Executes the given suite for a batch of objects, dispatching each R check once for the
+	 * whole batch where possible. An object that cannot be read gets a run with the run status
+	 * {@link Run#FAILURE}, and does not stop the others.
+	 * @param suite the suite to run
+	 * @param inputs the InputStream for each object to QC
+	 * @param params optional additional parameters to make available for the suite
+	 * @param sysMetas the system metadata for each object, or null
+	 * @return the Run results for each object, in the same order as the inputs
+	 * @throws IOException
+	 * @throws SAXException
+	 * @throws ParserConfigurationException
+	 * @throws XPathExpressionException
+	 * @throws ScriptException
+	 */
+	public List<Run> runSuiteBatch(Suite suite, List<InputStream> inputs, Map<String, Object> params, List<SystemMetadata> sysMetas)
+			throws IOException, SAXException, ParserConfigurationException, XPathExpressionException, ScriptException {
+		return prepare(suite).runBatch(inputs, sysMetas, params);
 	}
 	
 	/**
@@ -161,8 +231,10 @@ public class MDQEngine {
 		XMLDialect xml = new XMLDialect(IOUtils.toInputStream(metadataContent, "UTF-8"));
 		xml.setParams(params);
 		xml.setSystemMetadata(sysMeta);
+		xml.setXPathCache(getXPathCache(check));
 		Path tempDir = Files.createTempDirectory("mdq_run");
 		xml.setDirectory(tempDir.toFile().getAbsolutePath());
+		xml.setTimeouts(checkTimeout, null);
 		
 		// make a run to capture results
 		Run run = new Run();
@@ -184,13 +256,79 @@ public class MDQEngine {
 		
 	}
 	
+	/*
+	 * The pool that checks are run on when running them concurrently. Idle threads are released
+	 * so an engine that is no longer used does not hold on to them.
+	 */
+	private synchronized ExecutorService getCheckExecutor() {
+		if (checkExecutor == null) {
+			final ThreadFactory defaultFactory = Executors.defaultThreadFactory();
+			ThreadPoolExecutor executor = new ThreadPoolExecutor(checkThreads, checkThreads, 60L, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(), runnable -> {
+						Thread thread = defaultFactory.newThread(runnable);
+						thread.setName("mdq-check-" + thread.getName());
+						thread.setDaemon(true);
+						return thread;
+					});
+			executor.allowCoreThreadTimeOut(true);
+			checkExecutor = executor;
+		}
+		return checkExecutor;
+	}
+
+	/**
+	 * Set the number of checks of a suite that can be run concurrently. When more than one, the
+	 * independent checks of a suite are run on a pool of this many threads. Checks that inherit
+	 * state are always run in order after the check they inherit from. The check code runs
+	 * concurrently, but selectors that are evaluated with the DOM of the document are evaluated
+	 * one at a time, as a DOM is not safe to read from several threads.
+	 * The default is read from the 'check.threads' configuration property, or one.
+	 * @param checkThreads the maximum number of checks to run at the same time
+	 */
+	public synchronized void setCheckThreads(int checkThreads) {
+		if (checkThreads != this.checkThreads && checkExecutor != null) {
+			checkExecutor.shutdown();
+			checkExecutor = null;
+		}
+		this.checkThreads = checkThreads;
+		clearPreparedSuites();
+	}
+
+	public int getCheckThreads() {
+		return checkThreads;
+	}
+
+	/**
+	 * Get the compiled XPath expressions for a check, so that they are shared by every
+	 * document that is run with it. The cache is released along with the check.
+	 * @param owner the check instance
+	 * @return the expression cache for the owner
+	 */
+	private static XPathCache getXPathCache(Object owner) {
+		return xPathCaches.computeIfAbsent(owner, k -> new XPathCache());
+	}
+
 	/** 
 	 * To enable checks-by-id-reference, set the store so that checks can be retrieved
 	 * if not specified inline
 	 * @param store The storage implementation to use for retrieving existing checks
 	 */
 	public void setStore(MDQStore store) {
-		this.store = store;
+		// suites that are being prepared see either the old store or the new one
+		synchronized (preparedSuites) {
+			this.store = store;
+			preparedSuites.clear();
+		}
+	}
+
+	public MDQStore getStore() {
+		return store;
+	}
+
+	private void clearPreparedSuites() {
+		synchronized (preparedSuites) {
+			preparedSuites.clear();
+		}
 	}
 	
 	/**
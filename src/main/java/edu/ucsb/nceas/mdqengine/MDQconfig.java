@@ -14,11 +14,20 @@ import java.io.InputStream;
 
 public class MDQconfig {
 
+    /**
+     * A system property with the path of the config file, to use instead of the default location
+     */
+    public static final String CONFIG_PROPERTY = "metadig.config";
+
     private static String configFilePath = "/opt/local/metadig/metadig.properties";
     private static Log log = LogFactory.getLog(MDQconfig.class);
 
     public static Configuration config;
 
+    // the config file that was read, and when it was last modified when it was read
+    private static String configRead = null;
+    private static long configModified = 0;
+
     public MDQconfig () throws ConfigurationException, IOException {
         boolean inServlet = false;
 
@@ -34,8 +43,17 @@ public class MDQconfig {
             IOUtils.copy(inputStream, out);
             config = configs.properties(tempFile);
         } else {
-            log.trace("Reading config properties from: " + configFilePath);
-            config = configs.properties(new File(configFilePath));
+            // The properties are only read again when the file has changed, as a config is created for most tasks
+            String path = System.getProperty(CONFIG_PROPERTY, configFilePath);
+            File configFile = new File(path);
+            synchronized (MDQconfig.class) {
+                if (config == null || !path.equals(configRead) || configFile.lastModified() != configModified) {
+                    log.trace("Reading config properties from: " + path);
+                    config = configs.properties(configFile);
+                    configRead = path;
+                    configModified = configFile.lastModified();
+                }
+            }
         }
     }
 
@@ -53,6 +71,13 @@ public class MDQconfig {
         return(config.getInt(paramName));
     }
 
+    /**
+     * Read a configuration file for an optional int parameter value.
+     */
+    public int getInt(String paramName, int defaultValue) throws ConfigurationException {
+        return(config.getInt(paramName, defaultValue));
+    }
+
     public static String readConfigParam (String paramName) throws ConfigurationException, IOException {
         String paramValue = null;
         try {
@@ -0,0 +1,783 @@
+package edu.ucsb.nceas.mdqengine;
+
+import edu.ucsb.nceas.mdqengine.dispatch.DispatcherPool;
+import edu.ucsb.nceas.mdqengine.model.*;
+import edu.ucsb.nceas.mdqengine.processor.DialectIndex;
+import edu.ucsb.nceas.mdqengine.processor.DocumentModel;
+import edu.ucsb.nceas.mdqengine.processor.StreamingMatcher;
+import edu.ucsb.nceas.mdqengine.processor.XMLDialect;
+import edu.ucsb.nceas.mdqengine.processor.XPathCache;
+import edu.ucsb.nceas.mdqengine.serialize.JsonMarshaller;
+import edu.ucsb.nceas.mdqengine.store.MDQStore;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.dataone.service.types.v2.SystemMetadata;
+import org.xml.sax.SAXException;
+
+import javax.script.ScriptException;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.xpath.XPathExpressionException;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A suite that has been resolved and compiled once so that it can be run on many documents.
+ * <p>
+ * Preparing a suite resolves check references through the store and applies the suite's level
+ * and type overrides to private copies of the referenced checks, so the shared check definitions
+ * are never modified. The selector and dialect expressions are compiled up front, and the checks
+ * are grouped into the sequences that have to run in order (checks that inherit state) and by
+ * environment.
+ * </p>
+ * The resolved checks and compiled expressions do not change once the suite has been built. The
+ * run settings (executor, data directory, streaming threshold, R batching and timeouts) are set
+ * by the engine right after the suite is prepared, and must not be changed once it is being run.
+ * A suite that is not being changed can be run from several threads.
+ */
+public class PreparedSuite {
+
+	private String id;
+
+	private List<Namespace> namespaces;
+
+	// the resolved checks, in suite order. Missing references and rejected checks are null.
+	private List<Check> checks;
+
+	// the positions of the checks that were resolved from the store, which can be shared with other suites
+	private Set<Integer> referenced = new HashSet<Integer>();
+
+	// the original checks for references that could not be resolved
+	private Map<Integer, Check> missing = new HashMap<Integer, Check>();
+
+	// checks that cannot be run as they are defined, with the reason
+	private Map<Integer, Check> rejected = new HashMap<Integer, Check>();
+
+	// sequences of check positions, each of which must run in order
+	private List<List<Integer>> chains = new ArrayList<List<Integer>>();
+
+	private Map<String, List<Check>> environments = new HashMap<String, List<Check>>();
+
+	private XPathCache xPathCache = new XPathCache();
+
+	private DialectIndex dialectIndex = new DialectIndex();
+
+	private ExecutorService executor = null;
+
+	private String dataDirectory = null;
+
+	private int streamingThreshold = 0;
+
+	private boolean batchR = false;
+
+	// how long a check can run, and all the checks of a run, in milliseconds. 0 for no limit
+	private long checkTimeout = 0;
+
+	private long suiteTimeout = 0;
+
+	public static Log log = LogFactory.getLog(PreparedSuite.class);
+
+	/**
+	 * Prepare a suite to be run.
+	 * @param suite the suite definition
+	 * @param store the store used to resolve checks that the suite references by id
+	 */
+	public PreparedSuite(Suite suite, MDQStore store) {
+		this.id = suite.getId();
+		this.namespaces = suite.getNamespace() == null ?
+				Collections.<Namespace>emptyList() : new ArrayList<Namespace>(suite.getNamespace());
+
+		List<Check> resolved = new ArrayList<Check>();
+		for (Check check: suite.getCheck()) {
+			// is this a reference to existing check?
+			if (check.getCode() == null && check.getId() != null) {
+				Check origCheck = check;
+				check = store == null ? null : store.getCheck(origCheck.getId());
+
+				// handle missing references gracefully
+				if (check == null) {
+					log.warn("Could not locate referenced check in store: " + origCheck.getId());
+					missing.put(resolved.size(), origCheck);
+					resolved.add(null);
+					continue;
+				}
+
+				// The check type and level from the suite definition file takes precedence over the check type
+				// and level defined in the check definition file.
+				check = new Check(check);
+				if (origCheck.getLevel() != null) check.setLevel(origCheck.getLevel());
+				if (origCheck.getType() != null) check.setType(origCheck.getType());
+				referenced.add(resolved.size());
+			}
+
+			// R checks are run outside of the JVM, so there are no variables to export from
+			if (isR(check.getEnvironment()) && check.getExport() != null && !check.getExport().isEmpty()) {
+				log.warn("Check " + check.getId() + " exports variables, which R checks cannot do");
+				rejected.put(resolved.size(), check);
+				resolved.add(null);
+				continue;
+			}
+
+			// each check that inherits state joins the sequence of the check before it
+			if (!check.isInheritState() || chains.isEmpty()) {
+				chains.add(new ArrayList<Integer>());
+			}
+			chains.get(chains.size() - 1).add(resolved.size());
+			resolved.add(check);
+
+			String environment = check.getEnvironment() == null ? null : check.getEnvironment().toLowerCase();
+			if (!environments.containsKey(environment)) {
+				environments.put(environment, new ArrayList<Check>());
+			}
+			environments.get(environment).add(check);
+
+			dialectIndex.add(check);
+			compile(check);
+		}
+		this.checks = Collections.unmodifiableList(resolved);
+
+		log.debug("Prepared suite " + id + " with " + checks.size() + " checks in " + chains.size() + " sequences");
+	}
+
+	/*
+	 * Compile the dialect and selector expressions so that syntax errors are found up front and
+	 * every run reuses the compiled expressions. The namespaces found in a document may also be
+	 * used by selectors, so expressions that use other prefixes are compiled on first use.
+	 */
+	private void compile(Check check) {
+		if (check.getDialect() != null) {
+			for (Dialect dialect: check.getDialect()) {
+				try {
+					xPathCache.getExpression(dialect.getXpath());
+				} catch (XPathExpressionException e) {
+					log.warn("Check " + check.getId() + " has an invalid dialect expression: " + dialect.getXpath());
+				}
+			}
+		}
+		if (check.getSelector() != null) {
+			for (Selector selector: check.getSelector()) {
+				for (Selector s = selector; s != null; s = s.getSubSelector()) {
+					Map<String, String> bindings = new HashMap<String, String>();
+					addBindings(bindings, namespaces);
+					addBindings(bindings, s.getNamespace());
+					try {
+						xPathCache.getExpression(s.getXpath(), bindings);
+					} catch (XPathExpressionException e) {
+						log.debug("Selector " + s.getName() + " of check " + check.getId() + " will be compiled when run");
+					}
+				}
+			}
+		}
+	}
+
+	private static void addBindings(Map<String, String> bindings, List<Namespace> namespaces) {
+		if (namespaces != null) {
+			for (Namespace namespace: namespaces) {
+				if (namespace.getPrefix() != null) {
+					bindings.put(namespace.getPrefix(), namespace.getUri());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Run the suite on a document.
+	 * @param input the metadata document to check
+	 * @param sysMeta the system metadata for the document, if available
+	 * @param params optional additional parameters to make available to the checks
+	 * @return the Run results for this execution
+	 * @throws IOException
+	 * @throws SAXException
+	 * @throws ParserConfigurationException
+	 * @throws XPathExpressionException
+	 * @throws ScriptException
+	 */
+	public Run run(InputStream input, SystemMetadata sysMeta, Map<String, Object> params)
+			throws IOException, SAXException, ParserConfigurationException, XPathExpressionException, ScriptException {
+		return run(Collections.singletonList(this), input, sysMeta, params).get(0);
+	}
+
+	/**
+	 * Run several suites on a document in a single pass.
+	 * <p>
+	 * The document is parsed once for all of the suites. A check that is referenced by more than
+	 * one of the suites is only run once (unless it is part of a sequence of checks that inherit
+	 * state), and its result is reported in the Run of each suite with that suite's definition
+	 * of the check.
+	 * </p>
+	 * Independent checks are run concurrently when the first suite has an executor.
+	 * @param suites the suites to run
+	 * @param input the metadata document to check
+	 * @param sysMeta the system metadata for the document, if available
+	 * @param params optional additional parameters to make available to the checks
+	 * @return a Run for each suite, in the same order as the suites
+	 * @throws IOException
+	 * @throws SAXException
+	 * @throws ParserConfigurationException
+	 * @throws XPathExpressionException
+	 * @throws ScriptException
+	 */
+	public static List<Run> run(List<PreparedSuite> suites, InputStream input, SystemMetadata sysMeta,
+			Map<String, Object> params)
+			throws IOException, SAXException, ParserConfigurationException, XPathExpressionException, ScriptException {
+
+		if (params == null) {
+			params = new HashMap<String, Object>();
+		}
+
+		long start = System.nanoTime();
+		DocumentModel model = parse(input, suites.isEmpty() ? 0 : suites.get(0).streamingThreshold);
+		Path tempDir = Files.createTempDirectory("mdq_run");
+
+		// suites that use the same namespaces and data directory select the same values, so they
+		// can share a dialect and the results of the checks they have in common
+		Map<String, XMLDialect> dialects = new HashMap<String, XMLDialect>();
+		Map<String, List<PreparedSuite>> groups = new HashMap<String, List<PreparedSuite>>();
+		Map<String, Sequence> shared = new HashMap<String, Sequence>();
+		List<Sequence> sequences = new ArrayList<Sequence>();
+		List<Sequence[]> assigned = new ArrayList<Sequence[]>();
+
+		for (PreparedSuite suite: suites) {
+			log.debug("Running suite: " + suite.id);
+
+			String group = suite.groupKey();
+			XMLDialect xml = dialects.get(group);
+			if (xml == null) {
+				xml = new XMLDialect(model);
+				xml.setParams(suite.withDataDirectory(params));
+				xml.setSystemMetadata(sysMeta);
+				xml.setXPathCache(suite.xPathCache);
+				xml.setDirectory(tempDir.toFile().getAbsolutePath());
+				// the first suite's time limits apply to the whole run, as its checks are shared
+				xml.setTimeouts(suites.get(0).checkTimeout, suites.get(0).getDeadline(start, 1));
+				// include the default namespaces from the suite
+				xml.mergeNamespaces(suite.namespaces);
+				dialects.put(group, xml);
+				groups.put(group, new ArrayList<PreparedSuite>());
+			}
+			groups.get(group).add(suite);
+
+			Sequence[] suiteSequences = new Sequence[suite.chains.size()];
+			for (int i = 0; i < suite.chains.size(); i++) {
+				List<Integer> chain = suite.chains.get(i);
+				String key = null;
+				if (chain.size() == 1 && suite.referenced.contains(chain.get(0))) {
+					key = group + '\u0000' + suite.checks.get(chain.get(0)).getId();
+					suiteSequences[i] = shared.get(key);
+				}
+				if (suiteSequences[i] == null) {
+					List<Check> chainChecks = new ArrayList<Check>();
+					for (Integer index: chain) {
+						chainChecks.add(suite.checks.get(index));
+					}
+					suiteSequences[i] = new Sequence(xml, chainChecks);
+					sequences.add(suiteSequences[i]);
+					if (key != null) {
+						shared.put(key, suiteSequences[i]);
+					}
+				}
+			}
+			assigned.add(suiteSequences);
+		}
+
+		// decide which checks apply to the document by testing each dialect expression only once
+		for (Map.Entry<String, List<PreparedSuite>> group: groups.entrySet()) {
+			List<PreparedSuite> groupSuites = group.getValue();
+			DialectIndex index = groupSuites.get(0).dialectIndex;
+			if (groupSuites.size() > 1) {
+				index = new DialectIndex();
+				for (PreparedSuite suite: groupSuites) {
+					for (Check check: suite.checks) {
+						index.add(check);
+					}
+				}
+			}
+			dialects.get(group.getKey()).setDialectIndex(index);
+		}
+
+		if (!suites.isEmpty() && suites.get(0).batchR) {
+			sequences = batchR(sequences);
+		}
+
+		if (model.hasSource()) {
+			// select what we can in one pass, the document is only parsed if other selectors need it
+			StreamingMatcher matcher = new StreamingMatcher();
+			for (Sequence sequence: sequences) {
+				for (Check check: sequence.checks) {
+					XMLDialect.addStreamingExpressions(matcher, check);
+				}
+			}
+			StreamingMatcher.Results streamed;
+			try {
+				streamed = matcher.match(model.openSource());
+			} catch (XMLStreamException e) {
+				tempDir.toFile().delete();
+				throw new SAXException("Could not read document: " + e.getMessage(), e);
+			}
+			for (XMLDialect xml: dialects.values()) {
+				xml.setStreamedResults(streamed);
+			}
+		}
+
+		try {
+			// run the checks of all the suites to get results
+			ExecutorService executor = suites.isEmpty() ? null : suites.get(0).executor;
+			if (executor != null && sequences.size() > 1) {
+				runSequences(sequences, executor);
+			} else {
+				for (Sequence sequence: sequences) {
+					sequence.run();
+				}
+			}
+		} finally {
+			// clean up
+			tempDir.toFile().delete();
+		}
+
+		if (suites.size() > 1) {
+			log.debug("Ran " + sequences.size() + " check sequences for " + suites.size() + " suites");
+		}
+		if (log.isDebugEnabled()) {
+			long hits = 0;
+			long misses = 0;
+			for (XMLDialect xml: dialects.values()) {
+				hits += xml.getSelectionHits();
+				misses += xml.getSelectionMisses();
+			}
+			log.debug("Selections: " + misses + " evaluated, " + hits + " reused"
+					+ (hits + misses > 0 ? " (" + (100 * hits / (hits + misses)) + "% hit rate)" : ""));
+			for (DispatcherPool.Stats stats: DispatcherPool.getStats().values()) {
+				log.debug("Dispatcher pool " + stats);
+			}
+		}
+
+		List<Run> runs = new ArrayList<Run>();
+		for (int s = 0; s < suites.size(); s++) {
+			PreparedSuite suite = suites.get(s);
+			runs.add(suite.collect(assigned.get(s)));
+		}
+		return runs;
+	}
+
+	/**
+	 * Run the suite on a number of documents, e.g. when the same suite is run over many documents
+	 * in a backfill. Each R check that does not inherit state is dispatched once for all of the
+	 * documents, so R is invoked once per batch instead of once per document. Other engines keep
+	 * the compiled code of a check between documents anyway, so their checks are run document by
+	 * document, as they would be by {@link #run(InputStream, SystemMetadata, Map)}. All of
+	 * the documents are held in memory at the same time, so the batch size should be limited. A
+	 * document that cannot be read does not stop the batch: its run has the run status
+	 * {@link Run#FAILURE} and the reason in its error description, and no results.
+	 * @param inputs the metadata documents to check
+	 * @param sysMetas the system metadata for each document, or null
+	 * @param params optional additional parameters to make available to the checks
+	 * @return a Run for each document, in the same order as the documents
+	 * @throws IOException
+	 * @throws ParserConfigurationException
+	 * @throws XPathExpressionException
+	 * @throws ScriptException
+	 */
+	public List<Run> runBatch(List<InputStream> inputs, List<SystemMetadata> sysMetas, Map<String, Object> params)
+			throws IOException, ParserConfigurationException, XPathExpressionException, ScriptException {
+
+		if (params == null) {
+			params = new HashMap<String, Object>();
+		}
+		Path tempDir = Files.createTempDirectory("mdq_run");
+		// each document has the time budget of a run
+		Long deadline = getDeadline(System.nanoTime(), inputs.size());
+
+		try {
+			Run[] runs = new Run[inputs.size()];
+			List<XMLDialect> documents = new ArrayList<XMLDialect>();
+			// the position of each of the documents that could be read in the batch
+			List<Integer> positions = new ArrayList<Integer>();
+			for (int d = 0; d < inputs.size(); d++) {
+				DocumentModel model = null;
+				try {
+					model = parse(inputs.get(d), streamingThreshold);
+				} catch (SAXException | IOException e) {
+					log.error("Could not read document " + d + " of the batch: " + e.getMessage());
+					runs[d] = failure(e);
+					continue;
+				}
+				XMLDialect xml = new XMLDialect(model);
+				xml.setParams(withDataDirectory(params));
+				xml.setSystemMetadata(sysMetas == null ? null : sysMetas.get(d));
+				xml.setXPathCache(xPathCache);
+				xml.setDirectory(tempDir.toFile().getAbsolutePath());
+				xml.setTimeouts(checkTimeout, deadline);
+				xml.mergeNamespaces(namespaces);
+				xml.setDialectIndex(dialectIndex);
+				if (model.hasSource()) {
+					StreamingMatcher matcher = new StreamingMatcher();
+					for (Check check: checks) {
+						if (check != null) {
+							XMLDialect.addStreamingExpressions(matcher, check);
+						}
+					}
+					try {
+						xml.setStreamedResults(matcher.match(model.openSource()));
+					} catch (XMLStreamException e) {
+						log.error("Could not read document " + d + " of the batch: " + e.getMessage());
+						runs[d] = failure(e);
+						continue;
+					}
+				}
+				documents.add(xml);
+				positions.add(d);
+			}
+
+			// the sequences of each document
+			Sequence[][] documentSequences = new Sequence[documents.size()][chains.size()];
+			for (int i = 0; i < chains.size(); i++) {
+				List<Check> chainChecks = new ArrayList<Check>();
+				for (Integer index: chains.get(i)) {
+					chainChecks.add(checks.get(index));
+				}
+				if (chainChecks.size() == 1 && !chainChecks.get(0).isInheritState()
+						&& isR(chainChecks.get(0).getEnvironment())) {
+					List<Result> results = XMLDialect.runAcross(chainChecks.get(0), documents);
+					for (int d = 0; d < documents.size(); d++) {
+						documentSequences[d][i] = new Sequence(documents.get(d), chainChecks);
+						documentSequences[d][i].results = Collections.singletonList(results.get(d));
+					}
+				} else {
+					for (int d = 0; d < documents.size(); d++) {
+						documentSequences[d][i] = new Sequence(documents.get(d), chainChecks);
+						documentSequences[d][i].run();
+					}
+				}
+			}
+
+			for (int d = 0; d < documents.size(); d++) {
+				runs[positions.get(d)] = collect(documentSequences[d]);
+			}
+			log.debug("Ran suite " + id + " on " + documents.size() + " of " + inputs.size() + " documents");
+			return new ArrayList<Run>(Arrays.asList(runs));
+		} finally {
+			// clean up
+			tempDir.toFile().delete();
+		}
+	}
+
+	/*
+	 * Replace the sequences of single R checks that do not inherit state with one batch for each
+	 * dialect, so that each batch is run with a single R invocation
+	 */
+	private static List<Sequence> batchR(List<Sequence> sequences) {
+		List<Sequence> batched = new ArrayList<Sequence>();
+		Map<XMLDialect, Batch> batches = new IdentityHashMap<XMLDialect, Batch>();
+		for (Sequence sequence: sequences) {
+			Check check = sequence.checks.get(0);
+			if (sequence.checks.size() > 1 || check.isInheritState() || !isR(check.getEnvironment())) {
+				batched.add(sequence);
+				continue;
+			}
+			Batch batch = batches.get(sequence.xml);
+			if (batch == null) {
+				batch = new Batch(sequence.xml);
+				batches.put(sequence.xml, batch);
+				batched.add(batch);
+			}
+			batch.add(sequence);
+		}
+		return batched;
+	}
+
+	private static boolean isR(String environment) {
+		return environment != null && (environment.equalsIgnoreCase("r") || environment.equalsIgnoreCase("rscript"));
+	}
+
+	/*
+	 * When the checks of a number of runs that start now have to be done by, or null if there is
+	 * no time budget
+	 */
+	private Long getDeadline(long start, int runs) {
+		return suiteTimeout > 0 ? start + TimeUnit.MILLISECONDS.toNanos(suiteTimeout * runs) : null;
+	}
+
+	/*
+	 * Parse the document, unless it is at least as large as the threshold. Then only its bytes are
+	 * kept, so that it can be read with a streaming matcher instead.
+	 */
+	private static DocumentModel parse(InputStream input, int streamingThreshold)
+			throws IOException, SAXException, ParserConfigurationException {
+		if (streamingThreshold <= 0) {
+			return new DocumentModel(input);
+		}
+		byte[] source = IOUtils.toByteArray(input);
+		if (source.length < streamingThreshold) {
+			return new DocumentModel(new ByteArrayInputStream(source));
+		}
+		log.debug("Using streaming selection for document of " + source.length + " bytes");
+		return new DocumentModel(source);
+	}
+
+	/*
+	 * Make a run from the results of the sequences that were run for this suite
+	 */
+	private Run collect(Sequence[] suiteSequences) {
+		// make a run to capture results
+		Run run = new Run();
+		run.setSuiteId(id);
+		run.setId(UUID.randomUUID().toString());
+		run.setTimestamp(Calendar.getInstance().getTime());
+		Result[] results = new Result[checks.size()];
+
+		for (Map.Entry<Integer, Check> entry: missing.entrySet()) {
+			Result r = new Result();
+			r.setCheck(entry.getValue());
+			r.setStatus(Status.SKIP);
+			r.setOutput(new Output("Could not locate referenced check in store: " + entry.getValue().getId()));
+			results[entry.getKey()] = r;
+		}
+
+		for (Map.Entry<Integer, Check> entry: rejected.entrySet()) {
+			Result r = new Result();
+			r.setCheck(entry.getValue());
+			r.setStatus(Status.ERROR);
+			r.setOutput(new Output("R checks cannot export variables to other checks"));
+			results[entry.getKey()] = r;
+		}
+
+		for (int i = 0; i < chains.size(); i++) {
+			List<Integer> chain = chains.get(i);
+			for (int j = 0; j < chain.size(); j++) {
+				Check check = checks.get(chain.get(j));
+				Result result = suiteSequences[i].results.get(j);
+				if (result.getCheck() != check) {
+					// the check was run for another suite, report it with this suite's definition
+					result = copyResult(result, check);
+				}
+				results[chain.get(j)] = result;
+			}
+		}
+		run.setResult(new ArrayList<Result>(Arrays.asList(results)));
+
+		log.trace("Run results: " + JsonMarshaller.toJson(run));
+
+		return run;
+	}
+
+	/*
+	 * The run of a document that could not be checked at all
+	 */
+	private Run failure(Exception e) {
+		Run run = new Run();
+		run.setSuiteId(id);
+		run.setId(UUID.randomUUID().toString());
+		run.setTimestamp(Calendar.getInstance().getTime());
+		run.setRunStatus(Run.FAILURE);
+		run.setErrorDescription(e.getMessage());
+		run.setResult(new ArrayList<Result>());
+		return run;
+	}
+
+	private static Result copyResult(Result result, Check check) {
+		Result copy = new Result();
+		copy.setCheck(check);
+		copy.setStatus(result.getStatus());
+		copy.setTimestamp(result.getTimestamp());
+		if (result.getOutput() != null) {
+			copy.setOutput(new ArrayList<Output>(result.getOutput()));
+		}
+		return copy;
+	}
+
+	/*
+	 * Make the location of the data directory available to checks that need to
+	 * read data files located there.
+	 */
+	private Map<String, Object> withDataDirectory(Map<String, Object> params) {
+		Map<String, Object> suiteParams = new HashMap<String, Object>(params);
+		if (dataDirectory != null || !suiteParams.containsKey("metadigDataDir")) {
+			log.debug("Setting metadigDataDir: " + dataDirectory);
+			suiteParams.put("metadigDataDir", dataDirectory);
+		}
+		return suiteParams;
+	}
+
+	/*
+	 * Suites with the same key evaluate selectors and parameters the same way
+	 */
+	private String groupKey() {
+		StringBuilder key = new StringBuilder(String.valueOf(dataDirectory));
+		for (Namespace namespace: namespaces) {
+			key.append('\u0000').append(namespace.getPrefix()).append('=').append(namespace.getUri());
+		}
+		return key.toString();
+	}
+
+	/*
+	 * Run independent sequences of checks concurrently, waiting for all of them to complete
+	 */
+	private static void runSequences(List<Sequence> sequences, ExecutorService executor)
+			throws XPathExpressionException, ScriptException {
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for (Sequence sequence: sequences) {
+			futures.add(executor.submit(() -> {
+				sequence.run();
+				return null;
+			}));
+		}
+		try {
+			for (Future<?> future: futures) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ScriptException("Interrupted while running checks");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof XPathExpressionException) {
+				throw (XPathExpressionException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new ScriptException(new Exception(cause));
+		} finally {
+			// don't leave checks running if we are not waiting for them
+			for (Future<?> future: futures) {
+				future.cancel(true);
+			}
+		}
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * The resolved checks, in suite order. Checks that could not be resolved are null.
+	 * @return the checks of the suite
+	 */
+	public List<Check> getChecks() {
+		return checks;
+	}
+
+	/**
+	 * The resolved checks for an environment (e.g. 'r', 'JavaScript'), in suite order
+	 * @param environment the case-insensitive environment name
+	 * @return the checks, or an empty list if the suite has none for the environment
+	 */
+	public List<Check> getChecks(String environment) {
+		List<Check> found = environments.get(environment == null ? null : environment.toLowerCase());
+		return found == null ? Collections.<Check>emptyList() : Collections.unmodifiableList(found);
+	}
+
+	public XPathCache getXPathCache() {
+		return xPathCache;
+	}
+
+	/**
+	 * Run independent checks on this executor. When null, all the checks of a suite are run in
+	 * order on the calling thread.
+	 * @param executor the executor to run checks with
+	 */
+	public void setExecutor(ExecutorService executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * The data directory that is made available to checks as the 'metadigDataDir' parameter
+	 * @param dataDirectory the directory path
+	 */
+	public void setDataDirectory(String dataDirectory) {
+		this.dataDirectory = dataDirectory;
+	}
+
+	/**
+	 * Documents of at least this many bytes are not parsed into a DOM up front. Their selectors
+	 * are evaluated in a single streaming pass instead, and the DOM is only built if a selector
+	 * that is not supported by the {@link StreamingMatcher} has to be evaluated.
+	 * @param streamingThreshold the document size in bytes, or zero to always use the DOM
+	 */
+	public void setStreamingThreshold(int streamingThreshold) {
+		this.streamingThreshold = streamingThreshold;
+	}
+
+	/**
+	 * Run the R checks that do not inherit state with a single R invocation per document,
+	 * instead of one for each check. The inputs of the checks are sent to R once, and each check
+	 * is evaluated in an environment of its own.
+	 * @param batchR true to batch R checks
+	 */
+	public void setBatchR(boolean batchR) {
+		this.batchR = batchR;
+	}
+
+	/**
+	 * Limit how long a check can run. A check that takes longer is stopped and reported with the
+	 * status ERROR: its R process is killed, and the script engine running it is interrupted and
+	 * discarded.
+	 * @param checkTimeout the time in milliseconds, 0 for no limit
+	 */
+	public void setCheckTimeout(long checkTimeout) {
+		this.checkTimeout = checkTimeout;
+	}
+
+	/**
+	 * Limit how long the checks of a run on one document can take altogether. When the time is
+	 * up, a running check is stopped and the checks that have not started are reported with the
+	 * status ERROR.
+	 * @param suiteTimeout the time in milliseconds, 0 for no limit
+	 */
+	public void setSuiteTimeout(long suiteTimeout) {
+		this.suiteTimeout = suiteTimeout;
+	}
+
+	/*
+	 * A sequence of checks that is run in order with one dialect
+	 */
+	private static class Sequence {
+		protected XMLDialect xml;
+		protected List<Check> checks;
+		protected List<Result> results;
+
+		private Sequence(XMLDialect xml, List<Check> checks) {
+			this.xml = xml;
+			this.checks = checks;
+		}
+
+		protected void run() throws XPathExpressionException {
+			results = xml.runChecks(checks);
+		}
+	}
+
+	/*
+	 * Single R checks of a dialect that are run together, each result going to its own sequence
+	 */
+	private static class Batch extends Sequence {
+		private List<Sequence> members = new ArrayList<Sequence>();
+
+		private Batch(XMLDialect xml) {
+			super(xml, new ArrayList<Check>());
+		}
+
+		private void add(Sequence sequence) {
+			members.add(sequence);
+			checks.add(sequence.checks.get(0));
+		}
+
+		@Override
+		protected void run() throws XPathExpressionException {
+			results = xml.runBatch(checks);
+			for (int i = 0; i < members.size(); i++) {
+				members.get(i).results = Collections.singletonList(results.get(i));
+			}
+		}
+	}
+
+}
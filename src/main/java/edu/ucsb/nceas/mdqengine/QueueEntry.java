@@ -1,8 +1,10 @@
 package edu.ucsb.nceas.mdqengine;
 
+import edu.ucsb.nceas.mdqengine.filestore.ClaimCheckStore;
 import org.dataone.service.types.v2.SystemMetadata;
 import org.joda.time.DateTime;
 
+import java.io.IOException;
 import java.io.Serializable;
 
 public class QueueEntry implements Serializable {
@@ -25,6 +27,12 @@ public class QueueEntry implements Serializable {
 
     private String runXML;
 
+    // The claims of the metadata document and the run XML, when they were too large to send
+    // in the message and were put in the ClaimCheckStore instead
+    private String metadataDocClaim;
+
+    private String runXMLClaim;
+
     private long processingElapsedTimeSeconds;
 
     private long indexingElapsedTimeSeconds;
@@ -100,6 +108,36 @@ public class QueueEntry implements Serializable {
         this.runXML = runXML;
     }
 
+    public String getMetadataDocClaim() {
+        return metadataDocClaim;
+    }
+
+    public void setMetadataDocClaim(String claim) {
+        this.metadataDocClaim = claim;
+    }
+
+    public String getRunXMLClaim() {
+        return runXMLClaim;
+    }
+
+    public void setRunXMLClaim(String claim) {
+        this.runXMLClaim = claim;
+    }
+
+    /**
+     * Get the run XML, from the message or, when it was too large to send in the message, from the
+     * claim check store
+     * @param store the store that the run XML was put in
+     * @return the run XML, or null if there is none
+     * @throws IOException if the run XML cannot be read from the store
+     */
+    public String getRunXML(ClaimCheckStore store) throws IOException {
+        if (runXMLClaim != null) {
+            return store.getString(runXMLClaim);
+        }
+        return runXML;
+    }
+
     public void setProcessingElapsedTimeSeconds (long seconds) {
         this.processingElapsedTimeSeconds = seconds;
     };
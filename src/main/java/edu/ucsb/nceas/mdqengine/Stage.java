@@ -0,0 +1,128 @@
+package edu.ucsb.nceas.mdqengine;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Function;
+
+/**
+ * A stage of the worker: bounded queues of items, and the threads that take the items from the
+ * queues, up to 'batchSize' at a time, and hand them to the stage's handler. Adding an item to a
+ * full queue waits until there is room, so a stage that falls behind slows down the stage before
+ * it instead of letting items pile up.
+ * <p>
+ * Without a key, the threads share one queue. With a key, each thread has a queue of its own, and
+ * the items with the same key always go to the same thread, so that they are handled one after
+ * the other, in the order that they were submitted.
+ * </p>
+ * <p>
+ * Anything that the handler throws, errors included, is passed to the failure handler with the
+ * whole batch, and the thread goes on with the next batch.
+ * </p>
+ *
+ * @param <T> the type of the items
+ */
+class Stage<T> {
+
+    private static Log log = LogFactory.getLog(Stage.class);
+
+    interface Handler<T> {
+        void process(List<T> batch);
+    }
+
+    interface FailureHandler<T> {
+        /**
+         * Deal with a batch that the handler failed on. Some of its items may have been handled already.
+         *
+         * @param batch the batch
+         * @param failure what the handler threw
+         */
+        void failed(List<T> batch, Throwable failure);
+    }
+
+    private final String name;
+
+    private final List<BlockingQueue<T>> queues = new ArrayList<>();
+
+    private final Function<? super T, ?> key;
+
+    private final List<Thread> threads = new ArrayList<>();
+
+    /**
+     * Create a stage and start its threads
+     *
+     * @param name the name of the stage, for its threads and the log
+     * @param threads the number of threads
+     * @param batchSize the largest number of items that are handed to the handler at a time
+     * @param capacity the number of items that can wait in the stage, at least one for each queue
+     * @param key the key of an item, or null if any thread may handle any item
+     * @param handler handles the batches
+     * @param failureHandler deals with the batches that the handler failed on
+     */
+    Stage(final String name, int threads, final int batchSize, int capacity, Function<? super T, ?> key,
+          final Handler<T> handler, final FailureHandler<T> failureHandler) {
+        this.name = name;
+        this.key = key;
+        int queueCount = key == null ? 1 : threads;
+        for (int i = 0; i < queueCount; i++) {
+            queues.add(new ArrayBlockingQueue<T>(Math.max(1, capacity / queueCount)));
+        }
+        for (int i = 0; i < threads; i++) {
+            final BlockingQueue<T> queue = queues.get(i % queueCount);
+            Thread thread = new Thread(() -> {
+                while (true) {
+                    List<T> batch = new ArrayList<>(batchSize);
+                    try {
+                        batch.add(queue.take());
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    queue.drainTo(batch, batchSize - 1);
+                    try {
+                        handler.process(batch);
+                    } catch (Throwable e) {
+                        log.error("Unexpected error in the " + name + " stage: " + e.getMessage(), e);
+                        try {
+                            failureHandler.failed(batch, e);
+                        } catch (Throwable e2) {
+                            log.error("Unable to recover from the error in the " + name + " stage: " + e2.getMessage(), e2);
+                        }
+                    }
+                }
+            }, "mdq-" + name + "-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            this.threads.add(thread);
+        }
+    }
+
+    /**
+     * Add an item to the stage, waiting until there is room for it
+     *
+     * @param item the item
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    void submit(T item) throws InterruptedException {
+        BlockingQueue<T> queue = queues.get(0);
+        if (queues.size() > 1) {
+            Object itemKey = key.apply(item);
+            queue = queues.get(Math.floorMod(itemKey == null ? 0 : itemKey.hashCode(), queues.size()));
+        }
+        queue.put(item);
+    }
+
+    /**
+     * Stop the threads of the stage, once they have handled their current batches. Items that are
+     * still waiting in the stage are left there.
+     */
+    void shutdown() {
+        log.debug("Stopping the " + name + " stage");
+        for (Thread thread : threads) {
+            thread.interrupt();
+        }
+    }
+}
@@ -2,18 +2,20 @@ package edu.ucsb.nceas.mdqengine;
 
 import com.rabbitmq.client.*;
 import edu.ucsb.nceas.mdqengine.collections.Runs;
+import edu.ucsb.nceas.mdqengine.filestore.ClaimCheckStore;
 import edu.ucsb.nceas.mdqengine.exception.MetadigException;
+import edu.ucsb.nceas.mdqengine.exception.MetadigFilestoreException;
 import edu.ucsb.nceas.mdqengine.exception.MetadigIndexException;
 import edu.ucsb.nceas.mdqengine.exception.MetadigProcessException;
-import edu.ucsb.nceas.mdqengine.model.Result;
 import edu.ucsb.nceas.mdqengine.model.Run;
 import edu.ucsb.nceas.mdqengine.model.Suite;
 import edu.ucsb.nceas.mdqengine.model.SysmetaModel;
 import edu.ucsb.nceas.mdqengine.processor.GroupLookupCheck;
+import edu.ucsb.nceas.mdqengine.serialize.QueueEntryMarshaller;
 import edu.ucsb.nceas.mdqengine.serialize.XmlMarshaller;
 import edu.ucsb.nceas.mdqengine.solr.IndexApplicationController;
 import edu.ucsb.nceas.mdqengine.store.InMemoryStore;
-import edu.ucsb.nceas.mdqengine.store.MDQStore;
+import edu.ucsb.nceas.mdqengine.store.SuiteRegistry;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.configuration2.ex.ConfigurationException;
 import org.apache.commons.logging.Log;
@@ -75,11 +77,28 @@ public class Worker {
     // controlled by a metadig.properties config item in the future if desired.
     private static Boolean indexSequenceId = true;
 
-    private static long startTimeIndexing;
-    private static long startTimeProcessing;
-    private static long elapsedTimeSecondsIndexing;
-    private static long elapsedTimeSecondsProcessing;
-    private static long totalElapsedTimeSeconds;
+    // The engine that prepares and runs the suites, and the registry snapshot that its store has the suites and checks of
+    private static MDQEngine engine = null;
+    private static SuiteRegistry.Snapshot engineSnapshot = null;
+
+    // The number of messages processed at the same time, and the number of unacknowledged messages
+    // that RabbitMQ delivers to this worker
+    private static int workerThreads = 1;
+    private static int prefetchCount = 1;
+    private static ExecutorService deliveryExecutor = null;
+
+    // Reports are created by the delivery executor, then saved and indexed by the persist and index stages,
+    // each with its own threads, so that creating a report doesn't wait for the database and Solr
+    private static int persistThreads = 1;
+    private static int indexThreads = 1;
+    private static int indexBatchSize = 10;
+    private static int persistCapacity = 1;
+    private static int indexCapacity = 10;
+    private static Stage<Delivery> persistStage = null;
+    private static Stage<Delivery> indexStage = null;
+
+    // Quality reports of at least this many bytes are returned through the claim check store instead of the message
+    private static int claimThreshold = 0;
 
     public static void main(String[] argv) throws Exception {
 
@@ -92,6 +111,29 @@ public class Worker {
             RabbitMQhost = cfg.getString("RabbitMQ.host");
             RabbitMQport = cfg.getInt("RabbitMQ.port");
             indexLatest = Boolean.parseBoolean(cfg.getString("index.latest"));
+            workerThreads = Math.max(1, cfg.getInt("worker.threads", 1));
+            persistThreads = Math.max(1, cfg.getInt("worker.persist.threads", 1));
+            if (indexSequenceId && persistThreads > 1) {
+                // The reports of an obsolescence chain are only known to be in the same chain once the
+                // chain has been read from the store, so they cannot be routed to the same thread, and
+                // two threads would race to read the chain and update its sequenceId
+                log.warn("Only one persist thread is used while sequenceIds are recorded, ignoring worker.persist.threads = "
+                        + persistThreads);
+                persistThreads = 1;
+            }
+            indexThreads = Math.max(1, cfg.getInt("worker.index.threads", 1));
+            indexBatchSize = Math.max(1, cfg.getInt("worker.index.batch", 10));
+            // Messages are acknowledged once they leave the last stage, so by default the stages share
+            // one message for each delivery thread. Prefetching up to workerThreads + persistThreads +
+            // indexThreads * indexBatchSize messages keeps all of the stages busy, but holds more
+            // messages back from the other workers.
+            prefetchCount = Math.max(workerThreads, cfg.getInt("worker.prefetch", workerThreads));
+            // Each stage holds about as many messages as its threads take at a time, so that a stage that
+            // falls behind soon holds up the one before it
+            persistCapacity = Math.max(1, cfg.getInt("worker.persist.capacity", persistThreads));
+            indexCapacity = Math.max(1, cfg.getInt("worker.index.capacity", indexThreads * indexBatchSize));
+            QueueEntryMarshaller.setLegacyFormat(Boolean.parseBoolean(cfg.getString("queue.legacy.format")));
+            claimThreshold = cfg.getInt("claim.check.threshold", 0);
         } catch (ConfigurationException cex) {
             log.error("Unable to read configuration");
             MetadigException me = new MetadigException("Unable to read config properties");
@@ -99,226 +141,456 @@ public class Worker {
             throw me;
         }
 
+        // Load the suites and checks before the first message arrives
+        getEngine();
+
         wkr.setupQueues();
+        deliveryExecutor = createDeliveryExecutor();
+        // The isLatest and sequenceId updates of an obsolescence chain must be indexed in order, so the
+        // reports of a chain are all indexed by the same thread
+        indexStage = new Stage<>("index", indexThreads, indexBatchSize, indexCapacity,
+                delivery -> delivery.sequenceId != null ? delivery.sequenceId : delivery.qEntry.getMetadataPid(),
+                Worker::indexReports, (batch, e) -> failed(indexStage, batch, e));
+        // Any thread may save any report, which is why there is only one of them while sequenceIds are recorded
+        persistStage = new Stage<>("persist", persistThreads, 1, persistCapacity, null,
+                Worker::persistReports, (batch, e) -> failed(persistStage, batch, e));
 
         /* This method is overridden from the RabbitMQ library and serves as the callback that is invoked whenenver
          * an entry added to the 'inProcessChannel' and this particular instance of the Worker is selected for
-         * delivery of the queue message.
+         * delivery of the queue message. The message is handed to the delivery executor, so that up to
+         * 'worker.threads' reports are created at the same time, while the reports of other messages are
+         * saved and indexed by the persist and index stages.
          */
         final Consumer consumer = new DefaultConsumer(inProcessChannel) {
             @Override
-            public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) throws IOException {
-
-                Run run = null;
-                Runs runsInSequence = new Runs();
-                ByteArrayInputStream bis = new ByteArrayInputStream(body);
-                ObjectInput in = new ObjectInputStream(bis);
-                QueueEntry qEntry = null;
-                //long startTime = System.nanoTime();
-                startTimeProcessing = System.currentTimeMillis();
-                elapsedTimeSecondsIndexing = 0L;
-                elapsedTimeSecondsProcessing = 0L;
-                totalElapsedTimeSeconds = 0L;
+            public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, final byte[] body) throws IOException {
 
+                final long deliveryTag = envelope.getDeliveryTag();
                 try {
-                    qEntry = (QueueEntry) in.readObject();
-                } catch (java.lang.ClassNotFoundException e) {
-                    log.error("Unable to process quality report");
-                    e.printStackTrace();
-                    return;
+                    deliveryExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                processDelivery(deliveryTag, body);
+                            } catch (RuntimeException e) {
+                                // Don't let the message hold one of the prefetched deliveries forever
+                                log.error("Unable to process quality report: " + e.getMessage(), e);
+                                reject(deliveryTag);
+                            }
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    // The worker has no room for the message, let another worker have it
+                    log.error("Unable to process quality report, returning it to the queue");
+                    synchronized (inProcessChannel) {
+                        inProcessChannel.basicNack(deliveryTag, false, true);
+                    }
                 }
+            }
+        };
 
-                Worker wkr = new Worker();
-                String runXML = null;
-                String metadataPid = qEntry.getMetadataPid();
-                String suiteId = qEntry.getQualitySuiteId();
-                SystemMetadata sysmeta = qEntry.getSystemMetadata();
-                long difference;
+        log.debug("Calling basicConsume");
+    inProcessChannel.basicConsume(QUALITY_QUEUE_NAME, false, consumer);
+    }
 
-                // Fail fast for each of these tasks: create run, save run, index run
-                // If any one of these fails, send an 'ack' back to the controller, try to
-                // return a report query entry (that also contains the exception) and return
-                boolean failFast = false;
+    /**
+     * The state of a message from the 'quality' queue as it passes through the stages of the worker.
+     * Each message is handled by one thread of a stage at a time, so the fields need no locking.
+     */
+    private static class Delivery {
+        private final long deliveryTag;
+        private final QueueEntry qEntry;
+        private final long startTimeProcessing = System.currentTimeMillis();
+        private Run run = null;
+        private Runs runsInSequence = new Runs();
+        private String sequenceId = null;
+        private long elapsedTimeSecondsProcessing = 0L;
+        private long elapsedTimeSecondsIndexing = 0L;
+        // The stage that the message was last handed to, and whether it has been acknowledged or rejected
+        private volatile Stage<Delivery> stage = null;
+        private volatile boolean done = false;
+
+        private Delivery(long deliveryTag, QueueEntry qEntry) {
+            this.deliveryTag = deliveryTag;
+            this.qEntry = qEntry;
+        }
+    }
 
-                // Create the quality report
-                try {
-                    // Set host name so controller can print stats info, referring to this
-                    // worker.
-                    qEntry.setHostname(InetAddress.getLocalHost().getHostName());
-                    run = wkr.processReport(qEntry);
-                    if(run.getObjectIdentifier() == null) {
-                        run.setObjectIdentifier(metadataPid);
-                    }
-                    runXML = XmlMarshaller.toXml(run, true);
-                    qEntry.setRunXML(runXML);
-                    difference = System.currentTimeMillis() - startTimeProcessing;
-                    elapsedTimeSecondsProcessing = TimeUnit.MILLISECONDS.toSeconds(difference);
-                    qEntry.setProcessingElapsedTimeSeconds(elapsedTimeSecondsProcessing);
-                    log.debug("Completed running quality suite.");
-                } catch (java.lang.Exception e) {
-                    failFast = true;
-                    log.error("Unable to run quality suite.");
-                    e.printStackTrace();
-                    // Store an exception in the queue entry. This will be returned to the Controller so
-                    // so that it can take the appropriate action, for example, to resubmit the entry
-                    // or to log the error in an easily assessible location, or to notify a user.
-                    MetadigException me = new MetadigProcessException("Unable to run quality suite.");
-                    me.initCause(e);
-                    qEntry.setException(me);
-                    // Note: Don't explicitly call 'return' from this routine causes the worker to silently loose connection
-                    // to rabbitmq, i.e. the message to the completed queue doesn't appear to be queued
-
-                    // Even though the run didn't complete, save the processing report to
-                    // persistent storage, so that we can save the error and status of the run.
-                    try {
-                        log.debug("Saving quality run status after error");
-                        // convert String into InputStream
-                        if(run == null) run = new Run();
-                        run.setObjectIdentifier(metadataPid);
-                        run.setSuiteId(suiteId);
-                        run.setObjectIdentifier(metadataPid);
-                        run.setRunStatus(Run.FAILURE);
-                        run.setErrorDescription(e.getMessage());
-                        run.save();
-                        log.debug("Saved quality run status after error");
-                    } catch (Exception ex) {
-                        log.error("Processing failed, then unable to save the quality report to database:" + ex.getMessage());
-                    }
+    /**
+     * Hand a message to a stage, waiting until the stage has room for it.
+     *
+     * @param stage the stage
+     * @param delivery the message
+     */
+    private static void handOver(Stage<Delivery> stage, Delivery delivery) {
+        delivery.stage = stage;
+        try {
+            stage.submit(delivery);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.error("Interrupted while handing over quality report for pid: " + delivery.qEntry.getMetadataPid());
+            rejectDelivery(delivery);
+        }
+    }
+
+    /**
+     * Deal with a batch that a stage failed on: each message that the stage still holds is returned to the
+     * controller with the error and acknowledged, or rejected if even that fails, so that none of them holds
+     * one of the prefetched deliveries forever.
+     *
+     * @param stage the stage that failed
+     * @param batch the messages of the batch
+     * @param failure the error
+     */
+    private static void failed(Stage<Delivery> stage, List<Delivery> batch, Throwable failure) {
+        for (Delivery delivery : batch) {
+            // Messages that were finished or handed to the next stage before the failure are left alone
+            if (delivery.done || delivery.stage != stage) {
+                continue;
+            }
+            try {
+                delivery.qEntry.setException(new MetadigProcessException("Unable to process quality report", failure));
+                finish(delivery);
+            } catch (Throwable e) {
+                log.error("Unable to return quality report for pid: " + delivery.qEntry.getMetadataPid(), e);
+            }
+            if (!delivery.done) {
+                rejectDelivery(delivery);
+            }
+        }
+    }
+
+    /**
+     * Create the quality report for a message from the 'quality' queue, then hand it to the
+     * persist stage. This is the first stage of the worker, it runs on the threads of the
+     * delivery executor, and a report that can't be created is returned to the controller
+     * straight away.
+     *
+     * @param deliveryTag the RabbitMQ delivery tag of the message
+     * @param body the serialized queue entry
+     */
+    private static void processDelivery(long deliveryTag, byte[] body) {
+
+        QueueEntry qEntry = null;
+        try {
+            qEntry = QueueEntryMarshaller.queueEntryFromBytes(body);
+        } catch (IOException e) {
+            log.error("Unable to process quality report");
+            e.printStackTrace();
+            // Drop the message, otherwise it would hold one of the prefetched deliveries forever
+            reject(deliveryTag);
+            return;
+        }
+
+        Delivery delivery = new Delivery(deliveryTag, qEntry);
+        Worker wkr = new Worker();
+        Run run = null;
+        String metadataPid = qEntry.getMetadataPid();
+        String suiteId = qEntry.getQualitySuiteId();
+        long difference;
+
+        // Fail fast for each of these tasks: create run, save run, index run
+        // If any one of these fails, send an 'ack' back to the controller, try to
+        // return a report query entry (that also contains the exception) and return
+
+        // Create the quality report
+        try {
+            // Set host name so controller can print stats info, referring to this
+            // worker.
+            qEntry.setHostname(InetAddress.getLocalHost().getHostName());
+            run = wkr.processReport(qEntry);
+            if(run.getObjectIdentifier() == null) {
+                run.setObjectIdentifier(metadataPid);
+            }
+            qEntry.setRunXML(XmlMarshaller.toXml(run, true));
+            difference = System.currentTimeMillis() - delivery.startTimeProcessing;
+            delivery.elapsedTimeSecondsProcessing = TimeUnit.MILLISECONDS.toSeconds(difference);
+            qEntry.setProcessingElapsedTimeSeconds(delivery.elapsedTimeSecondsProcessing);
+            log.debug("Completed running quality suite.");
+        } catch (java.lang.Exception e) {
+            log.error("Unable to run quality suite.");
+            e.printStackTrace();
+            // Store an exception in the queue entry. This will be returned to the Controller so
+            // so that it can take the appropriate action, for example, to resubmit the entry
+            // or to log the error in an easily assessible location, or to notify a user.
+            MetadigException me = new MetadigProcessException("Unable to run quality suite.");
+            me.initCause(e);
+            qEntry.setException(me);
+
+            // Even though the run didn't complete, save the processing report to
+            // persistent storage, so that we can save the error and status of the run.
+            try {
+                log.debug("Saving quality run status after error");
+                // convert String into InputStream
+                if(run == null) run = new Run();
+                run.setObjectIdentifier(metadataPid);
+                run.setSuiteId(suiteId);
+                run.setObjectIdentifier(metadataPid);
+                run.setRunStatus(Run.FAILURE);
+                run.setErrorDescription(e.getMessage());
+                run.save();
+                log.debug("Saved quality run status after error");
+            } catch (Exception ex) {
+                log.error("Processing failed, then unable to save the quality report to database:" + ex.getMessage());
+            }
+            finish(delivery);
+            return;
+        }
+
+        delivery.run = run;
+        handOver(persistStage, delivery);
+    }
+
+    /**
+     * Save the quality report of a message to persistent storage, with the sequence identifier of its
+     * obsolescence chain, then hand it to the index stage. The database store saves one run at a time,
+     * so the messages of a batch are saved one after the other.
+     *
+     * @param batch the messages to save
+     */
+    private static void persistReports(List<Delivery> batch) {
+        for (Delivery delivery : batch) {
+            boolean saved = false;
+            try {
+                saved = persistReport(delivery);
+            } catch (RuntimeException e) {
+                log.error("Unable to save quality report: " + e.getMessage(), e);
+                delivery.qEntry.setException(new MetadigException("Unable to save quality report", e));
+            }
+            if (saved) {
+                handOver(indexStage, delivery);
+            } else {
+                finish(delivery);
+            }
+        }
+    }
+
+    private static boolean persistReport(Delivery delivery) {
+
+        Run run = delivery.run;
+        Runs runsInSequence = delivery.runsInSequence;
+        String metadataPid = delivery.qEntry.getMetadataPid();
+        String suiteId = delivery.qEntry.getQualitySuiteId();
+        String sequenceId = null;
+        /* Save the processing report to persistent storage */
+        try {
+            // Determine the sequence identifier for the metadata pids DataONE obsolescence chain. This is
+            // not the DataONE seriesId, which may not exist for a pid, but instead is a quality engine maintained
+            // sequence id, that is needed to determine the highest score for a obs. chain for each month.
+            log.debug("*****");
+            log.debug("Searching for sequence id for pid: " + run.getObjectIdentifier());
+            // Add current run to collection, it will be saved during the run.update
+            run.setObjectIdentifier(metadataPid);
+            run.setRunStatus(Run.SUCCESS);
+            run.setErrorDescription("");
+            // Should a 'sequenceId' and 'isLatest' be added to the Solr index?
+            if(indexSequenceId) {
+                // Add the current run to the collection, as a starting point for the sequence id search
+                runsInSequence.addRun(run.getObjectIdentifier(), run);
+
+                // Traverse through the collection, stopping if the sequenceId is found. If the sequenceId
+                // is already found, then all pids in the chain that are stored should already have this
+                // sequenceId
+                //Boolean stopWhenSIfound = true;
+                Boolean stopWhenSIfound = false;
+                runsInSequence.getRunSequence(run, suiteId, stopWhenSIfound);
+                sequenceId = runsInSequence.getSequenceId();
+                // Ok, a sequence id wasn't set for these runs (if any), so generate a new one
+                // Only assign a new pid if the first pid in the sequence is found, so that we don't
+                // have multiple segments of a chain with different sequenceIds.
+                if (sequenceId == null && runsInSequence.getFoundFirstPid()) {
+                    sequenceId = runsInSequence.getFirstPidInSequence();
+                    runsInSequence.setSequenceId(sequenceId);
+                    log.debug("Setting sequenceId to first pid in sequence: " + sequenceId);
+                } else {
+                    log.debug("Using found sequenceId: " + sequenceId);
                 }
 
-                String sequenceId = null;
-                /* Save the processing report to persistent storage */
-                if(!failFast) try {
-                    // Determine the sequence identifier for the metadata pids DataONE obsolescence chain. This is
-                    // not the DataONE seriesId, which may not exist for a pid, but instead is a quality engine maintained
-                    // sequence id, that is needed to determine the highest score for a obs. chain for each month.
-                    log.debug("*****");
-                    log.debug("Searching for sequence id for pid: " + run.getObjectIdentifier());
-                    // Add current run to collection, it will be saved during the run.update
-                    run.setObjectIdentifier(metadataPid);
-                    run.setRunStatus(Run.SUCCESS);
-                    run.setErrorDescription("");
-                    // Should a 'sequenceId' and 'isLatest' be added to the Solr index?
-                    if(indexSequenceId) {
-                        // Add the current run to the collection, as a starting point for the sequence id search
-                        runsInSequence.addRun(run.getObjectIdentifier(), run);
-
-                        // Traverse through the collection, stopping if the sequenceId is found. If the sequenceId
-                        // is already found, then all pids in the chain that are stored should already have this
-                        // sequenceId
-                        //Boolean stopWhenSIfound = true;
-                        Boolean stopWhenSIfound = false;
-                        runsInSequence.getRunSequence(run, suiteId, stopWhenSIfound);
-                        sequenceId = runsInSequence.getSequenceId();
-                        // Ok, a sequence id wasn't set for these runs (if any), so generate a new one
-                        // Only assign a new pid if the first pid in the sequence is found, so that we don't
-                        // have multiple segments of a chain with different sequenceIds.
-                        if (sequenceId == null && runsInSequence.getFoundFirstPid()) {
-                            sequenceId = runsInSequence.getFirstPidInSequence();
-                            runsInSequence.setSequenceId(sequenceId);
-                            log.debug("Setting sequenceId to first pid in sequence: " + sequenceId);
-                        } else {
-                            log.debug("Using found sequenceId: " + sequenceId);
-                        }
+                run.setSequenceId(sequenceId);
+            }
 
-                        run.setSequenceId(sequenceId);
-                    }
+            run.save();
+
+            // Update runs in persist storage with sequenceId for this obsolesence chain
+            if(indexSequenceId && sequenceId != null) {
+                log.debug("Updating sequenceId to " + sequenceId);
+                //sequenceId = runsInSequence.getSequenceId();
+                runsInSequence.updateSequenceId(sequenceId);
+                runsInSequence.update();
+            }
+        } catch (MetadigException me) {
+            log.error("Unable to save (then index) quality report to database.");
+            delivery.qEntry.setException(me);
+            return false;
+        }
+        delivery.sequenceId = sequenceId;
+        return true;
+    }
 
-                    run.save();
+    /**
+     * Add the quality reports of a batch of messages to the Solr index, then return them to the
+     * controller. Setting up the index processing component is the costly part of indexing a
+     * report, so it is set up once for the whole batch.
+     *
+     * @param batch the messages to index
+     */
+    private static void indexReports(List<Delivery> batch) {
+        Worker wkr = new Worker();
+        // For now, use fallback solr location, which will be selected by the indexer
+        // if null is passed in.
+        String solrLocation = null;
+        IndexApplicationController iac = null;
+        MetadigIndexException failure = null;
+        try {
+            iac = wkr.openIndex(solrLocation);
+        } catch (MetadigIndexException e) {
+            log.error("Unable to index quality reports: " + e.getMessage());
+            failure = e;
+        }
 
-                    // Update runs in persist storage with sequenceId for this obsolesence chain
-                    if(indexSequenceId && sequenceId != null) {
-                        log.debug("Updating sequenceId to " + sequenceId);
-                        //sequenceId = runsInSequence.getSequenceId();
-                        runsInSequence.updateSequenceId(sequenceId);
-                        runsInSequence.update();
+        try {
+            for (Delivery delivery : batch) {
+                if (failure != null) {
+                    MetadigException me = new MetadigIndexException("Unable index the generated quality report.");
+                    me.initCause(failure);
+                    delivery.qEntry.setException(me);
+                } else {
+                    try {
+                        indexReport(wkr, iac, delivery);
+                    } catch (RuntimeException e) {
+                        log.error("Unable to index quality report: " + e.getMessage(), e);
+                        delivery.qEntry.setException(new MetadigIndexException("Unable index the generated quality report.", e));
                     }
-                } catch (MetadigException me) {
-                    failFast = true;
-                    log.error("Unable to save (then index) quality report to database.");
-                    qEntry.setException(me);
                 }
+                finish(delivery);
+            }
+        } finally {
+            if (iac != null) {
+                iac.shutdown();
+            }
+        }
+    }
 
-                /* Once the quality report has been created and saved to persistent storage,
-                   it can be added to the Solr index */
-                if(!failFast) {
-                    log.debug("Indexing report");
-                    try {
-                        startTimeIndexing = System.currentTimeMillis();
-                        runXML = XmlMarshaller.toXml(run, true);
-                        //log.trace("report: " + runXML);
-                        // For now, use fallback solr location, which will be selected by the indexer
-                        // if null is passed in.
-                        String solrLocation = null;
-                        log.debug("calling indexReport");
-                        wkr.indexReport(metadataPid, runXML, suiteId, sysmeta, solrLocation);
-
-                        // Update any runs in this sequence that have been modified, either set as latest in sequence
-                        // or unset as latest in sequence.
-                        if(indexLatest) {
-                            // Put files to be updated in a HashMap (can update multiple fields)
-                            HashMap<String, Object> fields = new HashMap<>();
-                            for (Run r : runsInSequence.getModifiedRuns()) {
-                                log.info("Updating Solr index with modified run with pid: " + r.getObjectIdentifier() + ", isLatest: " + r.getIsLatest().toString() + ", dateUploaded: " + r.getDateUploaded());
-                                fields.put("isLatest", r.getIsLatest());
-                                try {
-                                    wkr.updateIndex(r.getObjectIdentifier(), r.getSuiteId(), fields, solrLocation);
-                                } catch (MetadigIndexException mie) {
-                                    // Retry the update if the first attemp fails
-                                    log.info("Retrying updating Solr index with modified run with pid: " + r.getObjectIdentifier() + ", isLatest: " + r.getIsLatest().toString() + ", dateUploaded: " + r.getDateUploaded());
-                                    try {
-                                        wkr.updateIndex(r.getObjectIdentifier(), r.getSuiteId(), fields, solrLocation);
-                                        log.info("Sucessfully updated Solr index with modified run with pid: " + r.getObjectIdentifier() + ", isLatest: " + r.getIsLatest().toString() + ", dateUploaded: " + r.getDateUploaded());
-                                    } catch (Exception mie2) {
-                                        log.error("Failed 2nd attempt to update Solr index with modified run with pid: " + r.getObjectIdentifier() + ", isLatest: " + r.getIsLatest().toString() + ", dateUploaded: " + r.getDateUploaded()) ;
-                                    }
-                                }
-                            }
-                        }
+    private static void indexReport(Worker wkr, IndexApplicationController iac, Delivery delivery) {
 
-                        // Now update one or more runs in the Solr index with the sequenceId
-                        if (indexSequenceId && sequenceId != null) {
-                            // Put files to be updated in a HashMap (can update multiple fields)
-                            HashMap<String, Object> fields = new HashMap<>();
-                            fields.put("sequenceId", sequenceId);
-                            for (Run r : runsInSequence.getModifiedRuns()) {
-                                log.info("Updating Solr index with sequenceId: " + sequenceId + " for pid: " + r.getObjectIdentifier());
-                                wkr.updateIndex(r.getObjectIdentifier(), r.getSuiteId(), fields, solrLocation);
-                            }
-                        }
+        QueueEntry qEntry = delivery.qEntry;
+        Run run = delivery.run;
+        Runs runsInSequence = delivery.runsInSequence;
+        String sequenceId = delivery.sequenceId;
+        String metadataPid = qEntry.getMetadataPid();
+        String suiteId = qEntry.getQualitySuiteId();
+        SystemMetadata sysmeta = qEntry.getSystemMetadata();
+        long difference;
 
-                        difference = System.currentTimeMillis() - startTimeIndexing;
-                        elapsedTimeSecondsIndexing = TimeUnit.MILLISECONDS.toSeconds(difference);
-                        qEntry.setIndexingElapsedTimeSeconds(elapsedTimeSecondsIndexing);
-                    } catch (Exception e) {
-                        log.error("Unable to index quality report..");
-                        e.printStackTrace();
-                        MetadigException me = new MetadigIndexException("Unable index the generated quality report.");
-                        me.initCause(e);
-                        qEntry.setException(me);
+        /* Once the quality report has been created and saved to persistent storage,
+           it can be added to the Solr index */
+        log.debug("Indexing report");
+        try {
+            long startTimeIndexing = System.currentTimeMillis();
+            String runXML = XmlMarshaller.toXml(run, true);
+            //log.trace("report: " + runXML);
+            log.debug("calling indexReport");
+            wkr.indexReport(iac, metadataPid, runXML, suiteId, sysmeta);
+
+            // Update any runs in this sequence that have been modified, either set as latest in sequence
+            // or unset as latest in sequence.
+            if(indexLatest) {
+                // Put files to be updated in a HashMap (can update multiple fields)
+                HashMap<String, Object> fields = new HashMap<>();
+                for (Run r : runsInSequence.getModifiedRuns()) {
+                    log.info("Updating Solr index with modified run with pid: " + r.getObjectIdentifier() + ", isLatest: " + r.getIsLatest().toString() + ", dateUploaded: " + r.getDateUploaded());
+                    fields.put("isLatest", r.getIsLatest());
+                    try {
+                        wkr.updateIndex(iac, r.getObjectIdentifier(), r.getSuiteId(), fields);
+                    } catch (MetadigIndexException mie) {
+                        // Retry the update if the first attemp fails
+                        log.info("Retrying updating Solr index with modified run with pid: " + r.getObjectIdentifier() + ", isLatest: " + r.getIsLatest().toString() + ", dateUploaded: " + r.getDateUploaded());
+                        try {
+                            wkr.updateIndex(iac, r.getObjectIdentifier(), r.getSuiteId(), fields);
+                            log.info("Sucessfully updated Solr index with modified run with pid: " + r.getObjectIdentifier() + ", isLatest: " + r.getIsLatest().toString() + ", dateUploaded: " + r.getDateUploaded());
+                        } catch (Exception mie2) {
+                            log.error("Failed 2nd attempt to update Solr index with modified run with pid: " + r.getObjectIdentifier() + ", isLatest: " + r.getIsLatest().toString() + ", dateUploaded: " + r.getDateUploaded()) ;
+                        }
                     }
                 }
+            }
 
-                // Send the report (completed or not) to the controller, with errors that were encountered.
-                try {
-                    log.debug("Sending report info back to controller...");
-                    totalElapsedTimeSeconds = elapsedTimeSecondsProcessing + elapsedTimeSecondsIndexing;
-                    qEntry.setTotalElapsedTimeSeconds(totalElapsedTimeSeconds);
-                    wkr.returnReport(metadataPid, suiteId, qEntry);
-                    log.debug("Sent report info back to controller...");
-                } catch (IOException ioe) {
-                    log.error("Unable to return quality report to controller.");
-                    ioe.printStackTrace();
+            // Now update one or more runs in the Solr index with the sequenceId
+            if (indexSequenceId && sequenceId != null) {
+                // Put files to be updated in a HashMap (can update multiple fields)
+                HashMap<String, Object> fields = new HashMap<>();
+                fields.put("sequenceId", sequenceId);
+                for (Run r : runsInSequence.getModifiedRuns()) {
+                    log.info("Updating Solr index with sequenceId: " + sequenceId + " for pid: " + r.getObjectIdentifier());
+                    wkr.updateIndex(iac, r.getObjectIdentifier(), r.getSuiteId(), fields);
                 }
-
-                // Inform RabbitMQ that we are done with this task, and am ready for another.
-                inProcessChannel.basicAck(envelope.getDeliveryTag(), false);
-                log.info("Worker completed task");
             }
-        };
 
-        log.debug("Calling basicConsume");
-    inProcessChannel.basicConsume(QUALITY_QUEUE_NAME, false, consumer);
+            difference = System.currentTimeMillis() - startTimeIndexing;
+            delivery.elapsedTimeSecondsIndexing = TimeUnit.MILLISECONDS.toSeconds(difference);
+            qEntry.setIndexingElapsedTimeSeconds(delivery.elapsedTimeSecondsIndexing);
+        } catch (Exception e) {
+            log.error("Unable to index quality report..");
+            e.printStackTrace();
+            MetadigException me = new MetadigIndexException("Unable index the generated quality report.");
+            me.initCause(e);
+            qEntry.setException(me);
+        }
+    }
+
+    /**
+     * Return the report of a message (completed or not) to the controller, with the errors that were
+     * encountered, and acknowledge the message. This is done by the last stage that the message reaches.
+     *
+     * @param delivery the message
+     */
+    private static void finish(Delivery delivery) {
+        QueueEntry qEntry = delivery.qEntry;
+        // The report is returned without the document, so hold on to its claim until the message is acknowledged
+        String metadataDocClaim = qEntry.getMetadataDocClaim();
+        try {
+            log.debug("Sending report info back to controller...");
+            qEntry.setTotalElapsedTimeSeconds(delivery.elapsedTimeSecondsProcessing + delivery.elapsedTimeSecondsIndexing);
+            new Worker().returnReport(qEntry.getMetadataPid(), qEntry.getQualitySuiteId(), qEntry);
+            log.debug("Sent report info back to controller...");
+        } catch (IOException ioe) {
+            log.error("Unable to return quality report to controller.");
+            ioe.printStackTrace();
+        }
+
+        // Inform RabbitMQ that we are done with this task, and am ready for another.
+        ack(delivery.deliveryTag);
+        delivery.done = true;
+        releaseClaim(metadataDocClaim);
+        log.info("Worker completed task");
+    }
+
+    /**
+     * Reject a message that the worker has given up on, and release the claim of its metadata document.
+     *
+     * @param delivery the message
+     */
+    private static void rejectDelivery(Delivery delivery) {
+        reject(delivery.deliveryTag);
+        delivery.done = true;
+        releaseClaim(delivery.qEntry.getMetadataDocClaim());
+    }
+
+    /**
+     * Release a claim on the claim check store, once the message that carried it has been acknowledged
+     * or rejected, so that the payload is deleted when no other message refers to it.
+     *
+     * @param claim the claim, or null if the message had none
+     */
+    private static void releaseClaim(String claim) {
+        if (claim == null) {
+            return;
+        }
+        try {
+            new ClaimCheckStore().release(claim);
+        } catch (MetadigFilestoreException | IOException e) {
+            log.warn("Unable to release claim " + claim + ": " + e.getMessage());
+        }
     }
 
     /**
@@ -332,26 +604,37 @@ public class Worker {
         byte[] message = null;
         try {
             log.info("Elapsed time processing (seconds): "
-                    + String.format("%d", elapsedTimeSecondsProcessing)
+                    + String.format("%d", qEntry.getProcessingElapsedTimeSeconds())
                     + " for metadataPid: " + metadataPid
                     + ", suiteId: " + suiteId
                     + "\n");
 
             log.info("Elapsed time indexing (seconds): "
-                    + String.format("%d", elapsedTimeSecondsIndexing)
+                    + String.format("%d", qEntry.getIndexingElapsedTimeSeconds())
                     + " for metadataPid: " + metadataPid
                     + ", suiteId: " + suiteId
                     + "\n");
 
             log.info("Total elapsed time (seconds): "
-                    + String.format("%d", totalElapsedTimeSeconds)
+                    + String.format("%d", qEntry.getTotalElapsedTimeSeconds())
                     + " for metadataPid: " + metadataPid
                     + ", suiteId: " + suiteId
                     + "\n");
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            ObjectOutput out = new ObjectOutputStream(bos);
-            out.writeObject(qEntry);
-            message = bos.toByteArray();
+
+            // The controller has the metadata document already, and a large report is returned through the claim
+            // check store
+            qEntry.setMetadataDoc(null);
+            qEntry.setMetadataDocClaim(null);
+            String runXML = qEntry.getRunXML();
+            if (claimThreshold > 0 && runXML != null && runXML.length() >= claimThreshold) {
+                try {
+                    qEntry.setRunXMLClaim(new ClaimCheckStore().put(runXML));
+                    qEntry.setRunXML(null);
+                } catch (MetadigFilestoreException | IOException e) {
+                    log.warn("Unable to store quality report, returning it in the message: " + e.getMessage());
+                }
+            }
+            message = QueueEntryMarshaller.toBytes(qEntry);
 
             log.info(" [x] Done");
             this.writeCompletedQueue(message);
@@ -359,6 +642,7 @@ public class Worker {
         } catch (Exception e) {
             // If we couldn't prepare the message, then there is nothing left to do
             log.error(" Unable to return report to controller");
+            releaseClaim(qEntry.getRunXMLClaim());
             e.printStackTrace();
             throw e;
         }
@@ -390,8 +674,9 @@ public class Worker {
             inProcessChannel.exchangeDeclare(EXCHANGE_NAME, "direct", false);
             inProcessChannel.queueDeclare(QUALITY_QUEUE_NAME, false, false, false, null);
             inProcessChannel.queueBind(QUALITY_QUEUE_NAME, EXCHANGE_NAME, QUALITY_ROUTING_KEY);
-            // Channel will only send one request for each worker at a time.
-            inProcessChannel.basicQos(1);
+            // Channel will only send as many requests as the worker has room for.
+            inProcessChannel.basicQos(prefetchCount);
+            log.info("Processing up to " + workerThreads + " messages at a time, prefetching " + prefetchCount);
             log.info("Connected to RabbitMQ queue " + QUALITY_QUEUE_NAME);
             log.info(" [*] Waiting for messages. To exit press CTRL+C");
         } catch (Exception e) {
@@ -411,6 +696,98 @@ public class Worker {
         }
     }
 
+    /**
+     * Create the pool of threads that process the messages delivered to this worker. RabbitMQ
+     * delivers at most 'prefetchCount' unacknowledged messages, so the queue of the pool never
+     * holds more than that.
+     *
+     * @return the executor
+     */
+    private static ExecutorService createDeliveryExecutor() {
+        final ThreadFactory defaultFactory = Executors.defaultThreadFactory();
+        return new ThreadPoolExecutor(workerThreads, workerThreads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(prefetchCount), runnable -> {
+                    Thread thread = defaultFactory.newThread(runnable);
+                    thread.setName("mdq-worker-" + thread.getName());
+                    return thread;
+                });
+    }
+
+    /**
+     * Acknowledge a message of the 'quality' queue, once its report has been returned to the controller.
+     *
+     * @param deliveryTag the RabbitMQ delivery tag of the message
+     */
+    private static void ack(long deliveryTag) {
+        try {
+            // Channels must not be used by several threads at the same time
+            synchronized (inProcessChannel) {
+                inProcessChannel.basicAck(deliveryTag, false);
+            }
+        } catch (IOException e) {
+            log.error("Unable to acknowledge message " + deliveryTag + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reject a message of the 'quality' queue that cannot be processed, without returning it to the queue.
+     *
+     * @param deliveryTag the RabbitMQ delivery tag of the message
+     */
+    private static void reject(long deliveryTag) {
+        try {
+            synchronized (inProcessChannel) {
+                inProcessChannel.basicReject(deliveryTag, false);
+            }
+        } catch (IOException e) {
+            log.error("Unable to reject message " + deliveryTag + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Get a suite that is ready to be run, preparing it the first time that it is requested.
+     * <p>
+     * Suites are looked up in the registry of suites and checks that is shared by the process,
+     * and the engine keeps each suite it has prepared, so its checks are only resolved and their
+     * expressions compiled once. When the registry loads changed suites or checks, the engine is
+     * given a store with them and prepares the suites again as they are requested.
+     * </p>
+     *
+     * @param suiteId the identifier of the suite to run
+     * @return the prepared suite
+     * @throws MetadigException if the suite cannot be found or the engine cannot be configured
+     */
+    private static PreparedSuite getPreparedSuite(String suiteId) throws MetadigException {
+        MDQEngine engine = getEngine();
+        Suite suite = engine.getStore().getSuite(suiteId);
+        if (suite == null) {
+            throw new MetadigException("Unable to find quality suite " + suiteId);
+        }
+        return engine.prepare(suite);
+    }
+
+    /**
+     * Get the engine that runs the suites of this worker, with a store of the current suites and checks.
+     *
+     * @return the engine
+     * @throws MetadigException if the engine cannot be configured
+     */
+    private static synchronized MDQEngine getEngine() throws MetadigException {
+        SuiteRegistry.Snapshot snapshot = SuiteRegistry.getInstance().getSnapshot();
+        if (engine == null) {
+            try {
+                engine = new MDQEngine();
+            } catch (IOException | ConfigurationException e) {
+                throw new MetadigException("Unable to configure the quality engine: " + e.getMessage(), e);
+            }
+        } else if (snapshot != engineSnapshot) {
+            log.info("Quality suites or checks have changed, preparing suites again");
+            engine.setStore(new InMemoryStore(snapshot));
+        }
+        engineSnapshot = snapshot;
+        return engine;
+    }
+
     /**
      * Create a quality report for a single metadata document.
      * <p>
@@ -427,26 +804,29 @@ public class Worker {
     public Run processReport(QueueEntry message) throws InterruptedException, Exception {
 
         String suiteId = message.getQualitySuiteId();
-        String metadataDoc = message.getMetadataDoc();
-        InputStream input = new ByteArrayInputStream(metadataDoc.getBytes("UTF-8"));
+        InputStream input = null;
+        if (message.getMetadataDocClaim() != null) {
+            // The document was too large for the message, so stream it from the claim check store
+            input = new ClaimCheckStore().open(message.getMetadataDocClaim());
+        } else {
+            input = new ByteArrayInputStream(message.getMetadataDoc().getBytes("UTF-8"));
+        }
         SystemMetadata sysmeta = message.getSystemMetadata();
 
         log.info(" [x] Running suite '" + message.getQualitySuiteId() + "'" + " for metadata pid " + message.getMetadataPid());
         // Run the Metadata Quality Engine for the specified metadata object.
         // TODO: set suite params correctly
         Map<String, Object> params = new HashMap<String, Object>();
-        // To run the suite, we need the in memory store, that contains all checks and suites.
-        MDQStore store = new InMemoryStore();
 
         Run run = null;
         try {
-            MDQEngine engine = new MDQEngine();
-            Suite suite = store.getSuite(suiteId);
-            run = engine.runSuite(suite, input, params, sysmeta);
-            List<Result> results = run.getResult();
+            PreparedSuite suite = getPreparedSuite(suiteId);
+            run = suite.run(input, sysmeta, params);
         } catch (Exception e) {
             throw new MetadigException("Unable to run quality suite for pid " + message.getMetadataPid() + ", suite "
                     + suiteId + e.getMessage(), e);
+        } finally {
+            input.close();
         }
 
         // Add DataONE sysmeta, if it was provided.
@@ -510,9 +890,18 @@ public class Worker {
 
         // If no Solr server is specified then use the 'fallback' server from the configuration
         // file.
+        IndexApplicationController iac = openIndex(solrLocation);
+        indexReport(iac, metadataId, runXML, suiteId, sysmeta);
+        iac.shutdown();
+    }
+
+    /**
+     * Index a quality report with an index processing component that has been set up already,
+     * see {@link #openIndex(String)}.
+     */
+    void indexReport(IndexApplicationController iac, String metadataId, String runXML, String suiteId, SystemMetadata sysmeta) throws MetadigIndexException {
+
         try {
-            IndexApplicationController iac = new IndexApplicationController();
-            iac.initialize(this.springConfigFileURL, solrLocation);
             InputStream runIS = new ByteArrayInputStream(runXML.getBytes());
             Identifier pid = new Identifier();
             pid.setValue(metadataId);
@@ -522,12 +911,29 @@ public class Worker {
             sysmeta.setFormatId(objFormatId);
             iac.insertSolrDoc(pid, sysmeta, runIS);
             log.info(" [x] Done indexing metadata PID: " + metadataId + ", suite id: " + suiteId);
-            iac.shutdown();
         } catch (Exception e) {
             throw new MetadigIndexException("Error during indexing", e);
         }
     }
 
+    /**
+     * Set up the index processing component, to index one or more quality reports. The caller
+     * shuts it down when it is done with it.
+     *
+     * @param solrLocation the Solr server, or null for the fallback server of the configuration
+     * @return the index processing component
+     * @throws MetadigIndexException
+     */
+    IndexApplicationController openIndex(String solrLocation) throws MetadigIndexException {
+        try {
+            IndexApplicationController iac = new IndexApplicationController();
+            iac.initialize(this.springConfigFileURL, solrLocation);
+            return iac;
+        } catch (Exception e) {
+            throw new MetadigIndexException("Unable to set up indexing", e);
+        }
+    }
+
     /**
      * Update a value in a quality report on the Solr server
      * <p>
@@ -542,15 +948,23 @@ public class Worker {
      */
     public void updateIndex(String metadataId, String suiteId, HashMap<String, Object> fields, String solrLocation) throws MetadigIndexException {
 
+        IndexApplicationController iac = openIndex(solrLocation);
+        updateIndex(iac, metadataId, suiteId, fields);
+        iac.shutdown();
+    }
+
+    /**
+     * Update a quality report with an index processing component that has been set up already,
+     * see {@link #openIndex(String)}.
+     */
+    void updateIndex(IndexApplicationController iac, String metadataId, String suiteId, HashMap<String, Object> fields) throws MetadigIndexException {
+
         try {
-            IndexApplicationController iac = new IndexApplicationController();
-            iac.initialize(this.springConfigFileURL, solrLocation);
             Identifier pid = new Identifier();
             pid.setValue(metadataId);
             // Update the solr doc fields, replacing the current value (other types of updates are available)
             String updateFieldModifier = "set";
             iac.updateSolrDoc(pid, suiteId, fields, updateFieldModifier);
-            iac.shutdown();
         } catch (Exception e) {
             throw new MetadigIndexException("Error during index updating", e);
         }
@@ -654,7 +1068,10 @@ public class Worker {
                 .contentType("text/plain")
                 .type(MESSAGE_TYPE_QUALITY)
                 .build();
-        completedChannel.basicPublish(EXCHANGE_NAME, COMPLETED_ROUTING_KEY, basicProperties, message);
+        // Channels must not be used by several threads at the same time
+        synchronized (completedChannel) {
+            completedChannel.basicPublish(EXCHANGE_NAME, COMPLETED_ROUTING_KEY, basicProperties, message);
+        }
     }
 
     /**
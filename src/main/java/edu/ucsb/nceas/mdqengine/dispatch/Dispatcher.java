@@ -5,12 +5,28 @@ import edu.ucsb.nceas.mdqengine.model.Result;
 import edu.ucsb.nceas.mdqengine.model.Status;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.python.core.Py;
+import org.python.core.PyObject;
 import org.python.jsr223.PyScriptEngineFactory;
 
 import javax.script.*;
-import java.util.HashMap;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Dispatcher {
 	
@@ -21,11 +37,47 @@ public class Dispatcher {
 	
 	protected Map<String, Object> bindings = null;
 	
+	// set for dispatchers that belong to a DispatcherPool, and so are used again and again
+	protected boolean pooled = false;
+	
+	// set when a dispatch did not complete in time, the engine may still be running it
+	private volatile boolean abandoned = false;
+	
+	// the number of checks that timed out but are still running, which script engines that
+	// ignore interrupts can do for ever, in total and by check id
+	private static final AtomicInteger runaways = new AtomicInteger();
+	
+	private static final Map<String, AtomicInteger> runawayChecks = new ConcurrentHashMap<String, AtomicInteger>();
+	
+	// how many of those there can be before checks with a timeout are no longer started
+	private static volatile int maxRunaways = Math.max(4, Runtime.getRuntime().availableProcessors());
+	
+	// the threads that checks with a timeout are run on, so that the caller can stop waiting
+	private static ExecutorService timedRunner = Executors.newCachedThreadPool(new ThreadFactory() {
+		private final ThreadFactory defaultFactory = Executors.defaultThreadFactory();
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = defaultFactory.newThread(runnable);
+			thread.setName("mdq-timed-" + thread.getName());
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	
 	// create a script engine manager:
     protected ScriptEngineManager manager = new ScriptEngineManager();
     protected PyScriptEngineFactory pySEF;
 
-    private static Map<String, Dispatcher> instances = new HashMap<>();
+    // the compiled code of checks, for engines that can compile scripts
+    private Map<String, CompiledCheck> compiledChecks = new LinkedHashMap<String, CompiledCheck>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, CompiledCheck> eldest) {
+			return size() > MAX_COMPILED_CHECKS;
+		}
+	};
+
+    private static final int MAX_COMPILED_CHECKS = 256;
 
     /**
      * Dispatches the code and variables to the script engine.
@@ -40,6 +92,19 @@ public class Dispatcher {
      * @throws ScriptException
      */
 	public Result dispatch(Map<String, Object> variables, String code) throws ScriptException {
+		return dispatch(variables, code, null);
+	}
+
+	/**
+	 * Dispatches the code of a check. Engines that can compile scripts only compile the code of
+	 * a check the first time it is dispatched, later dispatches bind the variables and run it.
+	 * @param variables the variable name/values that will be made available to the script
+	 * @param code the code, function definition, or classname
+	 * @param checkId the id of the check the code is from, or null
+	 * @return
+	 * @throws ScriptException
+	 */
+	public Result dispatch(Map<String, Object> variables, String code, String checkId) throws ScriptException {
 		Result dr = new Result();
 		
 		for (Entry<String, Object> entry: variables.entrySet()) {
@@ -50,7 +115,12 @@ public class Dispatcher {
 		
 		Object res = null;
 		try {
-			res = engine.eval(code);
+			CompiledScript compiled = this.compile(code, checkId);
+			long start = System.nanoTime();
+			res = compiled != null ? compiled.eval() : engine.eval(code);
+			long elapsed = System.nanoTime() - start;
+			DispatcherPool.recordEvaluation(engineName, elapsed);
+			log.debug("Evaluated " + (checkId != null ? "check " + checkId : "code") + " in " + elapsed / 1000 + " us");
 			log.trace("Result: " + res);
 
 		} catch (Exception e) {
@@ -127,10 +197,266 @@ public class Dispatcher {
 		
 	}
 	
+	/**
+	 * Dispatches the code of a check, giving up on it if it does not complete in time. The code
+	 * is run on another thread, which is interrupted when the time is up, and the dispatcher is
+	 * abandoned: it must not be used again, and its pool discards it when it is released.
+	 * Script engines do not always stop when they are interrupted, so a check that timed out
+	 * and is still running is not started again until it stops, and no check is started while
+	 * there are more than {@link #setMaxRunaways(int)} of those.
+	 * @param variables the variable name/values that will be made available to the script
+	 * @param code the code, function definition, or classname
+	 * @param checkId the id of the check the code is from, or null
+	 * @param timeout how long the check can take in milliseconds, 0 for no limit
+	 * @return the result of the check, with the status ERROR if it did not complete in time
+	 * @throws ScriptException
+	 */
+	public Result dispatch(final Map<String, Object> variables, final String code, final String checkId, long timeout)
+			throws ScriptException {
+		if (timeout <= 0) {
+			return dispatch(variables, code, checkId);
+		}
+		try {
+			return runTimed(new Callable<Result>() {
+				@Override
+				public Result call() throws Exception {
+					return dispatch(variables, code, checkId);
+				}
+			}, checkId, timeout);
+		} catch (TimeoutException e) {
+			return timedOut(timeout);
+		}
+	}
+
+	/**
+	 * Dispatches the code of a check once for each of a number of variable sets, giving up on a
+	 * run that does not complete in time. See {@link #dispatch(Map, String, String, long)}. A run
+	 * that times out abandons the dispatcher, so the runs after it are left to another one: the
+	 * results then stop at the run that timed out, and the caller has to dispatch the rest.
+	 * @param variables the variables of each run
+	 * @param code the code, function definition, or classname
+	 * @param checkId the id of the check the code is from, or null
+	 * @param timeout how long each of the runs can take in milliseconds, 0 for no limit
+	 * @return the result of each run, in the same order as the variables, up to the run that
+	 * abandoned the dispatcher, if any
+	 * @throws ScriptException
+	 */
+	public List<Result> dispatchBatch(List<Map<String, Object>> variables, String code, String checkId,
+			long timeout) throws ScriptException {
+		if (timeout <= 0) {
+			return dispatchBatch(variables, code, checkId);
+		}
+		List<Result> results = new ArrayList<Result>();
+		for (Map<String, Object> names: variables) {
+			this.reset();
+			Result result = null;
+			try {
+				result = this.dispatch(names, code, checkId, timeout);
+			} catch (ScriptException e) {
+				// e.g. the check is still running after an earlier timeout, which fails this run only
+				result = new Result();
+				result.setStatus(Status.ERROR);
+				result.setOutput(new Output(e.getMessage()));
+			}
+			results.add(result);
+			if (abandoned) {
+				break;
+			}
+		}
+		return results;
+	}
+
+	/*
+	 * Run a dispatch on a thread of the timed runner, abandoning this dispatcher if it takes
+	 * longer than the timeout
+	 */
+	private <T> T runTimed(Callable<T> task, String checkId, long timeout) throws ScriptException, TimeoutException {
+		final String runawayKey = checkId == null ? "" : checkId;
+		AtomicInteger running = runawayChecks.get(runawayKey);
+		if (checkId != null && running != null && running.get() > 0) {
+			throw new ScriptException("Check " + checkId + " was not run, it is still running after an earlier timeout");
+		}
+		int count = runaways.get();
+		if (count >= maxRunaways) {
+			throw new ScriptException("Check was not run, " + count + " checks are still running after timing out");
+		}
+		
+		RunawayTask<T> timed = new RunawayTask<T>(task, runawayKey);
+		Future<T> future = timedRunner.submit(timed);
+		try {
+			return future.get(timeout, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			future.cancel(true);
+			abandoned = true;
+			timed.abandon();
+			log.warn("Abandoning " + engineName + " dispatcher after a check ran for more than " + timeout + " ms");
+			throw e;
+		} catch (InterruptedException e) {
+			future.cancel(true);
+			abandoned = true;
+			timed.abandon();
+			Thread.currentThread().interrupt();
+			throw new ScriptException("Interrupted while waiting for check");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof ScriptException) {
+				throw (ScriptException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new ScriptException(new Exception(cause));
+		}
+	}
+
+	/**
+	 * Set how many checks can still be running after they timed out before no more checks with
+	 * a timeout are started. Each of them may be using a CPU until it stops by itself.
+	 * @param max the number of checks
+	 */
+	public static void setMaxRunaways(int max) {
+		if (max < 1) {
+			throw new IllegalArgumentException("The maximum number of runaway checks must be at least 1");
+		}
+		maxRunaways = max;
+	}
+
+	/**
+	 * @return the number of checks that timed out and are still running
+	 */
+	public static int getRunaways() {
+		return runaways.get();
+	}
+
+	/*
+	 * A timed task, which is counted as a runaway from when it is abandoned until it stops
+	 */
+	private static class RunawayTask<T> implements Callable<T> {
+		private static final int RUNNING = 0;
+		private static final int DONE = 1;
+		private static final int ABANDONED = 2;
+
+		private final Callable<T> task;
+		private final String key;
+		private final AtomicInteger state = new AtomicInteger(RUNNING);
+
+		private RunawayTask(Callable<T> task, String key) {
+			this.task = task;
+			this.key = key;
+		}
+
+		@Override
+		public T call() throws Exception {
+			try {
+				return task.call();
+			} finally {
+				if (state.getAndSet(DONE) == ABANDONED) {
+					runaways.decrementAndGet();
+					runawayChecks.get(key).decrementAndGet();
+				}
+			}
+		}
+
+		private void abandon() {
+			// the count has to exist before the task can see that it was abandoned
+			AtomicInteger count = runawayChecks.get(key);
+			if (count == null) {
+				AtomicInteger created = new AtomicInteger();
+				count = runawayChecks.putIfAbsent(key, created);
+				if (count == null) {
+					count = created;
+				}
+			}
+			if (state.compareAndSet(RUNNING, ABANDONED)) {
+				runaways.incrementAndGet();
+				count.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * The result of a check that did not complete in time
+	 * @param timeout the time the check had, in milliseconds
+	 * @return a result with the status ERROR
+	 */
+	protected static Result timedOut(long timeout) {
+		Result result = new Result();
+		result.setStatus(Status.ERROR);
+		result.setOutput(new Output("Check did not complete within " + timeout + " ms"));
+		return result;
+	}
+
+	/**
+	 * @return true if a dispatch did not complete in time, so that the dispatcher must not be used again
+	 */
+	public boolean isAbandoned() {
+		return abandoned;
+	}
+
+	/**
+	 * Dispatches the code of a check once for each of a number of variable sets, e.g. for the
+	 * same check on several documents. The code is compiled once, if the engine can, and then
+	 * run with each set of variables.
+	 * @param variables the variables of each run
+	 * @param code the code, function definition, or classname
+	 * @param checkId the id of the check the code is from, or null
+	 * @return the result of each run, in the same order as the variables
+	 * @throws ScriptException
+	 */
+	public List<Result> dispatchBatch(List<Map<String, Object>> variables, String code, String checkId) throws ScriptException {
+		List<Result> results = new ArrayList<Result>();
+		for (Map<String, Object> names: variables) {
+			// each run starts from clean bindings, as a check that does not inherit state would
+			this.reset();
+			results.add(this.dispatch(names, code, checkId));
+		}
+		return results;
+	}
+
+	/*
+	 * The compiled code of a check, compiling it if it has not been dispatched before. Returns
+	 * null if the engine does not compile scripts.
+	 */
+	private CompiledScript compile(String code, String checkId) throws ScriptException {
+		if (!(engine instanceof Compilable)) {
+			return null;
+		}
+		// the code is compared as well, so a hash collision cannot run the wrong code
+		String key = checkId + ":" + code.hashCode();
+		CompiledCheck compiled = compiledChecks.get(key);
+		if (compiled != null && compiled.code.equals(code)) {
+			return compiled.script;
+		}
+		long start = System.nanoTime();
+		CompiledScript script = ((Compilable) engine).compile(code);
+		long elapsed = System.nanoTime() - start;
+		DispatcherPool.recordCompilation(engineName, elapsed);
+		log.debug("Compiled " + (checkId != null ? "check " + checkId : "code") + " in " + elapsed / 1000 + " us");
+		compiledChecks.put(key, new CompiledCheck(code, script));
+		return script;
+	}
+
 	public boolean isEnvSupported(String env) {
-		String currentEnv = engine.getFactory().getLanguageName();
-		log.debug("currentEnv=" + currentEnv);
-		return env.equalsIgnoreCase(currentEnv);
+		log.debug("currentEnv=" + engineName);
+		return engineName != null && engineName.equals(getEngineName(env));
+	}
+	
+	/**
+	 * Clear the variables of previous dispatches, so that the dispatcher can be used for an
+	 * unrelated check
+	 */
+	public void reset() {
+		if (engine != null) {
+			engine.setBindings(engine.createBindings(), ScriptContext.ENGINE_SCOPE);
+		}
+		bindings = null;
+	}
+	
+	/**
+	 * Release any resources held outside of the JVM, when the dispatcher will not be used again
+	 */
+	public void close() {
 	}
 	
 	protected Dispatcher() {}
@@ -153,48 +479,152 @@ public class Dispatcher {
 	    
 	}
 
-	public static Dispatcher getDispatcher(String env) {
-
-		String engineName = null;
-		Dispatcher instance = null;
-		if (env.equalsIgnoreCase("r") || env.equalsIgnoreCase("rscript") ) {
-			engineName = "r";
+	/**
+	 * The name of the engine that runs checks of an environment
+	 * @param env the environment of a check, e.g. 'rscript'
+	 * @return the engine name, e.g. 'r', or null if the environment is not supported
+	 */
+	public static String getEngineName(String env) {
+		if (env == null) {
+			return null;
+		} else if (env.equalsIgnoreCase("r") || env.equalsIgnoreCase("rscript") ) {
+			return "r";
 		} else if (env.equalsIgnoreCase("renjin")) {
-			engineName = "Renjin";
+			return "Renjin";
 		} else if (env.equalsIgnoreCase("python")) {
-			engineName = "python";
+			return "python";
 		} else if (env.equalsIgnoreCase("JavaScript")) {
-			engineName = "JavaScript";
+			return "JavaScript";
 		} else if (env.equalsIgnoreCase("Java")) {
-			engineName = "Java";}
-
-		if (!instances.containsKey(engineName)) {
-		    synchronized(Dispatcher.class) {
-				if (!instances.containsKey(engineName)) {
-					if (env.equalsIgnoreCase("Java")) {
-						instance = new JavaDispatcher();
-					} else if (env.equalsIgnoreCase("r") || env.equalsIgnoreCase("rscript")) {
-						instance = new RDispatcher();
-					} else {
-						instance = new Dispatcher(engineName);
-					}
-					instance.engineName = engineName;
-					instances.put(engineName, instance);
-                }
-			}
-		} else {
-			instance = instances.get(engineName);
+			return "Java";
+		} else if (env.equalsIgnoreCase("native")) {
+			return "native";
 		}
+		return null;
+	}
 
-		return instance;
+	/**
+	 * Create a dispatcher for an environment that is not shared with anyone else. Checks are
+	 * run with dispatchers leased from the {@link DispatcherPool}, this is for one-off use.
+	 * @param env the environment
+	 * @return a new dispatcher
+	 */
+	public static Dispatcher getDispatcher(String env) {
+		String engineName = getEngineName(env);
+		if (engineName == null) {
+			throw new RuntimeException("Unsupported environment: " + env);
+		}
+		return newDispatcher(engineName);
+	}
 
+	static Dispatcher newDispatcher(String engineName) {
+		Dispatcher instance = null;
+		if (engineName.equals("Java")) {
+			instance = new JavaDispatcher();
+		} else if (engineName.equals("r")) {
+			instance = new RDispatcher();
+		} else if (engineName.equals("native")) {
+			instance = new NativeDispatcher();
+		} else {
+			instance = new Dispatcher(engineName);
+		}
+		instance.engineName = engineName;
+		return instance;
 	}
 
 	public Map<String, Object> getBindings() {
 		return bindings;
 	}
 
+	/**
+	 * The values of variables left by the last dispatch, as plain Java values that any other
+	 * dispatcher can use: strings, numbers, booleans, and lists and maps of those. Variables that
+	 * do not exist are left out.
+	 * @param names the names of the variables
+	 * @return the values, by name, or null if this dispatcher cannot export variables
+	 */
+	public Map<String, Object> exportVariables(Collection<String> names) {
+		Map<String, Object> exported = new LinkedHashMap<String, Object>();
+		if (bindings != null) {
+			for (String name: names) {
+				if (bindings.containsKey(name)) {
+					exported.put(name, toJava(bindings.get(name)));
+				}
+			}
+		}
+		return exported;
+	}
+
+	/*
+	 * Convert a script value structurally. Python values are converted by Jython, JavaScript
+	 * arrays are maps with the keys "0" to "n-1", and values that are of no known type become
+	 * strings.
+	 */
+	private static Object toJava(Object value) {
+		if (value instanceof PyObject) {
+			Object converted = ((PyObject) value).__tojava__(Object.class);
+			if (converted != Py.NoConversion) {
+				value = converted;
+			}
+		}
+		if (value == null || value instanceof String || value instanceof Number || value instanceof Boolean) {
+			return value;
+		}
+		if (value instanceof Map) {
+			Map<?, ?> map = (Map<?, ?>) value;
+			if (isArray(map)) {
+				List<Object> list = new ArrayList<Object>();
+				for (int i = 0; i < map.size(); i++) {
+					list.add(toJava(map.get(String.valueOf(i))));
+				}
+				return list;
+			}
+			Map<String, Object> converted = new LinkedHashMap<String, Object>();
+			for (Entry<?, ?> entry: map.entrySet()) {
+				converted.put(String.valueOf(entry.getKey()), toJava(entry.getValue()));
+			}
+			return converted;
+		}
+		if (value instanceof Collection) {
+			List<Object> list = new ArrayList<Object>();
+			for (Object item: (Collection<?>) value) {
+				list.add(toJava(item));
+			}
+			return list;
+		}
+		if (value.getClass().isArray()) {
+			List<Object> list = new ArrayList<Object>();
+			for (int i = 0; i < Array.getLength(value); i++) {
+				list.add(toJava(Array.get(value, i)));
+			}
+			return list;
+		}
+		return value.toString();
+	}
+
+	private static boolean isArray(Map<?, ?> map) {
+		if (map.isEmpty()) {
+			return false;
+		}
+		for (int i = 0; i < map.size(); i++) {
+			if (!map.containsKey(String.valueOf(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
 	public void setBindings(Map<String, Object> bindings) {
 		this.bindings = bindings;
 	}
+
+	private static class CompiledCheck {
+		private final String code;
+		private final CompiledScript script;
+
+		private CompiledCheck(String code, CompiledScript script) {
+			this.code = code;
+			this.script = script;
+		}
+	}
 }
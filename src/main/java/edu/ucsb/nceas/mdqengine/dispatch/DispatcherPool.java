@@ -0,0 +1,401 @@
+package edu.ucsb.nceas.mdqengine.dispatch;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.script.ScriptException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Pools of dispatchers, one pool for each script environment. A dispatcher is leased by one run
+ * at a time, so its script engine never sees the variables of another run, and it is returned
+ * with {@link #release(Dispatcher)} when the run is done with it. Each pool holds at most a
+ * maximum number of dispatchers, so a lease waits if they are all in use. A dispatcher taken
+ * from the pool has had its bindings reset, so a check does not see the variables that a
+ * previous check left behind. A dispatcher that was abandoned because a check timed out is
+ * discarded when it is returned.
+ */
+public class DispatcherPool {
+
+	public static Log log = LogFactory.getLog(DispatcherPool.class);
+
+	private static final Map<String, DispatcherPool> pools = new ConcurrentHashMap<String, DispatcherPool>();
+
+	private static volatile int defaultMaxSize = Math.max(4, Runtime.getRuntime().availableProcessors());
+
+	private final String engineName;
+
+	private int maxSize;
+
+	// dispatchers that are not leased, most recently used first
+	private final Deque<Dispatcher> idle = new ArrayDeque<Dispatcher>();
+
+	private int created = 0;
+
+	private int leased = 0;
+
+	private long leases = 0;
+
+	private long waits = 0;
+
+	private long waitNanos = 0;
+
+	private long compilations = 0;
+
+	private long compileNanos = 0;
+
+	private long evaluations = 0;
+
+	private long evaluationNanos = 0;
+
+	private long abandoned = 0;
+
+	private DispatcherPool(String engineName, int maxSize) {
+		this.engineName = engineName;
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Lease a dispatcher for an environment, waiting for one to be returned if the pool is at its
+	 * maximum size. The dispatcher has to be returned with {@link #release(Dispatcher)}.
+	 * @param environment the environment of the check, e.g. 'python'
+	 * @return a dispatcher with clean bindings
+	 * @throws ScriptException if the environment is not supported, or the wait is interrupted
+	 */
+	public static Dispatcher lease(String environment) throws ScriptException {
+		String engineName = Dispatcher.getEngineName(environment);
+		if (engineName == null) {
+			throw new ScriptException("Unsupported check environment: " + environment);
+		}
+		return getPool(engineName).lease();
+	}
+
+	/**
+	 * Return a leased dispatcher to its pool
+	 * @param dispatcher the dispatcher, which the caller must not use after this
+	 */
+	public static void release(Dispatcher dispatcher) {
+		DispatcherPool pool = pools.get(dispatcher.engineName);
+		if (pool != null) {
+			pool.put(dispatcher);
+		}
+	}
+
+	/**
+	 * Take back a dispatcher that was returned to its pool, with its bindings as they were, so
+	 * that the next check can continue from its state.
+	 * @param dispatcher the dispatcher that was released
+	 * @return true if it is leased again, false if it has been leased by someone else meanwhile
+	 */
+	public static boolean reclaim(Dispatcher dispatcher) {
+		DispatcherPool pool = pools.get(dispatcher.engineName);
+		return pool != null && pool.take(dispatcher);
+	}
+
+	/**
+	 * Set the maximum number of dispatchers of each environment. Pools that are already larger
+	 * shrink as their dispatchers are returned.
+	 * @param maxSize the maximum size of each pool
+	 */
+	public static void setMaxSize(int maxSize) {
+		if (maxSize < 1) {
+			throw new IllegalArgumentException("The dispatcher pool size must be at least 1");
+		}
+		defaultMaxSize = maxSize;
+		for (DispatcherPool pool: pools.values()) {
+			pool.resize(maxSize);
+		}
+	}
+
+	public static int getMaxSize() {
+		return defaultMaxSize;
+	}
+
+	/**
+	 * The current statistics of the pool of each environment that has been used
+	 * @return the statistics, by engine name
+	 */
+	public static Map<String, Stats> getStats() {
+		Map<String, Stats> stats = new TreeMap<String, Stats>();
+		for (DispatcherPool pool: pools.values()) {
+			stats.put(pool.engineName, pool.snapshot());
+		}
+		return stats;
+	}
+
+	/**
+	 * Count the compilation of check code by a dispatcher
+	 * @param engineName the engine of the dispatcher
+	 * @param nanos how long the compilation took
+	 */
+	static void recordCompilation(String engineName, long nanos) {
+		DispatcherPool pool = engineName == null ? null : pools.get(engineName);
+		if (pool != null) {
+			synchronized (pool) {
+				pool.compilations++;
+				pool.compileNanos += nanos;
+			}
+		}
+	}
+
+	/**
+	 * Count the evaluation of check code by a dispatcher, not including any compilation
+	 * @param engineName the engine of the dispatcher
+	 * @param nanos how long the evaluation took
+	 */
+	static void recordEvaluation(String engineName, long nanos) {
+		DispatcherPool pool = engineName == null ? null : pools.get(engineName);
+		if (pool != null) {
+			synchronized (pool) {
+				pool.evaluations++;
+				pool.evaluationNanos += nanos;
+			}
+		}
+	}
+
+	private static DispatcherPool getPool(String engineName) {
+		DispatcherPool pool = pools.get(engineName);
+		if (pool == null) {
+			DispatcherPool created = new DispatcherPool(engineName, defaultMaxSize);
+			pool = pools.putIfAbsent(engineName, created);
+			if (pool == null) {
+				pool = created;
+			}
+		}
+		return pool;
+	}
+
+	private Dispatcher lease() throws ScriptException {
+		Dispatcher dispatcher = null;
+		synchronized (this) {
+			if (idle.isEmpty() && created >= maxSize) {
+				long start = System.nanoTime();
+				waits++;
+				log.debug("Waiting for a " + engineName + " dispatcher, " + leased + " of " + maxSize + " are leased");
+				try {
+					while (idle.isEmpty() && created >= maxSize) {
+						this.wait();
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new ScriptException("Interrupted while waiting for a " + engineName + " dispatcher");
+				} finally {
+					waitNanos += System.nanoTime() - start;
+				}
+			}
+			dispatcher = idle.pollFirst();
+			if (dispatcher == null) {
+				// reserve the place of the new dispatcher
+				created++;
+			}
+			leased++;
+			leases++;
+		}
+
+		if (dispatcher != null) {
+			try {
+				dispatcher.reset();
+				return dispatcher;
+			} catch (RuntimeException e) {
+				// the place of the broken dispatcher goes to its replacement
+				log.warn("Could not reset " + engineName + " dispatcher, creating a new one: " + e.getMessage());
+				dispatcher.close();
+			}
+		}
+
+		// engines are slow to create, so do not hold up the pool meanwhile
+		try {
+			log.debug("Creating " + engineName + " dispatcher");
+			dispatcher = Dispatcher.newDispatcher(engineName);
+			dispatcher.pooled = true;
+			return dispatcher;
+		} catch (RuntimeException e) {
+			synchronized (this) {
+				created--;
+				leased--;
+				this.notify();
+			}
+			throw new ScriptException(e.getMessage());
+		}
+	}
+
+	private synchronized void put(Dispatcher dispatcher) {
+		leased--;
+		if (dispatcher.isAbandoned()) {
+			// a check timed out and may still be running, so its place goes to a new dispatcher
+			created--;
+			abandoned++;
+			dispatcher.close();
+		} else if (created > maxSize) {
+			// the pool has been made smaller
+			created--;
+			dispatcher.close();
+		} else {
+			idle.addFirst(dispatcher);
+		}
+		this.notify();
+	}
+
+	private synchronized boolean take(Dispatcher dispatcher) {
+		// identity, as dispatchers do not override equals()
+		for (Iterator<Dispatcher> i = idle.iterator(); i.hasNext(); ) {
+			if (i.next() == dispatcher) {
+				i.remove();
+				leased++;
+				leases++;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private synchronized void resize(int maxSize) {
+		this.maxSize = maxSize;
+		while (created > maxSize && !idle.isEmpty()) {
+			idle.removeLast().close();
+			created--;
+		}
+		this.notifyAll();
+	}
+
+	private synchronized Stats snapshot() {
+		return new Stats(engineName, maxSize, created, leased, idle.size(), leases, waits, waitNanos / 1000000,
+				compilations, compileNanos / 1000000, evaluations, evaluationNanos / 1000000, abandoned);
+	}
+
+	/**
+	 * The statistics of the pool of one environment at some point in time
+	 */
+	public static class Stats {
+
+		private final String engineName;
+		private final int maxSize;
+		private final int created;
+		private final int leased;
+		private final int idle;
+		private final long leases;
+		private final long waits;
+		private final long waitMillis;
+		private final long compilations;
+		private final long compileMillis;
+		private final long evaluations;
+		private final long evaluationMillis;
+		private final long abandoned;
+
+		private Stats(String engineName, int maxSize, int created, int leased, int idle, long leases, long waits, long waitMillis,
+				long compilations, long compileMillis, long evaluations, long evaluationMillis, long abandoned) {
+			this.engineName = engineName;
+			this.maxSize = maxSize;
+			this.created = created;
+			this.leased = leased;
+			this.idle = idle;
+			this.leases = leases;
+			this.waits = waits;
+			this.waitMillis = waitMillis;
+			this.compilations = compilations;
+			this.compileMillis = compileMillis;
+			this.evaluations = evaluations;
+			this.evaluationMillis = evaluationMillis;
+			this.abandoned = abandoned;
+		}
+
+		public String getEngineName() {
+			return engineName;
+		}
+
+		/**
+		 * @return the maximum number of dispatchers in the pool
+		 */
+		public int getMaxSize() {
+			return maxSize;
+		}
+
+		/**
+		 * @return the number of dispatchers that exist, leased or idle
+		 */
+		public int getCreated() {
+			return created;
+		}
+
+		/**
+		 * @return the number of dispatchers that are leased
+		 */
+		public int getLeased() {
+			return leased;
+		}
+
+		/**
+		 * @return the number of dispatchers waiting in the pool
+		 */
+		public int getIdle() {
+			return idle;
+		}
+
+		/**
+		 * @return the total number of leases
+		 */
+		public long getLeases() {
+			return leases;
+		}
+
+		/**
+		 * @return the number of leases that had to wait for a dispatcher
+		 */
+		public long getWaits() {
+			return waits;
+		}
+
+		/**
+		 * @return the total time spent waiting for dispatchers
+		 */
+		public long getWaitMillis() {
+			return waitMillis;
+		}
+
+		/**
+		 * @return the number of times check code was compiled, which is once per check and dispatcher
+		 */
+		public long getCompilations() {
+			return compilations;
+		}
+
+		/**
+		 * @return the total time spent compiling check code
+		 */
+		public long getCompileMillis() {
+			return compileMillis;
+		}
+
+		/**
+		 * @return the number of times check code was run
+		 */
+		public long getEvaluations() {
+			return evaluations;
+		}
+
+		/**
+		 * @return the total time spent running check code, not including compilation
+		 */
+		public long getEvaluationMillis() {
+			return evaluationMillis;
+		}
+
+		/**
+		 * @return the number of dispatchers that were discarded because a check timed out
+		 */
+		public long getAbandoned() {
+			return abandoned;
+		}
+
+		@Override
+		public String toString() {
+			return engineName + ": " + leased + " leased, " + idle + " idle of " + maxSize
+					+ ", " + leases + " leases, " + waits + " waits (" + waitMillis + " ms)"
+					+ ", " + compilations + " compilations (" + compileMillis + " ms)"
+					+ ", " + evaluations + " evaluations (" + evaluationMillis + " ms)"
+					+ ", " + abandoned + " abandoned";
+		}
+	}
+
+}
@@ -1,46 +1,131 @@
 package edu.ucsb.nceas.mdqengine.dispatch;
 
+import java.beans.BeanInfo;
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.script.ScriptException;
 
-import org.apache.commons.beanutils.BeanUtils;
+import org.apache.commons.beanutils.ConvertUtils;
 
 import edu.ucsb.nceas.mdqengine.model.Result;
 
 public class JavaDispatcher extends Dispatcher {
-		
+
+	// the invokers of the check classes that have been dispatched, by class name
+	private static Map<String, Invoker> invokers = new ConcurrentHashMap<String, Invoker>();
+
+	@Override
+	public Result dispatch(Map<String, Object> names, String className, String checkId) throws ScriptException {
+		// nothing to compile
+		return dispatch(names, className);
+	}
+
 	@Override
 	public Result dispatch(Map<String, Object> names, String className) throws ScriptException {
 
 		Result result = null;
 		try {
-			// create instance of the given class - must be impl of Callable<String>
-			Class clazz = Class.forName(className);
+			Invoker invoker = getInvoker(className);
 			log.debug("Calling class: " + className);
-			Callable<Result> runner = (Callable<Result>) clazz.newInstance();
+
+			// create instance of the given class - must be impl of Callable<Result>
+			Callable<Result> runner = invoker.create();
 			// set the properties from name/value Map
 			for (Entry<String, Object> entry: names.entrySet()) {
 				log.trace("Setting property: " + entry.getKey() + "=" + entry.getValue());
-				BeanUtils.setProperty(runner, entry.getKey(), entry.getValue());
+				invoker.set(runner, entry.getKey(), entry.getValue());
 			}
 			// call the bean, blocking for results
-			ExecutorService exec = Executors.newSingleThreadExecutor();
-			Future<Result> future = exec.submit(runner);
-			result = future.get();
-			
-		} catch (Exception e) {
-			throw new ScriptException(e);
+			result = runner.call();
+
+		} catch (Throwable e) {
+			throw new ScriptException(e instanceof Exception ? (Exception) e : new Exception(e));
 		}
-		
+
 		log.debug("Result: " + result.getStatus());
 
 		return result;
 	}
 
+	private static Invoker getInvoker(String className) throws ClassNotFoundException, IntrospectionException,
+			NoSuchMethodException, IllegalAccessException {
+		Invoker invoker = invokers.get(className);
+		if (invoker == null) {
+			invoker = new Invoker(Class.forName(className));
+			invokers.put(className, invoker);
+		}
+		return invoker;
+	}
+
+	/*
+	 * The constructor and property setters of a check class, looked up once
+	 */
+	private static class Invoker {
+
+		private MethodHandle constructor;
+
+		private Map<String, MethodHandle> setters = new HashMap<String, MethodHandle>();
+
+		private Map<String, Class<?>> types = new HashMap<String, Class<?>>();
+
+		private Invoker(Class<?> clazz) throws IntrospectionException, NoSuchMethodException, IllegalAccessException {
+			MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+			constructor = lookup.findConstructor(clazz, MethodType.methodType(void.class))
+					.asType(MethodType.methodType(Callable.class));
+
+			BeanInfo info = Introspector.getBeanInfo(clazz);
+			for (PropertyDescriptor property: info.getPropertyDescriptors()) {
+				if (property.getWriteMethod() == null) {
+					continue;
+				}
+				Class<?> type = property.getPropertyType();
+				MethodHandle setter = lookup.unreflect(property.getWriteMethod())
+						.asType(MethodType.methodType(void.class, Object.class, Object.class));
+				setters.put(property.getName(), setter);
+				types.put(property.getName(), type);
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		private Callable<Result> create() throws Throwable {
+			return (Callable<Result>) constructor.invoke();
+		}
+
+		/*
+		 * Set a property, converting the value the way BeanUtils would if it is not of the
+		 * property's type. Variables that the bean has no property for are skipped.
+		 */
+		private void set(Object bean, String name, Object value) throws Throwable {
+			MethodHandle setter = setters.get(name);
+			if (setter == null) {
+				return;
+			}
+			Class<?> type = types.get(name);
+			if (!isAssignable(type, value)) {
+				value = ConvertUtils.convert(value, type);
+			}
+			setter.invoke(bean, value);
+		}
+
+		private static boolean isAssignable(Class<?> type, Object value) {
+			if (value == null) {
+				return !type.isPrimitive();
+			}
+			if (type.isPrimitive()) {
+				return MethodType.methodType(type).wrap().returnType().isInstance(value);
+			}
+			return type.isInstance(value);
+		}
+	}
+
 }
@@ -0,0 +1,388 @@
+package edu.ucsb.nceas.mdqengine.dispatch;
+
+import edu.ucsb.nceas.mdqengine.model.Output;
+import edu.ucsb.nceas.mdqengine.model.Result;
+import edu.ucsb.nceas.mdqengine.model.Status;
+
+import javax.script.ScriptException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Runs the built-in rules of the 'native' environment in Java, without a script engine. The code
+ * of a check is one or more rules, one per line or separated by ';', that all have to hold for
+ * the check to succeed. A rule names the selector it tests, followed by its arguments:
+ * <ul>
+ * <li>nonEmpty(x) - x has a value that is not blank</li>
+ * <li>minCount(x, n) - x has at least n values</li>
+ * <li>maxCount(x, n) - x has at most n values</li>
+ * <li>matchesRegex(x, "regex") - x has a value, and every value matches the regex</li>
+ * <li>lengthBetween(x, min, max) - x has a value, and every value is min to max characters long</li>
+ * </ul>
+ * A selector that found nothing has no values, and a list has a value for each item that is
+ * not null.
+ */
+public class NativeDispatcher extends Dispatcher {
+
+	// the parsed rules of the code that has been dispatched
+	private static Map<String, List<Rule>> parsed = new ConcurrentHashMap<String, List<Rule>>();
+
+	@Override
+	public Result dispatch(Map<String, Object> variables, String code, String checkId) throws ScriptException {
+		List<Rule> rules = parse(code);
+		long start = System.nanoTime();
+
+		Result result = new Result();
+		result.setStatus(Status.SUCCESS);
+		List<Output> outputs = new ArrayList<Output>();
+		for (Rule rule: rules) {
+			String failure = rule.test(variables);
+			if (failure != null) {
+				result.setStatus(Status.FAILURE);
+				outputs.add(new Output(failure));
+			}
+		}
+		if (outputs.isEmpty()) {
+			outputs.add(new Output("true"));
+		}
+		result.setOutput(outputs);
+
+		long elapsed = System.nanoTime() - start;
+		DispatcherPool.recordEvaluation(engineName, elapsed);
+		log.debug("Evaluated " + (checkId != null ? "check " + checkId : "rules") + " in " + elapsed / 1000 + " us");
+		return result;
+	}
+
+	/**
+	 * Rules are evaluated on the calling thread whatever the timeout, as they only make a pass
+	 * over the values
+	 */
+	@Override
+	public Result dispatch(Map<String, Object> variables, String code, String checkId, long timeout) throws ScriptException {
+		return dispatch(variables, code, checkId);
+	}
+
+	@Override
+	public List<Result> dispatchBatch(List<Map<String, Object>> variables, String code, String checkId, long timeout)
+			throws ScriptException {
+		return dispatchBatch(variables, code, checkId);
+	}
+
+	/*
+	 * The rules of the code, parsing it the first time it is seen
+	 */
+	private List<Rule> parse(String code) throws ScriptException {
+		if (code == null) {
+			throw new ScriptException("No rules to evaluate");
+		}
+		List<Rule> rules = parsed.get(code);
+		if (rules == null) {
+			long start = System.nanoTime();
+			rules = new RuleParser(code).parse();
+			DispatcherPool.recordCompilation(engineName, System.nanoTime() - start);
+			parsed.put(code, rules);
+		}
+		return rules;
+	}
+
+	/*
+	 * The values of a variable: none for null, the items of a list that are not null, or the
+	 * value itself
+	 */
+	private static List<?> values(Object value) {
+		if (value == null) {
+			return Collections.emptyList();
+		}
+		if (value instanceof List) {
+			List<Object> values = new ArrayList<Object>();
+			for (Object item: (List<?>) value) {
+				if (item != null) {
+					values.add(item);
+				}
+			}
+			return values;
+		}
+		return Collections.singletonList(value);
+	}
+
+	private static abstract class Rule {
+
+		protected final String variable;
+
+		protected Rule(String variable) {
+			this.variable = variable;
+		}
+
+		/*
+		 * Test the rule, returning null if it holds, or why it does not
+		 */
+		protected String test(Map<String, Object> variables) {
+			return test(values(variables.get(variable)));
+		}
+
+		protected abstract String test(List<?> values);
+	}
+
+	private static class NonEmpty extends Rule {
+
+		private NonEmpty(String variable) {
+			super(variable);
+		}
+
+		@Override
+		protected String test(List<?> values) {
+			for (Object value: values) {
+				if (!value.toString().trim().isEmpty()) {
+					return null;
+				}
+			}
+			return variable + " is empty";
+		}
+	}
+
+	private static class MinCount extends Rule {
+
+		private final int min;
+
+		private MinCount(String variable, int min) {
+			super(variable);
+			this.min = min;
+		}
+
+		@Override
+		protected String test(List<?> values) {
+			if (values.size() >= min) {
+				return null;
+			}
+			return variable + " has " + values.size() + " values, at least " + min + " are required";
+		}
+	}
+
+	private static class MaxCount extends Rule {
+
+		private final int max;
+
+		private MaxCount(String variable, int max) {
+			super(variable);
+			this.max = max;
+		}
+
+		@Override
+		protected String test(List<?> values) {
+			if (values.size() <= max) {
+				return null;
+			}
+			return variable + " has " + values.size() + " values, at most " + max + " are allowed";
+		}
+	}
+
+	private static class MatchesRegex extends Rule {
+
+		private final Pattern pattern;
+
+		private MatchesRegex(String variable, Pattern pattern) {
+			super(variable);
+			this.pattern = pattern;
+		}
+
+		@Override
+		protected String test(List<?> values) {
+			if (values.isEmpty()) {
+				return variable + " has no value to match";
+			}
+			for (Object value: values) {
+				if (!pattern.matcher(value.toString()).matches()) {
+					return "The " + variable + " '" + value + "' does not match " + pattern.pattern();
+				}
+			}
+			return null;
+		}
+	}
+
+	private static class LengthBetween extends Rule {
+
+		private final int min;
+
+		private final int max;
+
+		private LengthBetween(String variable, int min, int max) {
+			super(variable);
+			this.min = min;
+			this.max = max;
+		}
+
+		@Override
+		protected String test(List<?> values) {
+			if (values.isEmpty()) {
+				return variable + " has no value to measure";
+			}
+			for (Object value: values) {
+				int length = value.toString().length();
+				if (length < min || length > max) {
+					return "The " + variable + " is " + length + " characters long, it should be " + min + " to " + max;
+				}
+			}
+			return null;
+		}
+	}
+
+	/*
+	 * Parses rules of the form name(variable, argument, ...), where an argument is a whole number
+	 * or a double-quoted string in which \" and \\ are escapes
+	 */
+	private static class RuleParser {
+
+		private final String code;
+
+		private int position = 0;
+
+		private RuleParser(String code) {
+			this.code = code;
+		}
+
+		private List<Rule> parse() throws ScriptException {
+			List<Rule> rules = new ArrayList<Rule>();
+			skipSeparators();
+			while (position < code.length()) {
+				rules.add(parseRule());
+				skipSpace();
+				if (position < code.length() && !isSeparator(code.charAt(position))) {
+					throw error("Expected the end of the rule");
+				}
+				skipSeparators();
+			}
+			if (rules.isEmpty()) {
+				throw new ScriptException("No rules to evaluate");
+			}
+			return rules;
+		}
+
+		private Rule parseRule() throws ScriptException {
+			String name = parseName();
+			expect('(');
+			String variable = parseName();
+			List<Object> arguments = new ArrayList<Object>();
+			skipSpace();
+			while (position < code.length() && code.charAt(position) == ',') {
+				position++;
+				arguments.add(parseArgument());
+				skipSpace();
+			}
+			expect(')');
+
+			if (name.equals("nonEmpty")) {
+				checkArguments(name, arguments);
+				return new NonEmpty(variable);
+			} else if (name.equals("minCount")) {
+				checkArguments(name, arguments, Integer.class);
+				return new MinCount(variable, (Integer) arguments.get(0));
+			} else if (name.equals("maxCount")) {
+				checkArguments(name, arguments, Integer.class);
+				return new MaxCount(variable, (Integer) arguments.get(0));
+			} else if (name.equals("matchesRegex")) {
+				checkArguments(name, arguments, String.class);
+				try {
+					return new MatchesRegex(variable, Pattern.compile((String) arguments.get(0)));
+				} catch (PatternSyntaxException e) {
+					throw new ScriptException("Invalid regex in " + name + ": " + e.getMessage());
+				}
+			} else if (name.equals("lengthBetween")) {
+				checkArguments(name, arguments, Integer.class, Integer.class);
+				return new LengthBetween(variable, (Integer) arguments.get(0), (Integer) arguments.get(1));
+			}
+			throw new ScriptException("Unknown rule: " + name);
+		}
+
+		private void checkArguments(String name, List<Object> arguments, Class<?>... types) throws ScriptException {
+			boolean valid = arguments.size() == types.length;
+			for (int i = 0; valid && i < types.length; i++) {
+				valid = types[i].isInstance(arguments.get(i));
+			}
+			if (!valid) {
+				StringBuilder expected = new StringBuilder(name).append("(variable");
+				for (Class<?> type: types) {
+					expected.append(type == String.class ? ", \"text\"" : ", number");
+				}
+				throw new ScriptException("Invalid arguments, expected " + expected.append(")"));
+			}
+		}
+
+		private String parseName() throws ScriptException {
+			skipSpace();
+			int start = position;
+			while (position < code.length() && (Character.isLetterOrDigit(code.charAt(position)) || code.charAt(position) == '_')) {
+				position++;
+			}
+			if (start == position) {
+				throw error("Expected a name");
+			}
+			return code.substring(start, position);
+		}
+
+		private Object parseArgument() throws ScriptException {
+			skipSpace();
+			if (position < code.length() && code.charAt(position) == '"') {
+				StringBuilder value = new StringBuilder();
+				position++;
+				while (position < code.length() && code.charAt(position) != '"') {
+					char c = code.charAt(position++);
+					if (c == '\\' && position < code.length()
+							&& (code.charAt(position) == '"' || code.charAt(position) == '\\')) {
+						c = code.charAt(position++);
+					}
+					value.append(c);
+				}
+				expect('"');
+				return value.toString();
+			}
+			int start = position;
+			while (position < code.length() && Character.isDigit(code.charAt(position))) {
+				position++;
+			}
+			if (start == position) {
+				throw error("Expected a number or a quoted string");
+			}
+			try {
+				return Integer.valueOf(code.substring(start, position));
+			} catch (NumberFormatException e) {
+				throw error("Number is too large");
+			}
+		}
+
+		private void expect(char c) throws ScriptException {
+			if (c != '"') {
+				skipSpace();
+			}
+			if (position >= code.length() || code.charAt(position) != c) {
+				throw error("Expected '" + c + "'");
+			}
+			position++;
+		}
+
+		private void skipSpace() {
+			while (position < code.length() && (code.charAt(position) == ' ' || code.charAt(position) == '\t')) {
+				position++;
+			}
+		}
+
+		private void skipSeparators() {
+			while (position < code.length() && (Character.isWhitespace(code.charAt(position)) || isSeparator(code.charAt(position)))) {
+				position++;
+			}
+		}
+
+		private static boolean isSeparator(char c) {
+			return c == ';' || c == '\n' || c == '\r';
+		}
+
+		private ScriptException error(String message) {
+			return new ScriptException(message + " at position " + position + " of rule code: " + code.trim());
+		}
+	}
+
+}
@@ -1,29 +1,345 @@
 package edu.ucsb.nceas.mdqengine.dispatch;
 
+import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import javax.script.ScriptException;
 
-import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.FileUtils;
 
 import edu.ucsb.nceas.mdqengine.model.Output;
 import edu.ucsb.nceas.mdqengine.model.Result;
 import edu.ucsb.nceas.mdqengine.model.Status;
 import edu.ucsb.nceas.mdqengine.serialize.JsonMarshaller;
 
+/**
+ * Runs checks with Rscript. Variables and results are exchanged as JSON over the standard input
+ * and output of an R process (see {@link RWorker}). By default a process is started for each
+ * dispatch, as with a script of its own. If warm processes are enabled with
+ * {@link #setWorkerOptions(int, long)}, pooled dispatchers keep their process running for the next
+ * check instead: every check still gets an environment of its own, but anything a check changes
+ * outside of it, such as options or loaded packages, is seen by the checks after it. Only if the server
+ * script cannot be started is a check run as a script of its own, with the variables and result
+ * passed in temp files. A check that times out has its process killed, so the dispatcher itself
+ * can be used again.
+ */
 public class RDispatcher extends Dispatcher {
+	
+	// the number of checks a worker process runs before it is replaced, 0 to not keep processes
+	private static volatile int maxWorkerRequests = 0;
+	
+	// how long an R process can take to run a request before it is killed
+	private static volatile long workerTimeout = TimeUnit.MINUTES.toMillis(10);
+	
+	// the warm R process of a pooled dispatcher
+	private RWorker worker = null;
+	
+	// set if the R server process cannot be started, checks are then run with a script each
+	private boolean workerUnavailable = false;
 		
+	@Override
+	public Result dispatch(Map<String, Object> names, String code, String checkId) throws ScriptException {
+		// nothing to compile
+		return dispatch(names, code);
+	}
+
 	@Override
 	public Result dispatch(Map<String, Object> names, String code) throws ScriptException {
+		return dispatch(names, code, null, 0);
+	}
+	
+	/**
+	 * Run a check, killing the R process if it takes longer than the timeout
+	 */
+	@Override
+	public Result dispatch(Map<String, Object> names, String code, String checkId, long timeout) throws ScriptException {
+		
+		RWorker current = this.acquireWorker();
+		if (current == null) {
+			return this.dispatchScript(names, code, timeout);
+		}
+		
+		Map<String, Object> request = new HashMap<String, Object>();
+		request.put("code", code);
+		request.put("vars", names);
+		
+		Result result = null;
+		try {
+			String response = current.request(JsonMarshaller.toJson(request), getTimeout(timeout));
+			result = (Result) JsonMarshaller.fromJson(response, Result.class);
+		} catch (Exception e) {
+			log.warn("R check failed: " + e.getMessage());
+			result = new Result();
+			result.setStatus(Status.ERROR);
+			result.setOutput(new Output(e.getMessage()));
+		} finally {
+			this.releaseWorker(current);
+		}
+		
+		result.setTimestamp(Calendar.getInstance().getTime());
+		
+		log.debug("Result status: " + result.getStatus());
+		log.debug("Result output: " + result.getOutput());
+		
+		return result;
+	}
+	
+	/**
+	 * Run the code once for each set of variables with a single R invocation
+	 */
+	@Override
+	public List<Result> dispatchBatch(List<Map<String, Object>> variables, String code, String checkId) throws ScriptException {
+		return this.dispatchBatch(variables, code, checkId, 0);
+	}
+	
+	/**
+	 * Run the code once for each set of variables with a single R invocation, which has the
+	 * timeout of each run for every one of them. If the invocation fails as a whole, e.g. because
+	 * one of the runs did not complete in time, the runs are repeated one by one, so that only
+	 * the runs that fail on their own report an error.
+	 */
+	@Override
+	public List<Result> dispatchBatch(List<Map<String, Object>> variables, String code, String checkId, long timeout)
+			throws ScriptException {
+		List<String> codes = Collections.nCopies(variables.size(), code);
+		if (variables.size() > 1) {
+			RWorker current = this.acquireWorker();
+			if (current != null) {
+				try {
+					Result[] batch = this.request(current, new HashMap<String, Object>(), variables, codes,
+							getTimeout(timeout) * variables.size());
+					List<Result> results = new ArrayList<Result>();
+					for (Result result: batch) {
+						result.setTimestamp(Calendar.getInstance().getTime());
+						results.add(result);
+					}
+					return results;
+				} catch (Exception e) {
+					log.warn("R checks failed together, running them one by one: " + e.getMessage());
+				} finally {
+					this.releaseWorker(current);
+				}
+			}
+		}
+		List<Result> results = new ArrayList<Result>();
+		for (Map<String, Object> names: variables) {
+			results.add(this.dispatchBatch(new HashMap<String, Object>(), Collections.singletonList(names),
+					Collections.singletonList(code), timeout).get(0));
+		}
+		return results;
+	}
+	
+	/**
+	 * Run several checks with a single R invocation. The shared variables are sent once, and each
+	 * check is evaluated in an environment of its own that has its own variables.
+	 * @param shared the variables that every check uses
+	 * @param variables the variables of each check
+	 * @param codes the code of each check
+	 * @return the result of each check, in the same order as the code
+	 * @throws ScriptException
+	 */
+	public List<Result> dispatchBatch(Map<String, Object> shared, List<Map<String, Object>> variables, List<String> codes)
+			throws ScriptException {
+		return this.dispatchBatch(shared, variables, codes, 0);
+	}
+	
+	/**
+	 * Run several checks with a single R invocation, killing the R process if they take longer
+	 * than the timeout. If the R server cannot be started the checks are run one by one.
+	 * @param shared the variables that every check uses
+	 * @param variables the variables of each check
+	 * @param codes the code of each check
+	 * @param timeout how long all of the checks can take in milliseconds, 0 for the worker timeout
+	 * @return the result of each check, in the same order as the code
+	 * @throws ScriptException
+	 */
+	public List<Result> dispatchBatch(Map<String, Object> shared, List<Map<String, Object>> variables, List<String> codes,
+			long timeout) throws ScriptException {
+		
+		RWorker current = this.acquireWorker();
+		if (current == null) {
+			List<Result> results = new ArrayList<Result>();
+			long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(getTimeout(timeout));
+			for (int i = 0; i < codes.size(); i++) {
+				Map<String, Object> names = new HashMap<String, Object>(variables.get(i));
+				names.putAll(shared);
+				long remaining = Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+				try {
+					results.add(this.dispatchScript(names, codes.get(i), remaining));
+				} catch (ScriptException e) {
+					// as in a single invocation, a failing check does not stop the others
+					Result result = new Result();
+					result.setStatus(Status.ERROR);
+					result.setOutput(new Output(e.getMessage()));
+					result.setTimestamp(Calendar.getInstance().getTime());
+					results.add(result);
+				}
+			}
+			return results;
+		}
+		
+		Result[] batch = null;
+		String error = null;
+		try {
+			batch = this.request(current, shared, variables, codes, getTimeout(timeout));
+		} catch (Exception e) {
+			error = e.getMessage();
+		} finally {
+			this.releaseWorker(current);
+		}
+		if (error != null) {
+			log.warn("R checks failed: " + error);
+		}
+		
+		List<Result> results = new ArrayList<Result>();
+		for (int i = 0; i < codes.size(); i++) {
+			Result result = null;
+			if (error == null) {
+				result = batch[i];
+			} else {
+				result = new Result();
+				result.setStatus(Status.ERROR);
+				result.setOutput(new Output(error));
+			}
+			result.setTimestamp(Calendar.getInstance().getTime());
+			results.add(result);
+		}
+		log.debug("Ran " + codes.size() + " R checks in one request");
+		return results;
+	}
+	
+	/*
+	 * Send several checks to an R process as one request, which can take up to the timeout in milliseconds
+	 */
+	private Result[] request(RWorker current, Map<String, Object> shared, List<Map<String, Object>> variables,
+			List<String> codes, long timeout) throws Exception {
+		// the checks are keyed rather than in an array, so that R does not turn them into a data frame
+		Map<String, Object> checks = new LinkedHashMap<String, Object>();
+		for (int i = 0; i < codes.size(); i++) {
+			Map<String, Object> check = new HashMap<String, Object>();
+			check.put("code", codes.get(i));
+			check.put("vars", variables.get(i));
+			checks.put("check" + i, check);
+		}
+		Map<String, Object> request = new HashMap<String, Object>();
+		request.put("vars", shared);
+		request.put("checks", checks);
+		
+		String response = current.request(JsonMarshaller.toJson(request), timeout);
+		Result[] batch = (Result[]) JsonMarshaller.fromJson(response, Result[].class);
+		if (batch == null || batch.length != codes.size()) {
+			throw new IOException("R returned " + (batch == null ? 0 : batch.length) + " results for " + codes.size() + " checks");
+		}
+		return batch;
+	}
+	
+	/*
+	 * The time a request can take, which is never more than the worker timeout
+	 */
+	private static long getTimeout(long timeout) {
+		return timeout > 0 ? Math.min(timeout, workerTimeout) : workerTimeout;
+	}
+	
+	/*
+	 * The warm process of a pooled dispatcher, a process for this dispatch only, or null if the
+	 * server script cannot be started and checks are to be run with a script each
+	 */
+	private RWorker acquireWorker() {
+		if (workerUnavailable) {
+			return null;
+		}
+		// only pooled dispatchers keep a process, as they are the ones that will be reused
+		boolean keep = pooled && maxWorkerRequests > 0;
+		if (keep && worker != null) {
+			if (worker.isAlive()) {
+				return worker;
+			}
+			worker.close();
+			worker = null;
+		}
+		try {
+			RWorker started = new RWorker();
+			if (keep) {
+				worker = started;
+			}
+			return started;
+		} catch (IOException e) {
+			log.warn("Could not start R worker, running checks with Rscript: " + e.getMessage());
+			workerUnavailable = true;
+			return null;
+		}
+	}
+	
+	/*
+	 * Stop a process that was started for one dispatch, and replace the warm process when it has
+	 * run its share of checks or has failed
+	 */
+	private void releaseWorker(RWorker current) {
+		if (current != worker) {
+			current.close();
+		} else if (!current.isAlive() || current.getRequests() >= maxWorkerRequests) {
+			log.debug("Recycling R worker after " + current.getRequests() + " requests");
+			current.close();
+			worker = null;
+		}
+	}
+	
+	/**
+	 * The variables of an R check stay in its R process, so there are none to export
+	 * @return null
+	 */
+	@Override
+	public Map<String, Object> exportVariables(Collection<String> names) {
+		return null;
+	}
+	
+	/**
+	 * Stop the worker process, if there is one
+	 */
+	@Override
+	public void close() {
+		if (worker != null) {
+			worker.close();
+			worker = null;
+		}
+	}
+	
+	/**
+	 * Set how R processes are used. The options apply to all of the dispatchers of the process.
+	 * @param maxRequests the number of checks a pooled dispatcher's process runs before it is
+	 * replaced by a new one, or 0 (the default) to start an R process for every dispatch
+	 * @param timeoutMillis how long a process can take to run a request before it is killed
+	 */
+	public static void setWorkerOptions(int maxRequests, long timeoutMillis) {
+		maxWorkerRequests = maxRequests;
+		workerTimeout = timeoutMillis;
+	}
+
+	/*
+	 * Run the check in its own Rscript process, passing the variables and result in temp files.
+	 * This is the fallback for when the server script cannot be started. The output of the
+	 * process is read by threads of its own, so that it cannot block on a full pipe.
+	 */
+	private Result dispatchScript(Map<String, Object> names, String code, long timeout) throws ScriptException {
 
 		Result result = null;
 		File script = null;
 		File input = null;
 		File output = null;
+		Process p = null;
 		
 		String preCode = 
 				"library(jsonlite, quietly=TRUE); \n"
@@ -54,11 +370,11 @@ public class RDispatcher extends Dispatcher {
 			String combinedCode = preCode + code + postCode;
 			
 			// write code to script file
-			IOUtils.write(combinedCode, new FileOutputStream(script), "UTF-8");
+			FileUtils.writeStringToFile(script, combinedCode, "UTF-8");
 
 			// write input variables to json
 			String inputJson = JsonMarshaller.toJson(names);
-			IOUtils.write(inputJson, new FileOutputStream(input), "UTF-8");
+			FileUtils.writeStringToFile(input, inputJson, "UTF-8");
 			
 			// run the process
 			ProcessBuilder pb = new ProcessBuilder(
@@ -69,30 +385,43 @@ public class RDispatcher extends Dispatcher {
 					output.getAbsolutePath());
 			
 			pb.environment().put(MDQCache.DIRECTORY_PROPERTY, MDQCache.getCacheDir());
-			Process p = pb.start();
-			int ret = p.waitFor();
-			
-			String stdOut = IOUtils.toString(p.getInputStream(), "UTF-8");
-			String stdErr = IOUtils.toString(p.getErrorStream(), "UTF-8");
-
-			if (ret > 0) {
-				// report an error
+			p = pb.start();
+			StringBuilder errors = new StringBuilder();
+			Thread outputReader = drain(p.getInputStream(), "R output: ", null);
+			Thread errorReader = drain(p.getErrorStream(), "R error output: ", errors);
+			long limit = getTimeout(timeout);
+			if (!p.waitFor(limit, TimeUnit.MILLISECONDS)) {
+				result = new Result();
+				result.setStatus(Status.ERROR);
+				result.setOutput(new Output("R check did not complete within " + limit + " ms"));
+			} else if (p.exitValue() > 0) {
+				// report an error, once all of it has been read
+				errorReader.join(workerTimeout);
 				result = new Result();
 				result.setStatus(Status.ERROR);
-				result.setOutput(new Output(stdErr));
+				synchronized (errors) {
+					result.setOutput(new Output(errors.toString()));
+				}
 			} else {
+				outputReader.join(workerTimeout);
 				// read result from output
-				String jsonOutput = IOUtils.toString(new FileInputStream(output), "UTF-8");
+				String jsonOutput = FileUtils.readFileToString(output, "UTF-8");
 				result = (Result) JsonMarshaller.fromJson(jsonOutput, Result.class);
 			}
 						
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ScriptException("Interrupted while waiting for Rscript");
 		} catch (Exception e) {
 			throw new ScriptException(e);
 		} finally {
 			// clean up
-			script.delete();
-			input.delete();
-			output.delete();
+			if (p != null) {
+				p.destroy();
+			}
+			FileUtils.deleteQuietly(script);
+			FileUtils.deleteQuietly(input);
+			FileUtils.deleteQuietly(output);
 		}
 		
 		result.setTimestamp(Calendar.getInstance().getTime());
@@ -103,4 +432,35 @@ public class RDispatcher extends Dispatcher {
 		return result;
 	}
 
+	/*
+	 * Read a stream of the process on a thread of its own, logging each line and keeping up to
+	 * 64k characters of it if there is a target
+	 */
+	private Thread drain(final InputStream stream, final String prefix, final StringBuilder target) {
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8));
+					String line = null;
+					while ((line = reader.readLine()) != null) {
+						log.debug(prefix + line);
+						if (target != null) {
+							synchronized (target) {
+								if (target.length() < 64 * 1024) {
+									target.append(line).append('\n');
+								}
+							}
+						}
+					}
+				} catch (IOException e) {
+					log.debug("Rscript output closed: " + e.getMessage());
+				}
+			}
+		}, "mdq-rscript-out");
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+
 }
@@ -0,0 +1,216 @@
+package edu.ucsb.nceas.mdqengine.dispatch;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An Rscript process that runs the server script 'mdq-server.R', kept warm for many requests
+ * by a pooled {@link RDispatcher}, or started for a single dispatch by any other. Requests and responses are single lines of JSON on the
+ * standard input and output of the process, and the responses are prefixed with a marker that
+ * is unique to the process, so anything that a check prints is skipped, even if it does not end
+ * its output with a line break. Both output streams are read by their own threads, so a check
+ * that writes a lot cannot block on a full pipe.
+ */
+class RWorker {
+
+	private static Log log = LogFactory.getLog(RWorker.class);
+
+	private static final String SERVER_SCRIPT = "/code/mdq-server.R";
+
+	// the server script, copied from the classpath once to a file that Rscript can run
+	private static File serverScript = null;
+
+	// stands in for the end of the output in the response queue
+	private static final String END = new String("END");
+
+	// how much of the error output to keep for reporting a crash
+	private static final int MAX_ERROR_LENGTH = 64 * 1024;
+
+	private final Process process;
+
+	private final Writer input;
+
+	private final String marker = "mdq_" + UUID.randomUUID().toString() + ":";
+
+	private final BlockingQueue<String> responses = new LinkedBlockingQueue<String>();
+
+	private final StringBuilder errors = new StringBuilder();
+
+	private int requests = 0;
+
+	private volatile boolean closed = false;
+
+	/**
+	 * Start a worker process
+	 * @throws IOException if Rscript cannot be started
+	 */
+	RWorker() throws IOException {
+		ProcessBuilder pb = new ProcessBuilder(
+				"Rscript",
+				"--vanilla",
+				getServerScript().getAbsolutePath(),
+				marker);
+		pb.environment().put(MDQCache.DIRECTORY_PROPERTY, MDQCache.getCacheDir());
+		process = pb.start();
+		input = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8));
+
+		Thread outputReader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				readOutput();
+			}
+		}, "mdq-rworker-out");
+		outputReader.setDaemon(true);
+		outputReader.start();
+
+		Thread errorReader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				readErrors();
+			}
+		}, "mdq-rworker-err");
+		errorReader.setDaemon(true);
+		errorReader.start();
+	}
+
+	/**
+	 * Send a request and wait for its response. The worker is closed if it does not respond in
+	 * time or has exited.
+	 * @param request the request, as JSON without line breaks
+	 * @param timeout how long to wait for the response, in milliseconds
+	 * @return the response JSON
+	 * @throws IOException if the request could not be completed
+	 */
+	synchronized String request(String request, long timeout) throws IOException {
+		synchronized (errors) {
+			errors.setLength(0);
+		}
+		requests++;
+		try {
+			input.write(request);
+			input.write('\n');
+			input.flush();
+		} catch (IOException e) {
+			close();
+			throw new IOException("R worker is not accepting requests: " + getErrors(), e);
+		}
+
+		String response = null;
+		try {
+			response = responses.poll(timeout, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			close();
+			throw new InterruptedIOException("Interrupted while waiting for R worker");
+		}
+		if (response == null) {
+			close();
+			throw new IOException("R check did not complete within " + timeout + " ms");
+		}
+		if (response == END) {
+			close();
+			throw new IOException("R worker exited: " + getErrors());
+		}
+		return response;
+	}
+
+	/**
+	 * @return the number of requests this worker has been sent
+	 */
+	synchronized int getRequests() {
+		return requests;
+	}
+
+	boolean isAlive() {
+		if (closed) {
+			return false;
+		}
+		try {
+			process.exitValue();
+			return false;
+		} catch (IllegalThreadStateException e) {
+			return true;
+		}
+	}
+
+	/**
+	 * Stop the process. Closing its input ends the server loop, anything still running is killed.
+	 */
+	void close() {
+		closed = true;
+		IOUtils.closeQuietly(input);
+		process.destroy();
+	}
+
+	private void readOutput() {
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+			String line = null;
+			while ((line = reader.readLine()) != null) {
+				// the server starts a response on a new line, but look for the marker anywhere in case a check holds it up
+				int start = line.indexOf(marker);
+				if (start >= 0) {
+					if (start > 0) {
+						log.debug("R output: " + line.substring(0, start));
+					}
+					responses.add(line.substring(start + marker.length()));
+				} else {
+					log.debug("R output: " + line);
+				}
+			}
+		} catch (IOException e) {
+			log.debug("R worker output closed: " + e.getMessage());
+		} finally {
+			responses.add(END);
+		}
+	}
+
+	private void readErrors() {
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(process.getErrorStream(), StandardCharsets.UTF_8));
+			String line = null;
+			while ((line = reader.readLine()) != null) {
+				log.debug("R error output: " + line);
+				synchronized (errors) {
+					if (errors.length() < MAX_ERROR_LENGTH) {
+						errors.append(line).append('\n');
+					}
+				}
+			}
+		} catch (IOException e) {
+			log.debug("R worker error output closed: " + e.getMessage());
+		}
+	}
+
+	private String getErrors() {
+		synchronized (errors) {
+			return errors.toString();
+		}
+	}
+
+	private static synchronized File getServerScript() throws IOException {
+		if (serverScript == null || !serverScript.exists()) {
+			File script = File.createTempFile("mdq-server", ".R");
+			script.deleteOnExit();
+			InputStream source = RWorker.class.getResourceAsStream(SERVER_SCRIPT);
+			OutputStream target = new FileOutputStream(script);
+			try {
+				IOUtils.copy(source, target);
+			} finally {
+				IOUtils.closeQuietly(source);
+				IOUtils.closeQuietly(target);
+			}
+			serverScript = script;
+		}
+		return serverScript;
+	}
+
+}
@@ -0,0 +1,378 @@
+package edu.ucsb.nceas.mdqengine.filestore;
+
+import edu.ucsb.nceas.mdqengine.MDQconfig;
+import edu.ucsb.nceas.mdqengine.exception.MetadigFilestoreException;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.configuration2.ex.ConfigurationException;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A content-addressed store for payloads that are too large to send through RabbitMQ, such as
+ * large metadata documents and quality reports. A payload is written once, to a file named by
+ * the SHA-256 checksum of its content, in the 'claim' folder of the MetaDIG filestore. The
+ * message then carries only a claim: the checksum, which is the means to verify the payload when
+ * it is read back, and a reference of its own.
+ * <p>
+ * The same payload may be claimed by several messages, so each claim keeps a reference file next
+ * to the payload. The consumer of a message releases its claim once it has acknowledged the
+ * message, and the payload is deleted with its last reference. Writing a payload, releasing a
+ * claim and purging the store are done under a lock on the store, which is shared with the other
+ * processes that use the filestore.
+ * </p>
+ * <p>
+ * Payloads that are left without references are deleted when the store is purged, from time to
+ * time as new payloads are written. References are kept until they are released, unless
+ * 'claim.max.age' is set: then the references that are older than that many hours are taken to
+ * belong to messages that were lost, and are purged too.
+ * </p>
+ */
+public class ClaimCheckStore {
+
+    private static Log log = LogFactory.getLog(ClaimCheckStore.class);
+
+    private static final String ALGORITHM = "SHA-256";
+
+    // the checksum of the payload, and the reference of the claim
+    private static final Pattern CLAIM = Pattern.compile("([0-9a-f]{64})\\.([0-9a-f]{32})");
+
+    private static final Pattern CHECKSUM = Pattern.compile("[0-9a-f]{64}");
+
+    private static final String LOCK_FILE = ".lock";
+
+    // how often the store is purged, and how old a partly written payload has to be to be purged
+    private static final long PURGE_INTERVAL = TimeUnit.HOURS.toMillis(1);
+
+    // the lock file only keeps out other processes, the threads of this one wait here
+    private static final Object LOCK = new Object();
+
+    private static long lastPurge = 0;
+
+    private final File directory;
+
+    private final long maxAge;
+
+    public ClaimCheckStore() throws MetadigFilestoreException {
+        try {
+            MDQconfig cfg = new MDQconfig();
+            this.directory = new File(cfg.getString("metadig.store.directory"), StorageType.CLAIM.toString());
+            this.maxAge = TimeUnit.HOURS.toMillis(cfg.getInt("claim.max.age", 0));
+        } catch (ConfigurationException | IOException ex) {
+            log.error(ex.getMessage());
+            throw new MetadigFilestoreException("Unable to create claim check store", ex);
+        }
+    }
+
+    /**
+     * Create a store in a directory
+     * @param directory the directory the payloads are written to
+     * @param maxAge how long claims are kept when they are not released, in milliseconds, or 0 to
+     *               keep them until they are released
+     */
+    public ClaimCheckStore(File directory, long maxAge) {
+        this.directory = directory;
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * Store a payload, unless the same payload has been stored already, and claim it
+     * @param payload the content to store
+     * @return the claim: the SHA-256 checksum of the payload in hex, a dot, and the reference of the claim
+     * @throws IOException if the payload cannot be written
+     */
+    public String put(byte[] payload) throws IOException {
+        final String checksum = DigestUtils.sha256Hex(payload);
+        final String claim = checksum + "." + UUID.randomUUID().toString().replace("-", "");
+        final File file = getPayloadFile(checksum);
+        final File folder = file.getParentFile();
+        folder.mkdirs();
+        // write it under another name first, so that readers never see a partial payload, and
+        // outside of the lock, so that a large payload doesn't hold up the other processes
+        final File temp = File.createTempFile(checksum, ".tmp", folder);
+        try {
+            Files.write(temp.toPath(), payload);
+            locked(new Action<Void>() {
+                @Override
+                public Void run() throws IOException {
+                    if (file.exists()) {
+                        log.debug("Claimed stored payload " + checksum);
+                    } else {
+                        folder.mkdirs();
+                        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                        log.debug("Stored " + payload.length + " bytes as payload " + checksum);
+                    }
+                    Files.createFile(getReferenceFile(claim).toPath());
+                    return null;
+                }
+            });
+        } finally {
+            temp.delete();
+        }
+        purgeIfDue();
+        return claim;
+    }
+
+    public String put(String payload) throws IOException {
+        return put(payload.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Open a stored payload. Its checksum is verified once it has been read to the end, and a
+     * payload that does not match its claim fails with an IOException then.
+     * @param claim the claim that the payload was stored with
+     * @return the content of the payload
+     * @throws IOException if there is no payload for the claim
+     */
+    public InputStream open(final String claim) throws IOException {
+        final String checksum = getChecksum(claim);
+        File file = getPayloadFile(checksum);
+        if (!file.exists()) {
+            throw new FileNotFoundException("No payload for claim " + claim + ", it may have been released");
+        }
+        final MessageDigest digest = newDigest();
+        return new DigestInputStream(new BufferedInputStream(new FileInputStream(file)), digest) {
+
+            private boolean verified = false;
+
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b == -1) {
+                    verify();
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int length) throws IOException {
+                int count = super.read(bytes, offset, length);
+                if (count == -1) {
+                    verify();
+                }
+                return count;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                // the skipped bytes are read, so that they are part of the checksum
+                if (n <= 0) {
+                    return 0;
+                }
+                byte[] buffer = new byte[(int) Math.min(n, 8192)];
+                long skipped = 0;
+                while (skipped < n) {
+                    int count = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+                    if (count == -1) {
+                        break;
+                    }
+                    skipped += count;
+                }
+                return skipped;
+            }
+
+            @Override
+            public boolean markSupported() {
+                // bytes that are read again after a reset would be digested twice
+                return false;
+            }
+
+            @Override
+            public synchronized void mark(int readLimit) {
+            }
+
+            @Override
+            public synchronized void reset() throws IOException {
+                throw new IOException("mark/reset not supported");
+            }
+
+            private void verify() throws IOException {
+                if (!verified) {
+                    verified = true;
+                    if (!Hex.encodeHexString(digest.digest()).equals(checksum)) {
+                        throw new IOException("The payload of claim " + claim + " is damaged");
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Read a stored payload as text
+     * @param claim the claim that the payload was stored with
+     * @return the content of the payload
+     * @throws IOException if there is no payload for the claim, or it does not match the claim
+     */
+    public String getString(String claim) throws IOException {
+        InputStream input = open(claim);
+        try {
+            return IOUtils.toString(input, StandardCharsets.UTF_8);
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Release a claim, once the message that carried it has been acknowledged. The payload is deleted
+     * when no other claim refers to it.
+     * @param claim the claim that the payload was stored with
+     * @return true if the payload was deleted
+     * @throws IOException if the claim is invalid, or the store cannot be locked
+     */
+    public boolean release(final String claim) throws IOException {
+        final String checksum = getChecksum(claim);
+        final File reference = getReferenceFile(claim);
+        return locked(new Action<Boolean>() {
+            @Override
+            public Boolean run() {
+                if (!reference.delete()) {
+                    log.debug("Claim " + claim + " has been released already");
+                }
+                File file = getPayloadFile(checksum);
+                if (hasReferences(file.getParentFile(), checksum)) {
+                    return false;
+                }
+                return file.delete();
+            }
+        });
+    }
+
+    /**
+     * Delete the payloads that no claim refers to, after deleting the references that are older
+     * than the maximum age, if there is one
+     * @return the number of payloads deleted
+     * @throws IOException if the store cannot be locked
+     */
+    public int purge() throws IOException {
+        if (!directory.isDirectory()) {
+            return 0;
+        }
+        int deleted = locked(new Action<Integer>() {
+            @Override
+            public Integer run() {
+                long now = System.currentTimeMillis();
+                int deleted = 0;
+                File[] folders = directory.listFiles();
+                if (folders == null) {
+                    return 0;
+                }
+                for (File folder: folders) {
+                    File[] files = folder.listFiles();
+                    if (files == null) {
+                        continue;
+                    }
+                    // the references first, so that the payloads of the expired ones go too
+                    for (File file: files) {
+                        if (CLAIM.matcher(file.getName()).matches()) {
+                            if (maxAge > 0 && file.lastModified() < now - maxAge && file.delete()) {
+                                log.warn("Purged claim " + file.getName() + ", which was not released");
+                            }
+                        } else if (!CHECKSUM.matcher(file.getName()).matches()
+                                && file.lastModified() < now - PURGE_INTERVAL) {
+                            // a payload that was never finished
+                            file.delete();
+                        }
+                    }
+                    for (File file: files) {
+                        if (CHECKSUM.matcher(file.getName()).matches()
+                                && !hasReferences(folder, file.getName()) && file.delete()) {
+                            deleted++;
+                        }
+                    }
+                }
+                return deleted;
+            }
+        });
+        log.debug("Purged " + deleted + " payloads from " + directory);
+        return deleted;
+    }
+
+    private void purgeIfDue() {
+        synchronized (ClaimCheckStore.class) {
+            long now = System.currentTimeMillis();
+            if (now - lastPurge < PURGE_INTERVAL) {
+                return;
+            }
+            lastPurge = now;
+        }
+        try {
+            purge();
+        } catch (IOException e) {
+            log.warn("Unable to purge claim check store " + directory + ": " + e.getMessage());
+        }
+    }
+
+    private interface Action<T> {
+        T run() throws IOException;
+    }
+
+    /*
+     * Run an action under the lock of this process, then the lock on the store's lock file
+     */
+    private <T> T locked(Action<T> action) throws IOException {
+        synchronized (LOCK) {
+            directory.mkdirs();
+            try (FileChannel channel = FileChannel.open(new File(directory, LOCK_FILE).toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                 FileLock lock = channel.lock()) {
+                return action.run();
+            }
+        }
+    }
+
+    private static boolean hasReferences(File folder, String checksum) {
+        final String prefix = checksum + ".";
+        String[] references = folder.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(prefix) && CLAIM.matcher(name).matches();
+            }
+        });
+        return references != null && references.length > 0;
+    }
+
+    private static String getChecksum(String claim) throws IOException {
+        Matcher matcher = claim == null ? null : CLAIM.matcher(claim);
+        if (matcher == null || !matcher.matches()) {
+            throw new IOException("Invalid claim: " + claim);
+        }
+        return matcher.group(1);
+    }
+
+    /*
+     * Payloads and their references are spread over folders named by the first two characters of
+     * their checksums
+     */
+    private File getPayloadFile(String checksum) {
+        return new File(new File(directory, checksum.substring(0, 2)), checksum);
+    }
+
+    private File getReferenceFile(String claim) throws IOException {
+        return new File(getPayloadFile(getChecksum(claim)).getParentFile(), claim);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -5,7 +5,8 @@ public enum StorageType {
     GRAPH ("graph"),
     METADATA("metadata"),
     CODE("code"),
-    TMP("tmp");
+    TMP("tmp"),
+    CLAIM("claim");
 
     private String type;
 
@@ -25,6 +26,8 @@ public enum StorageType {
                 return "code";
             case TMP:
                 return "tmp";
+            case CLAIM:
+                return "claim";
         }
         return null;
     }
@@ -40,6 +43,8 @@ public enum StorageType {
             return StorageType.CODE;
         else if(value.equalsIgnoreCase(TMP.toString()))
             return StorageType.TMP;
+        else if(value.equalsIgnoreCase(CLAIM.toString()))
+            return StorageType.CLAIM;
         else
             return null;
     }
@@ -16,7 +16,7 @@ import java.util.List;
  */
 @XmlRootElement
 @XmlAccessorType(XmlAccessType.FIELD)
-@XmlType(propOrder = {"id", "name", "description", "type", "level", "environment", "code", "library", "inheritState", "selector", "dialect"})
+@XmlType(propOrder = {"id", "name", "description", "type", "level", "environment", "code", "library", "inheritState", "export", "selector", "dialect"})
 public class Check {
 	
 	/**
@@ -64,13 +64,14 @@ public class Check {
 	 * 'JavaScript' (the JavaScript engine)
 	 * 'python' (the Jython engine)
 	 * 'Java' (Java class implementations of Callable<Result>)
+	 * 'native' (built-in rules that are evaluated without a script engine, e.g. 'minCount(title, 1)')
 	 */
 	@XmlElement(required = false)
 	private String environment;
 
 	/**
 	 * The code for scripted environments (not 'Java') this is the code to be executed. When Check.environment is 'Java' this will be the fully qualified class
-	 * name of the Callable<Result> implementation.
+	 * name of the Callable<Result> implementation, and when it is 'native' the rules to test, see NativeDispatcher.
 	 * The script code can take a few different forms, but should minimally return some value that will be captured as a single Result.output.
 	 * The simplest form is just a series of script statements with the final statement returning the desired value for Result.output.
 	 * Alternatively, a call() function can be defined that returns the desired Result.output. This function will be called automatically if no output is found when executing the
@@ -98,6 +99,14 @@ public class Check {
 	@XmlElement(required = false)
 	private Boolean inheritState = false;
 	
+	/**
+	 * The names of the variables that a following check which inherits state can use when it runs in a different environment.
+	 * Only these variables are carried over, converted to the types of the other environment: strings, numbers, booleans and lists of those.
+	 * A following check in the same environment continues with the entire script environment and does not need them.
+	 */
+	@XmlElement(required = false)
+	private List<String> export;
+	
 	/**
 	 * Selectors are used to extract certain parts of the metadata document and make those values available to the Check.code.
 	 * Each selector should have a unique name within the same check since the Selector.name is used to create a global variable in the
@@ -121,6 +130,29 @@ public class Check {
 	@XmlElement(required = false)
 	private List<Dialect> dialect;
 
+	public Check() {}
+
+	/**
+	 * Create a copy of a check, for example so that a suite can override the level and type of
+	 * a referenced check without modifying the shared definition.
+	 * The selector, dialect, library and export lists are shared with the original check.
+	 * @param check the check to copy
+	 */
+	public Check(Check check) {
+		this.id = check.id;
+		this.name = check.name;
+		this.description = check.description;
+		this.type = check.type;
+		this.level = check.level;
+		this.environment = check.environment;
+		this.code = check.code;
+		this.library = check.library;
+		this.inheritState = check.inheritState;
+		this.export = check.export;
+		this.selector = check.selector;
+		this.dialect = check.dialect;
+	}
+
 	public String getId() {
 		return id;
 	}
@@ -212,6 +244,14 @@ public class Check {
 	public void setInheritState(Boolean inheritState) {
 		this.inheritState = inheritState;
 	}
+
+	public List<String> getExport() {
+		return export;
+	}
+
+	public void setExport(List<String> export) {
+		this.export = export;
+	}
 }
 
 
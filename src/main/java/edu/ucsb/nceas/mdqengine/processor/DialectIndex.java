@@ -0,0 +1,77 @@
+package edu.ucsb.nceas.mdqengine.processor;
+
+import edu.ucsb.nceas.mdqengine.model.Check;
+import edu.ucsb.nceas.mdqengine.model.Dialect;
+
+import java.util.*;
+
+/**
+ * The distinct dialect expressions of a set of checks. Suites typically repeat the same few
+ * dialect expressions ("is this EML", "is this ISO") in many checks, so each distinct expression
+ * gets a number, and each check the numbers of its dialects. A document then only has to be
+ * tested once for each number, and the applicability of a check is decided by looking up the
+ * outcomes for its numbers (see {@link XMLDialect#setDialectIndex(DialectIndex)}).
+ * <p>
+ * An index is built once, e.g. when a suite is prepared, and can then be shared by any number of
+ * documents and threads.
+ * </p>
+ */
+public class DialectIndex {
+
+	private List<String> expressions = new ArrayList<String>();
+
+	private Map<String, Integer> numbers = new HashMap<String, Integer>();
+
+	// the numbers of the dialects of each check, by check instance
+	private Map<Check, int[]> checks = new IdentityHashMap<Check, int[]>();
+
+	/**
+	 * Add the dialects of a check to the index
+	 * @param check the check, which is looked up by instance
+	 */
+	public void add(Check check) {
+		if (check == null || check.getDialect() == null || checks.containsKey(check)) {
+			return;
+		}
+		List<Dialect> dialects = check.getDialect();
+		int[] dialectNumbers = new int[dialects.size()];
+		for (int i = 0; i < dialects.size(); i++) {
+			String expression = dialects.get(i).getXpath();
+			Integer number = numbers.get(expression);
+			if (number == null) {
+				number = expressions.size();
+				expressions.add(expression);
+				numbers.put(expression, number);
+			}
+			dialectNumbers[i] = number;
+		}
+		checks.put(check, dialectNumbers);
+	}
+
+	/**
+	 * The numbers of the dialects of a check, in the same order as its dialects
+	 * @param check the check
+	 * @return the numbers, or null if the check has not been added or has no dialects
+	 */
+	public int[] getDialects(Check check) {
+		return checks.get(check);
+	}
+
+	/**
+	 * The expression with a given number
+	 * @param number the number of the expression
+	 * @return the dialect expression
+	 */
+	public String getExpression(int number) {
+		return expressions.get(number);
+	}
+
+	/**
+	 * The number of distinct dialect expressions
+	 * @return the size of the index
+	 */
+	public int size() {
+		return expressions.size();
+	}
+
+}
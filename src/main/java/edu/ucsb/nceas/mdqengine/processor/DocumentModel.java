@@ -0,0 +1,258 @@
+package edu.ucsb.nceas.mdqengine.processor;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.ProcessingInstruction;
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The parsed form of a metadata document that checks are run against.
+ * The source is parsed exactly once, into a namespace aware DOM. The non-namespace aware
+ * view that is used by dialect expressions and by selectors that are not namespace aware is
+ * derived from that tree the first time it is requested, by copying the nodes with their
+ * qualified names. This avoids parsing the document twice and only builds the second tree
+ * when a check actually needs it.
+ * <p>
+ * A model can also be created from the source bytes without parsing them, for documents that
+ * are large enough to be evaluated with a {@link StreamingMatcher}. The trees are then only
+ * built if an expression that cannot be streamed has to be evaluated.
+ * </p>
+ * <p>
+ * The trees are not safe to read from several threads at the same time, even though they are
+ * never modified: the Xerces DOM caches node lists and node positions as it is read. Code that
+ * shares a model between threads reads the trees while holding the model's monitor, i.e. within
+ * <code>synchronized (model)</code>, as {@link XMLDialect} does.
+ * </p>
+ */
+public class DocumentModel {
+
+	private static final String DEFER_NODE_EXPANSION = "http://apache.org/xml/features/dom/defer-node-expansion";
+
+	public static Log log = LogFactory.getLog(DocumentModel.class);
+
+	private static DocumentBuilderFactory nsFactory = newFactory(true);
+
+	private static DocumentBuilderFactory factory = newFactory(false);
+
+	private static XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+
+	private final byte[] source;
+
+	private volatile Document nsAwareDocument;
+
+	private volatile Document document;
+
+	public DocumentModel(InputStream input) throws SAXException, IOException, ParserConfigurationException {
+		source = null;
+		nsAwareDocument = newBuilder(nsFactory).parse(input);
+	}
+
+	/**
+	 * Create a model for a document that is only parsed when one of its trees is requested.
+	 * The document is expected to be well formed, e.g. because it has been read by a
+	 * {@link StreamingMatcher} already.
+	 * @param source the document
+	 */
+	public DocumentModel(byte[] source) {
+		this.source = source;
+	}
+
+	/**
+	 * The namespace aware view of the document, i.e. the tree that was parsed from the source.
+	 * @return the namespace aware DOM, parsed on first use if the model was created from bytes
+	 */
+	public Document getNamespaceAwareDocument() {
+		Document result = nsAwareDocument;
+		if (result == null) {
+			synchronized (this) {
+				result = nsAwareDocument;
+				if (result == null) {
+					log.debug("Parsing document of " + source.length + " bytes");
+					try {
+						result = newBuilder(nsFactory).parse(new ByteArrayInputStream(source));
+					} catch (SAXException | IOException | ParserConfigurationException e) {
+						throw new IllegalStateException("Could not parse document: " + e.getMessage(), e);
+					}
+					nsAwareDocument = result;
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Has the document been parsed into a tree yet?
+	 * @return true if the namespace aware view exists
+	 */
+	public boolean isParsed() {
+		return nsAwareDocument != null;
+	}
+
+	/**
+	 * Is the source of the document available, i.e. was the model created from bytes?
+	 * @return true if the source can be read with {@link #openSource()}
+	 */
+	public boolean hasSource() {
+		return source != null;
+	}
+
+	/**
+	 * Read the source of the document
+	 * @return a stream of the document bytes
+	 */
+	public InputStream openSource() {
+		if (source == null) {
+			throw new IllegalStateException("The source of the document was not kept");
+		}
+		return new ByteArrayInputStream(source);
+	}
+
+	/**
+	 * The source of the document as text, decoded with the encoding that it declares
+	 * @return the document text
+	 */
+	public String getSourceText() {
+		String encoding = null;
+		try {
+			XMLStreamReader reader;
+			synchronized (inputFactory) {
+				reader = inputFactory.createXMLStreamReader(openSource());
+			}
+			encoding = reader.getCharacterEncodingScheme();
+			if (encoding == null) {
+				encoding = reader.getEncoding();
+			}
+			reader.close();
+		} catch (XMLStreamException e) {
+			log.debug("Could not read the document encoding: " + e.getMessage());
+		}
+		Charset charset = StandardCharsets.UTF_8;
+		if (encoding != null && Charset.isSupported(encoding)) {
+			charset = Charset.forName(encoding);
+		}
+		return new String(source, charset);
+	}
+
+	/**
+	 * The non-namespace aware view of the document. Element and attribute names in this view are
+	 * the qualified names (including any prefix) as they appear in the source, which is what a
+	 * non-namespace aware parse would produce.
+	 * @return the non-namespace aware DOM, derived on first use
+	 */
+	public Document getDocument() {
+		Document result = document;
+		if (result == null) {
+			synchronized (this) {
+				result = document;
+				if (result == null) {
+					log.debug("Deriving non-namespace aware view of document");
+					try {
+						result = deriveDocument(getNamespaceAwareDocument());
+					} catch (ParserConfigurationException e) {
+						// the default parser configuration is always available
+						throw new IllegalStateException("Could not create non-namespace aware document", e);
+					}
+					document = result;
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Has the non-namespace aware view been built yet?
+	 * @return true if the derived view exists
+	 */
+	public boolean isDocumentDerived() {
+		return document != null;
+	}
+
+	private static DocumentBuilderFactory newFactory(boolean namespaceAware) {
+		DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+		dbf.setNamespaceAware(namespaceAware);
+		// A deferred DOM expands nodes (i.e. modifies itself) as they are read, so build the
+		// complete tree up front. Reads still have to be synchronized, see the class comment.
+		try {
+			dbf.setFeature(DEFER_NODE_EXPANSION, false);
+		} catch (ParserConfigurationException e) {
+			log.warn("Could not disable deferred node expansion: " + e.getMessage());
+		}
+		return dbf;
+	}
+
+	private static DocumentBuilder newBuilder(DocumentBuilderFactory dbf) throws ParserConfigurationException {
+		// factories are not guaranteed to be thread safe, but builders are cheap to create
+		synchronized (dbf) {
+			return dbf.newDocumentBuilder();
+		}
+	}
+
+	private static Document deriveDocument(Document source) throws ParserConfigurationException {
+		Document target = newBuilder(factory).newDocument();
+		copyChildren(source, target, target);
+		return target;
+	}
+
+	/*
+	 * Copy the children of one node to another using the DOM level 1 factory methods, so that
+	 * the copies carry their qualified names and no namespace information, just as when parsing
+	 * with a non-namespace aware parser. Namespace declarations are kept as plain attributes.
+	 */
+	private static void copyChildren(Node from, Node to, Document target) {
+		for (Node child = from.getFirstChild(); child != null; child = child.getNextSibling()) {
+			Node copy = null;
+			switch (child.getNodeType()) {
+				case Node.ELEMENT_NODE:
+					Element element = target.createElement(child.getNodeName());
+					NamedNodeMap attributes = child.getAttributes();
+					for (int i = 0; i < attributes.getLength(); i++) {
+						Node attribute = attributes.item(i);
+						element.setAttribute(attribute.getNodeName(), attribute.getNodeValue());
+					}
+					copyChildren(child, element, target);
+					copy = element;
+					break;
+				case Node.TEXT_NODE:
+					copy = target.createTextNode(child.getNodeValue());
+					break;
+				case Node.CDATA_SECTION_NODE:
+					copy = target.createCDATASection(child.getNodeValue());
+					break;
+				case Node.COMMENT_NODE:
+					copy = target.createComment(child.getNodeValue());
+					break;
+				case Node.PROCESSING_INSTRUCTION_NODE:
+					ProcessingInstruction pi = (ProcessingInstruction) child;
+					copy = target.createProcessingInstruction(pi.getTarget(), pi.getData());
+					break;
+				case Node.ENTITY_REFERENCE_NODE:
+					// only present if the parser does not expand entities, inline the replacement
+					copyChildren(child, to, target);
+					break;
+				default:
+					// the doctype is not needed for selecting values
+					break;
+			}
+			if (copy != null) {
+				to.appendChild(copy);
+			}
+		}
+	}
+
+}
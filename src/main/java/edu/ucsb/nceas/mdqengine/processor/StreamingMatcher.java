@@ -0,0 +1,627 @@
+package edu.ucsb.nceas.mdqengine.processor;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.InputStream;
+import java.util.*;
+
+/**
+ * Evaluates a set of XPath expressions in a single streaming (StAX) pass over a document,
+ * without building a DOM. This is meant for very large documents, where the selectors of a
+ * suite can be evaluated without holding the document tree in memory.
+ * <p>
+ * Only a common subset of XPath is supported:
+ * <ul>
+ * <li>absolute location paths made of child ('/') and descendant ('//') steps, e.g.
+ * '/eml/dataset/title' or '//attribute/attributeName'</li>
+ * <li>name tests without a prefix, or '*'</li>
+ * <li>a final attribute step, e.g. '/eml/@packageId'</li>
+ * <li>predicates testing an attribute ('[@id]', "[@id='x']") or the local name of the element
+ * ("[local-name()='eml']"), which can be combined with 'or'</li>
+ * <li>unions of such paths ('|'), optionally wrapped in count() or boolean()</li>
+ * </ul>
+ * {@link #add(String)} reports whether an expression is supported, so that other expressions
+ * can be evaluated with the DOM instead.
+ * </p>
+ * Names are matched the way the JAXP evaluator matches them in the non-namespace aware view of a
+ * document (see {@link DocumentModel#getDocument()}): namespaces are ignored and a name test
+ * matches the part of a qualified name after the prefix.
+ */
+public class StreamingMatcher {
+
+	private enum Kind { NODES, COUNT, BOOLEAN }
+
+	private static final XMLInputFactory factory = newFactory();
+
+	private Map<String, Expression> expressions = new LinkedHashMap<String, Expression>();
+
+	public static Log log = LogFactory.getLog(StreamingMatcher.class);
+
+	/**
+	 * Add an expression to be evaluated by this matcher.
+	 * @param xpath the expression
+	 * @return true if the expression is supported and will be evaluated by {@link #match(InputStream)}
+	 */
+	public boolean add(String xpath) {
+		if (xpath == null) {
+			return false;
+		}
+		if (expressions.containsKey(xpath)) {
+			return true;
+		}
+		Expression expression = new Parser(xpath).parse();
+		if (expression == null) {
+			log.debug("Expression is not supported for streaming: " + xpath);
+			return false;
+		}
+		expression.index = expressions.size();
+		expressions.put(xpath, expression);
+		return true;
+	}
+
+	/**
+	 * Is the expression supported by the streaming matcher?
+	 * @param xpath the expression
+	 * @return true if the expression can be added to a matcher
+	 */
+	public static boolean isSupported(String xpath) {
+		return xpath != null && new Parser(xpath).parse() != null;
+	}
+
+	public boolean isEmpty() {
+		return expressions.isEmpty();
+	}
+
+	/**
+	 * Evaluate all of the expressions that have been added in one pass over a document.
+	 * Once all of the expressions have been added, a matcher can be used for any number of
+	 * documents, from several threads.
+	 * @param input the document
+	 * @return the results of all the expressions
+	 * @throws XMLStreamException if the document cannot be read
+	 */
+	public Results match(InputStream input) throws XMLStreamException {
+		Expression[] exprs = expressions.values().toArray(new Expression[0]);
+		Results results = new Results(expressions);
+
+		List<Frame> stack = new ArrayList<Frame>();
+		List<Capture> captures = new ArrayList<Capture>();
+
+		XMLStreamReader reader;
+		synchronized (factory) {
+			reader = factory.createXMLStreamReader(input);
+		}
+		try {
+			while (reader.hasNext()) {
+				switch (reader.next()) {
+					case XMLStreamConstants.START_ELEMENT:
+						Frame frame = new Frame(reader);
+						stack.add(frame);
+						results.addNamespace(stack, frame);
+						for (Expression expression: exprs) {
+							expression.start(stack, results, captures);
+						}
+						break;
+					case XMLStreamConstants.END_ELEMENT:
+						int depth = stack.size();
+						for (Iterator<Capture> i = captures.iterator(); i.hasNext(); ) {
+							Capture capture = i.next();
+							if (capture.depth == depth) {
+								capture.values.set(capture.position, capture.text.toString());
+								i.remove();
+							}
+						}
+						stack.remove(depth - 1);
+						break;
+					case XMLStreamConstants.CHARACTERS:
+					case XMLStreamConstants.CDATA:
+					case XMLStreamConstants.SPACE:
+						if (!captures.isEmpty()) {
+							for (Capture capture: captures) {
+								capture.text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+							}
+						}
+						break;
+					default:
+						break;
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return results;
+	}
+
+	private static XMLInputFactory newFactory() {
+		XMLInputFactory xif = XMLInputFactory.newInstance();
+		// match the non-namespace aware view, where names are used as they appear in the source
+		xif.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, false);
+		xif.setProperty(XMLInputFactory.IS_REPLACING_ENTITY_REFERENCES, true);
+		return xif;
+	}
+
+	/**
+	 * The values selected by the expressions of a matcher for one document
+	 */
+	public static class Results {
+
+		private Map<String, Expression> expressions;
+
+		private List<List<String>> values = new ArrayList<List<String>>();
+
+		private int[] counts;
+
+		// the namespaces used by elements, by uri, in document order
+		private Map<String, String> namespaces = new LinkedHashMap<String, String>();
+
+		private Results(Map<String, Expression> expressions) {
+			this.expressions = expressions;
+			this.counts = new int[expressions.size()];
+			for (int i = 0; i < expressions.size(); i++) {
+				values.add(new ArrayList<String>());
+			}
+		}
+
+		/**
+		 * Was the expression evaluated?
+		 * @param xpath the expression
+		 * @return true if the expression was added to the matcher
+		 */
+		public boolean contains(String xpath) {
+			return expressions.containsKey(xpath);
+		}
+
+		/**
+		 * Does the expression select nodes, or compute a value from them?
+		 * @param xpath the expression
+		 * @return true if the expression is a location path or a union of them
+		 */
+		public boolean isNodeSet(String xpath) {
+			return get(xpath).kind == Kind.NODES;
+		}
+
+		/**
+		 * The string values of the selected nodes, in document order
+		 * @param xpath a location path expression
+		 * @return the values, which is empty if nothing was selected
+		 */
+		public List<String> getNodes(String xpath) {
+			return Collections.unmodifiableList(values.get(get(xpath).index));
+		}
+
+		/**
+		 * The string value of the expression, as returned by XPathExpression.evaluate(Object)
+		 * @param xpath the expression
+		 * @return the string value
+		 */
+		public String getString(String xpath) {
+			Expression expression = get(xpath);
+			int count = counts[expression.index];
+			switch (expression.kind) {
+				case COUNT:
+					return String.valueOf(count);
+				case BOOLEAN:
+					return String.valueOf(count > 0);
+				default:
+					List<String> nodes = values.get(expression.index);
+					return nodes.isEmpty() ? "" : nodes.get(0);
+			}
+		}
+
+		/**
+		 * The namespaces of the elements in the document, i.e. the prefix (null for the default
+		 * namespace) that is first used for each namespace uri.
+		 * @return the prefixes by namespace uri
+		 */
+		public Map<String, String> getNamespaces() {
+			return Collections.unmodifiableMap(namespaces);
+		}
+
+		private Expression get(String xpath) {
+			Expression expression = expressions.get(xpath);
+			if (expression == null) {
+				throw new IllegalArgumentException("Expression was not evaluated: " + xpath);
+			}
+			return expression;
+		}
+
+		private void addNamespace(List<Frame> stack, Frame frame) {
+			int colon = frame.name.indexOf(':');
+			String prefix = colon < 0 ? null : frame.name.substring(0, colon);
+			String declaration = prefix == null ? "xmlns" : "xmlns:" + prefix;
+			for (int i = stack.size() - 1; i >= 0; i--) {
+				String uri = stack.get(i).getAttribute(declaration);
+				if (uri != null) {
+					if (!uri.isEmpty() && !namespaces.containsKey(uri)) {
+						namespaces.put(uri, prefix);
+					}
+					return;
+				}
+			}
+		}
+	}
+
+	/*
+	 * An element that is open in the document, with its attributes
+	 */
+	private static class Frame {
+		private String name;
+		private String localName;
+		private String[] attributeNames;
+		private String[] attributeValues;
+
+		private Frame(XMLStreamReader reader) {
+			name = qualifiedName(reader.getPrefix(), reader.getLocalName());
+			localName = localPart(name);
+			int count = reader.getAttributeCount();
+			attributeNames = new String[count];
+			attributeValues = new String[count];
+			for (int i = 0; i < count; i++) {
+				attributeNames[i] = qualifiedName(reader.getAttributePrefix(i), reader.getAttributeLocalName(i));
+				attributeValues[i] = reader.getAttributeValue(i);
+			}
+		}
+
+		private String getAttribute(String qualifiedName) {
+			for (int i = 0; i < attributeNames.length; i++) {
+				if (attributeNames[i].equals(qualifiedName)) {
+					return attributeValues[i];
+				}
+			}
+			return null;
+		}
+
+		private static String qualifiedName(String prefix, String localName) {
+			return prefix == null || prefix.isEmpty() ? localName : prefix + ":" + localName;
+		}
+
+		private static String localPart(String name) {
+			int colon = name.indexOf(':');
+			return colon < 0 ? name : name.substring(colon + 1);
+		}
+
+		// namespace declarations are not attributes in XPath
+		private static boolean isDeclaration(String name) {
+			return name.equals("xmlns") || name.startsWith("xmlns:");
+		}
+	}
+
+	/*
+	 * The text of a selected element, collected until the element ends
+	 */
+	private static class Capture {
+		private int depth;
+		private List<String> values;
+		private int position;
+		private StringBuilder text = new StringBuilder();
+	}
+
+	private static class Expression {
+		private int index;
+		private Kind kind;
+		private List<Path> paths = new ArrayList<Path>();
+
+		/*
+		 * Check if any path selects the element that was just started, or its attributes. A node is
+		 * only selected once, even if more than one path of a union selects it, and the element
+		 * comes before its attributes, as in document order.
+		 */
+		private void start(List<Frame> stack, Results results, List<Capture> captures) {
+			Frame frame = stack.get(stack.size() - 1);
+			boolean elementSelected = false;
+			boolean[] attributesSelected = null;
+			for (Path path: paths) {
+				if (!path.matches(stack, path.steps.length - 1, stack.size() - 1)) {
+					continue;
+				}
+				if (path.attribute == null) {
+					elementSelected = true;
+					continue;
+				}
+				for (int i = 0; i < frame.attributeNames.length; i++) {
+					String name = frame.attributeNames[i];
+					if (!Frame.isDeclaration(name) && Frame.localPart(name).equals(path.attribute)) {
+						if (attributesSelected == null) {
+							attributesSelected = new boolean[frame.attributeNames.length];
+						}
+						attributesSelected[i] = true;
+					}
+				}
+			}
+			
+			List<String> values = results.values.get(index);
+			if (elementSelected) {
+				results.counts[index]++;
+				if (kind == Kind.NODES) {
+					Capture capture = new Capture();
+					capture.depth = stack.size();
+					capture.values = values;
+					capture.position = values.size();
+					values.add(null);
+					captures.add(capture);
+				}
+			}
+			if (attributesSelected != null) {
+				for (int i = 0; i < attributesSelected.length; i++) {
+					if (attributesSelected[i]) {
+						results.counts[index]++;
+						if (kind == Kind.NODES) {
+							values.add(frame.attributeValues[i]);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	private static class Path {
+		private Step[] steps;
+		private String attribute;
+
+		/*
+		 * Does step 'step' and the ones before it match the element at 'position' and its ancestors?
+		 */
+		private boolean matches(List<Frame> stack, int step, int position) {
+			if (!steps[step].matches(stack.get(position))) {
+				return false;
+			}
+			if (step == 0) {
+				return steps[0].descendant || position == 0;
+			}
+			if (!steps[step].descendant) {
+				return position > 0 && matches(stack, step - 1, position - 1);
+			}
+			for (int i = position - 1; i >= 0; i--) {
+				if (matches(stack, step - 1, i)) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	private static class Step {
+		private boolean descendant;
+		// null for any element
+		private String name;
+		private List<List<Test>> predicates = new ArrayList<List<Test>>();
+		// compare the name with the qualified name of an element instead of its local part
+		private boolean qualified = false;
+
+		private boolean matches(Frame frame) {
+			if (name != null && !name.equals(qualified ? frame.name : frame.localName)) {
+				return false;
+			}
+			for (List<Test> alternatives: predicates) {
+				boolean any = false;
+				for (Test test: alternatives) {
+					if (test.matches(frame)) {
+						any = true;
+						break;
+					}
+				}
+				if (!any) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	/*
+	 * A predicate test: an attribute exists or has a value, or the element has a local name
+	 */
+	private static class Test {
+		// null to test the local name
+		private String attribute;
+		// null to only test that the attribute exists
+		private String value;
+
+		private boolean matches(Frame frame) {
+			if (attribute == null) {
+				return frame.localName.equals(value);
+			}
+			for (int i = 0; i < frame.attributeNames.length; i++) {
+				String name = frame.attributeNames[i];
+				if (!Frame.isDeclaration(name) && Frame.localPart(name).equals(attribute)
+						&& (value == null || value.equals(frame.attributeValues[i]))) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	/*
+	 * Parses the supported subset of XPath, returning null for anything else
+	 */
+	private static class Parser {
+		private String xpath;
+		private int pos = 0;
+
+		private Parser(String xpath) {
+			this.xpath = xpath;
+		}
+
+		private Expression parse() {
+			Expression expression = new Expression();
+			skipSpace();
+			if (take("count(")) {
+				expression.kind = Kind.COUNT;
+			} else if (take("boolean(")) {
+				expression.kind = Kind.BOOLEAN;
+			} else {
+				expression.kind = Kind.NODES;
+			}
+			do {
+				skipSpace();
+				Path path = path();
+				if (path == null) {
+					return null;
+				}
+				expression.paths.add(path);
+				skipSpace();
+			} while (take("|"));
+			if (expression.kind != Kind.NODES) {
+				if (!take(")")) {
+					return null;
+				}
+				skipSpace();
+			}
+			return pos == xpath.length() ? expression : null;
+		}
+
+		private Path path() {
+			Path path = new Path();
+			List<Step> steps = new ArrayList<Step>();
+			while (peek() == '/') {
+				boolean descendant = take("//");
+				if (!descendant) {
+					pos++;
+				}
+				if (take("@")) {
+					// only a child attribute of an element is supported
+					if (descendant || steps.isEmpty()) {
+						return null;
+					}
+					path.attribute = name();
+					if (path.attribute == null) {
+						return null;
+					}
+					break;
+				}
+				Step step = new Step();
+				step.descendant = descendant;
+				if (!take("*")) {
+					step.name = name();
+					if (step.name == null) {
+						return null;
+					}
+				}
+				while (take("[")) {
+					List<Test> alternatives = predicate();
+					if (alternatives == null) {
+						return null;
+					}
+					step.predicates.add(alternatives);
+				}
+				steps.add(step);
+			}
+			if (steps.isEmpty()) {
+				return null;
+			}
+			if (steps.size() == 1 && steps.get(0).descendant && path.attribute == null) {
+				// The JAXP evaluator selects '//name' with a descendant iterator that compares
+				// the whole name, so on the non-namespace aware view it only selects elements
+				// without a prefix. Other paths match the part of the name after the prefix.
+				steps.get(0).qualified = true;
+			}
+			path.steps = steps.toArray(new Step[0]);
+			return path;
+		}
+
+		private List<Test> predicate() {
+			List<Test> alternatives = new ArrayList<Test>();
+			do {
+				skipSpace();
+				Test test = new Test();
+				if (take("@")) {
+					test.attribute = name();
+					if (test.attribute == null) {
+						return null;
+					}
+					skipSpace();
+					if (take("=")) {
+						skipSpace();
+						test.value = literal();
+						if (test.value == null) {
+							return null;
+						}
+					}
+				} else if (take("local-name()")) {
+					skipSpace();
+					if (!take("=")) {
+						return null;
+					}
+					skipSpace();
+					test.value = literal();
+					if (test.value == null) {
+						return null;
+					}
+				} else {
+					return null;
+				}
+				alternatives.add(test);
+				skipSpace();
+			} while (takeWord("or"));
+			return take("]") ? alternatives : null;
+		}
+
+		// a name without a prefix, that is not a function call or an axis
+		private String name() {
+			int start = pos;
+			if (pos < xpath.length() && (Character.isLetter(xpath.charAt(pos)) || xpath.charAt(pos) == '_')) {
+				pos++;
+				while (pos < xpath.length()) {
+					char c = xpath.charAt(pos);
+					if (Character.isLetterOrDigit(c) || c == '_' || c == '-' || c == '.') {
+						pos++;
+					} else {
+						break;
+					}
+				}
+			}
+			if (pos == start || peek() == ':' || peek() == '(') {
+				return null;
+			}
+			return xpath.substring(start, pos);
+		}
+
+		private String literal() {
+			char quote = peek();
+			if (quote != '\'' && quote != '"') {
+				return null;
+			}
+			int end = xpath.indexOf(quote, pos + 1);
+			if (end < 0) {
+				return null;
+			}
+			String value = xpath.substring(pos + 1, end);
+			pos = end + 1;
+			return value;
+		}
+
+		private boolean take(String token) {
+			if (xpath.startsWith(token, pos)) {
+				pos += token.length();
+				return true;
+			}
+			return false;
+		}
+
+		private boolean takeWord(String word) {
+			int end = pos + word.length();
+			if (xpath.startsWith(word, pos) && end < xpath.length() && Character.isWhitespace(xpath.charAt(end))) {
+				pos = end;
+				return true;
+			}
+			return false;
+		}
+
+		private char peek() {
+			return pos < xpath.length() ? xpath.charAt(pos) : 0;
+		}
+
+		private void skipSpace() {
+			while (pos < xpath.length() && Character.isWhitespace(xpath.charAt(pos))) {
+				pos++;
+			}
+		}
+	}
+
+}
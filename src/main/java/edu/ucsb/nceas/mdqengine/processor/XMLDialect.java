@@ -1,6 +1,8 @@
 package edu.ucsb.nceas.mdqengine.processor;
 
 import edu.ucsb.nceas.mdqengine.dispatch.Dispatcher;
+import edu.ucsb.nceas.mdqengine.dispatch.DispatcherPool;
+import edu.ucsb.nceas.mdqengine.dispatch.RDispatcher;
 import edu.ucsb.nceas.mdqengine.model.*;
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.io.IOUtils;
@@ -10,42 +12,45 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.dataone.service.types.v2.SystemMetadata;
 import org.dataone.service.util.TypeMarshaller;
-import org.springframework.util.xml.SimpleNamespaceContext;
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 
 import javax.script.ScriptException;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
-import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
 import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
+import java.beans.BeanInfo;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
 import java.io.*;
 import java.net.URL;
+import java.net.URLConnection;
 import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.regex.Pattern;
 
 public class XMLDialect {
 	
-	private Document document;
-	
-	private Document nsAwareDocument;
+	private DocumentModel model;
 	
 	private SystemMetadata systemMetadata;
 
-	private XPathFactory xPathfactory;
+	private XPathCache xPathCache;
 	
 	private Map<String, Object> params;
 		
@@ -53,53 +58,92 @@ public class XMLDialect {
 	
 	private String directory;
 	
-	private Dispatcher dispatcher;
+	// the script environment state of checks run one at a time with runCheck()
+	private DispatchState state = new DispatchState();
+	
+	// inputs computed once per run and shared by all the checks
+	private Map<String, Object> runVariables;
+	
+	private String documentString;
+	
+	// values that were selected in a streaming pass over the document, if any
+	private StreamingMatcher.Results streamed;
+	
+	private boolean namespacesExtracted = false;
+	
+	// values selected from this document, by selection key
+	private Map<String, Object> selections = new ConcurrentHashMap<String, Object>();
+	
+	// stands in for a null value in the selections map
+	private static final Object NO_VALUE = new Object();
+	
+	private AtomicLong selectionHits = new AtomicLong();
+	
+	private AtomicLong selectionMisses = new AtomicLong();
+	
+	private AtomicLong dialectEvaluations = new AtomicLong();
+	
+	// how long a check can run in milliseconds, 0 for no limit
+	private long checkTimeout = 0;
+	
+	// the System.nanoTime() by which all checks have to be done, null for no limit
+	private Long deadline = null;
+	
+	private DialectIndex dialectIndex;
+	
+	// the outcome of each indexed dialect expression for this document: a Boolean, or the error
+	private AtomicReferenceArray<Object> dialectOutcomes;
+	
+	private static final Pattern DOCUMENT_VARIABLE = Pattern.compile("\\bdocument\\b");
+	
+	private static Map<String, Boolean> documentProperties = new ConcurrentHashMap<String, Boolean>();
 	
 	public static Log log = LogFactory.getLog(XMLDialect.class);
 	
 	public XMLDialect(InputStream input) throws SAXException, IOException, ParserConfigurationException {
-		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-		factory.setNamespaceAware(false);
-		DocumentBuilder builder = factory.newDocumentBuilder();
-		
-		DocumentBuilderFactory nsFactory = DocumentBuilderFactory.newInstance();
-		nsFactory.setNamespaceAware(true);
-		DocumentBuilder nsBuilder = nsFactory.newDocumentBuilder();
-		
-		byte[] bytes = IOUtils.toByteArray(input);
-		
-		document = builder.parse(new ByteArrayInputStream(bytes));
-		nsAwareDocument = nsBuilder.parse(new ByteArrayInputStream(bytes));
-
-		// please let garbage collection take this space back
-		bytes = null;
+		this(new DocumentModel(input));
+	}
+	
+	public XMLDialect(DocumentModel model) {
+		// the document is parsed once, the non-namespace aware view is only derived if needed
+		this.model = model;
 		
-		xPathfactory = XPathFactory.newInstance();
+		// compiled expressions are only reused within this run unless a longer lived cache is set
+		xPathCache = new XPathCache();
 		
-		// now we can extract the namespaces from the source document
-		this.extractNamespaces();
+		// now we can extract the namespaces from the source document, unless it has not been parsed
+		// (then they are found by a streaming pass, or when the document is parsed)
+		if (model.isParsed()) {
+			this.extractNamespaces();
+		}
 
 	}
 	
-	private void extractNamespaces() {
-		XPath xpath = xPathfactory.newXPath();
+	private synchronized void extractNamespaces() {
+		if (namespacesExtracted) {
+			return;
+		}
+		namespacesExtracted = true;
 		NodeList nodes = null;
 		try {
 			//String selectorPath = "//*[namespace-uri()]/concat(substring-before(name(), ':'),':',namespace-uri())";
 			String selectorPath = "//*[namespace-uri()]";
 
-			nodes = (NodeList) xpath.evaluate(selectorPath , this.nsAwareDocument, XPathConstants.NODESET);
-			if (nodes != null && nodes.getLength() > 0) {
-				for (int i = 0; i <nodes.getLength(); i++) {
-					Node node = nodes.item(i);
-					String uri = node.getNamespaceURI();
-					String prefix = node.getPrefix();
-					
-					Namespace ns = new Namespace();
-					ns.setPrefix(prefix);
-					ns.setUri(uri);
-					if (!this.namespaces.containsKey(uri)) {
-						this.namespaces.put(uri, ns);
+			XPathExpression xpath = xPathCache.getExpression(selectorPath);
+			synchronized (model) {
+				nodes = (NodeList) xpath.evaluate(model.getNamespaceAwareDocument(), XPathConstants.NODESET);
+				if (nodes != null && nodes.getLength() > 0) {
+					for (int i = 0; i <nodes.getLength(); i++) {
+						Node node = nodes.item(i);
+						String uri = node.getNamespaceURI();
+						String prefix = node.getPrefix();
+						
+						Namespace ns = new Namespace();
+						ns.setPrefix(prefix);
+						ns.setUri(uri);
+						if (!this.namespaces.containsKey(uri)) {
+							this.namespaces.put(uri, ns);
+						}
 					}
 				}
 			}
@@ -109,141 +153,152 @@ public class XMLDialect {
 	}
 	
 	// include additional namespaces
-	public void mergeNamespaces(List<Namespace> namespaces) {
+	public synchronized void mergeNamespaces(List<Namespace> namespaces) {
 		if (namespaces != null) {
+			// values selected with the previous namespaces may no longer apply
+			selections.clear();
 			for (Namespace namespace: namespaces) {
 				this.namespaces.put(namespace.getPrefix(), namespace);
 			}
 		}
 	}
 	
+	/**
+	 * The namespaces found in the document, and those that have been merged
+	 * @return a copy of the namespaces
+	 */
+	private synchronized List<Namespace> getNamespaces() {
+		extractNamespaces();
+		return new ArrayList<Namespace>(namespaces.values());
+	}
+	
+	/**
+	 * Add the dialect and selector expressions of a check that can be evaluated in a streaming
+	 * pass over the document to a matcher. Namespace aware selectors and selectors with
+	 * subselectors are always evaluated with the DOM.
+	 * @param matcher the matcher to add to
+	 * @param check the check
+	 */
+	public static void addStreamingExpressions(StreamingMatcher matcher, Check check) {
+		if (check.getDialect() != null) {
+			for (Dialect dialect: check.getDialect()) {
+				matcher.add(dialect.getXpath());
+			}
+		}
+		if (check.getSelector() != null) {
+			for (Selector selector: check.getSelector()) {
+				if (!selector.isNamespaceAware() && selector.getSubSelector() == null) {
+					matcher.add(selector.getXpath());
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Use the values that were selected in a streaming pass over the document, instead of
+	 * evaluating those expressions with the DOM. The namespaces found by the pass are used
+	 * instead of extracting them from the DOM, so the document only has to be parsed if an
+	 * expression that cannot be streamed is evaluated.
+	 * @param results the results of a matcher that the checks to run were added to
+	 */
+	public synchronized void setStreamedResults(StreamingMatcher.Results results) {
+		this.streamed = results;
+		if (!namespacesExtracted) {
+			for (Map.Entry<String, String> entry: results.getNamespaces().entrySet()) {
+				if (!this.namespaces.containsKey(entry.getKey())) {
+					Namespace ns = new Namespace();
+					ns.setPrefix(entry.getValue());
+					ns.setUri(entry.getKey());
+					this.namespaces.put(entry.getKey(), ns);
+				}
+			}
+			namespacesExtracted = true;
+		}
+	}
+	
+	/**
+	 * Run a single check. Checks that inherit state continue from the previous check that was run
+	 * with this method.
+	 * @param check the check to run
+	 * @return the result of the check
+	 * @throws XPathExpressionException
+	 */
 	public Result runCheck(Check check) throws XPathExpressionException {
+		// the dispatcher goes back to the pool in between, and is reclaimed if the next check inherits its state
+		try {
+			return runCheck(check, state);
+		} finally {
+			state.release();
+		}
+	}
+	
+	/**
+	 * Run a sequence of checks, in order. Checks that inherit state continue from the previous
+	 * check in the sequence. Sequences that do not inherit from each other can be run concurrently.
+	 * @param checks the checks to run
+	 * @return the results, in the same order as the checks
+	 * @throws XPathExpressionException
+	 */
+	public List<Result> runChecks(List<Check> checks) throws XPathExpressionException {
+		DispatchState chainState = new DispatchState();
+		List<Result> results = new ArrayList<Result>();
+		try {
+			for (Check check: checks) {
+				results.add(runCheck(check, chainState));
+			}
+		} finally {
+			chainState.release();
+		}
+		return results;
+	}
+	
+	private Result runCheck(Check check, DispatchState state) throws XPathExpressionException {
 		
 		Result result = null;
 		
 		log.debug("Running Check: " + check.getId());
 		
+		long timeout = this.getTimeout(1);
+		
 		// only bother dispatching if check can be applied to this document
-		if (this.isCheckValid(check)) {
+		if (timeout < 0) {
+			result = budgetExhausted();
+		} else if (this.isCheckValid(check)) {
 		
 			// gather the variable name/value details
-			Map<String, Object> variables = new HashMap<String, Object>();
-			if (check.getSelector() != null) {
-				for (Selector selector: check.getSelector()) {
-					
-					Document docToUse = document;
-					if (selector.isNamespaceAware()) {
-						docToUse = nsAwareDocument;
-					}
-					
-					String name = selector.getName();
-					Object value = this.selectPath(selector, docToUse);
-					
-					// make available in script
-					variables.put(name, value);
-				}
-			}
+			Map<String, Object> variables = this.selectVariables(check);
 			
-			// make the entire dom available
-			// TODO: string seems like only viable option for all env
-			variables.put("document", toXmlString(document));
-
-			// include system metadata if available
-			if (this.systemMetadata != null) {
-				try {
-					ByteArrayOutputStream baos = new ByteArrayOutputStream();
-					TypeMarshaller.marshalTypeToOutputStream(systemMetadata, baos);
-					variables.put("systemMetadata", baos.toString("UTF-8"));
-					variables.put("datasource", systemMetadata.getOriginMemberNode().getValue());
-					// dateUploaded
-					// This unusual date format is acceptable to Solr - it must be GMT time, with
-					// no offset
-					SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
-					df.setTimeZone(TimeZone.getTimeZone("GMT"));
-					variables.put("dateUploaded", df.format(systemMetadata.getDateUploaded()));
-					variables.put("authoritativeMemberNode", systemMetadata.getAuthoritativeMemberNode().getValue());
-					variables.put("systemMetadataPid", systemMetadata.getIdentifier().getValue());
-				} catch (Exception e) {
-					log.error("Could not serialize SystemMetadata for check", e);
-				}
-			}
-						
-			// make extra parameters available to the check if we have them
-			if (this.params != null) {
-				variables.put("mdq_params", params);
+			// assemble the code to run, which takes time from the check if it has libraries
+			long fetchStart = System.nanoTime();
+			String code = this.getCode(check, timeout);
+			timeout = this.getTimeout(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - fetchStart));
+			if (timeout < 0) {
+				result = librariesTimedOut();
+				result.setCheck(check);
+				result.setTimestamp(Calendar.getInstance().getTime());
+				return postProcess(result);
 			}
 			
-			// give the check a place to write files during the run
-			if (this.directory != null) {
-				variables.put("tempDir", directory);
+			// make the entire dom available, but only serialize it (once per run) for checks that use it
+			// TODO: string seems like only viable option for all env
+			if (this.usesDocument(check, code)) {
+				variables.put("document", this.getDocumentString());
 			}
-			
-			// dispatch to checker impl
-			if (!check.isInheritState() || dispatcher == null) {
-				// create a fresh dispatcher 
-				dispatcher = Dispatcher.getDispatcher(check.getEnvironment());
-				log.debug("Creating initial check dispatcher for " + check.getEnvironment());
-			} else {
-
-				// ensure that we can reuse the dispatcher to inherit previous state
-				if (!dispatcher.isEnvSupported(check.getEnvironment())) {
-					
-					// use the bindings from previous dispatcher
-					Map<String, Object> bindings = dispatcher.getBindings();
-					if (bindings == null) {
-						// nothing to inherit
-						result = new Result();
-						result.setStatus(Status.ERROR);
-						result.setOutput(new Output("Check cannot use persistent state from previous differing environment"));
-						return result;
-					} else {
-						
-						// use the bindings from previous dispatcher
-						for (String key: bindings.keySet()) {
-							Object value = bindings.get(key);
-							value = retypeObject(value.toString());
-							log.trace("binding: " + key + "=" + value);
-							variables.put(key, value);
-						}
-						log.debug("Binding existing variables for new dispatcher");
 
-						// and a fresh dispatcher
-						dispatcher = Dispatcher.getDispatcher(check.getEnvironment());
-						log.debug("Creating new check dispatcher for " + check.getEnvironment());
-					}
-				} else {
-					log.debug("Reusing dispatcher for persistent state check");
-
-				}
-			}
-			
-			// assemble the code to run
-			String code = check.getCode();
-			
-			// gather extra code from external resources
-			List<URL> libraries = check.getLibrary();
-			if (libraries != null) {
-				String libraryContent = "";
-				for (URL library: libraries) {
-					// TODO: loading random code from a URL is very risky!
-					log.debug("Loading library code from URL: " + library);
-					// read the library from given URL
-					try {
-						libraryContent += IOUtils.toString(library.openStream(), "UTF-8");
-					} catch (IOException e) {
-						log.error("Could not load code library: " + e.getMessage(), e);
-						// report this
-						result = new Result();
-						result.setStatus(Status.ERROR);
-						result.setOutput(new Output(e.getMessage()));
-					}
-				}
-				// combine libraries and code
-				code = libraryContent + code;
-			}
+			// include system metadata, extra parameters and the temp directory
+			variables.putAll(this.getRunVariables());
 			
+			// dispatch to checker impl
 			try {
-				result = dispatcher.dispatch(variables, code);
+				if (!this.acquireDispatcher(check, state, variables)) {
+					// nothing to inherit
+					result = new Result();
+					result.setStatus(Status.ERROR);
+					result.setOutput(new Output("Check cannot use persistent state from previous differing environment"));
+					return result;
+				}
+				state.exports = check.getExport();
+				result = state.dispatcher.dispatch(variables, code, check.getId(), timeout);
 			} catch (ScriptException e) {
 				// report this
 				result = new Result();
@@ -268,6 +323,437 @@ public class XMLDialect {
 		return result;
 	}
 	
+	/**
+	 * Run checks in the 'r' environment that do not inherit state with a single R invocation.
+	 * The variables that are the same for every check (including the document, if any of the
+	 * checks use it) are sent once, and every check is evaluated in an environment of its own.
+	 * @param checks the checks to run, none of which inherit state
+	 * @return the results, in the same order as the checks
+	 * @throws XPathExpressionException
+	 */
+	public List<Result> runBatch(List<Check> checks) throws XPathExpressionException {
+		
+		Result[] results = new Result[checks.size()];
+		List<Integer> pending = new ArrayList<Integer>();
+		List<Map<String, Object>> checkVariables = new ArrayList<Map<String, Object>>();
+		List<String> codes = new ArrayList<String>();
+		boolean usesDocument = false;
+		Map<String, Object> runValues = this.getRunVariables();
+		// the time spent fetching libraries, which the checks have less time for
+		long fetchMillis = 0;
+		
+		for (int i = 0; i < checks.size(); i++) {
+			Check check = checks.get(i);
+			log.debug("Running Check: " + check.getId());
+			long timeout = this.getTimeout(1);
+			if (timeout < 0) {
+				results[i] = budgetExhausted();
+				continue;
+			}
+			if (!this.isCheckValid(check)) {
+				// we just skip instead
+				results[i] = new Result();
+				results[i].setStatus(Status.SKIP);
+				results[i].setOutput(new Output("Dialect for this check is not supported"));
+				continue;
+			}
+			long fetchStart = System.nanoTime();
+			String code = this.getCode(check, timeout);
+			fetchMillis += TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - fetchStart);
+			Map<String, Object> variables = this.selectVariables(check);
+			// as in runCheck(), the document and the run variables replace selected values of the same name
+			if (this.usesDocument(check, code)) {
+				usesDocument = true;
+				variables.remove("document");
+			}
+			variables.keySet().removeAll(runValues.keySet());
+			pending.add(i);
+			checkVariables.add(variables);
+			codes.add(code);
+		}
+		
+		if (!pending.isEmpty()) {
+			Map<String, Object> shared = new HashMap<String, Object>(runValues);
+			if (usesDocument) {
+				shared.put("document", this.getDocumentString());
+			}
+			
+			List<Result> dispatched = null;
+			DispatchState batchState = new DispatchState();
+			long timeout = this.getTimeout(pending.size(), fetchMillis);
+			try {
+				if (timeout < 0) {
+					dispatched = new ArrayList<Result>();
+					for (int i = 0; i < pending.size(); i++) {
+						dispatched.add(budgetExhausted());
+					}
+				} else {
+					RDispatcher dispatcher = (RDispatcher) batchState.lease("r");
+					dispatched = dispatcher.dispatchBatch(shared, checkVariables, codes, timeout);
+				}
+			} catch (ScriptException e) {
+				// report this for every check of the batch
+				dispatched = new ArrayList<Result>();
+				for (int i = 0; i < pending.size(); i++) {
+					Result result = new Result();
+					result.setStatus(Status.ERROR);
+					result.setOutput(new Output(e.getMessage()));
+					dispatched.add(result);
+				}
+			} finally {
+				batchState.release();
+			}
+			for (int i = 0; i < pending.size(); i++) {
+				results[pending.get(i)] = dispatched.get(i);
+			}
+		}
+		
+		List<Result> batchResults = new ArrayList<Result>();
+		for (int i = 0; i < checks.size(); i++) {
+			// set additional info before returning
+			Result result = results[i];
+			result.setCheck(checks.get(i));
+			result.setTimestamp(Calendar.getInstance().getTime());
+			batchResults.add(postProcess(result));
+		}
+		return batchResults;
+	}
+	
+	/**
+	 * Run one check on a number of documents with a single dispatch, so that the script engine
+	 * sets up the check once for all of them. Each document has the timeout of a check on its
+	 * own. The check must not inherit state.
+	 * @param check the check to run
+	 * @param documents the dialects of the documents to run it on
+	 * @return the result for each document, in the same order as the documents
+	 * @throws XPathExpressionException
+	 */
+	public static List<Result> runAcross(Check check, List<XMLDialect> documents) throws XPathExpressionException {
+		
+		Result[] results = new Result[documents.size()];
+		List<Integer> pending = new ArrayList<Integer>();
+		List<Map<String, Object>> documentVariables = new ArrayList<Map<String, Object>>();
+		String code = null;
+		long fetchMillis = 0;
+		
+		for (int i = 0; i < documents.size(); i++) {
+			XMLDialect xml = documents.get(i);
+			long timeout = xml.getTimeout(1);
+			if (timeout < 0) {
+				results[i] = budgetExhausted();
+				continue;
+			}
+			if (!xml.isCheckValid(check)) {
+				results[i] = new Result();
+				results[i].setStatus(Status.SKIP);
+				results[i].setOutput(new Output("Dialect for this check is not supported"));
+				continue;
+			}
+			if (code == null) {
+				long fetchStart = System.nanoTime();
+				code = xml.getCode(check, timeout);
+				fetchMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - fetchStart);
+			}
+			Map<String, Object> variables = xml.selectVariables(check);
+			if (xml.usesDocument(check, code)) {
+				variables.put("document", xml.getDocumentString());
+			}
+			variables.putAll(xml.getRunVariables());
+			pending.add(i);
+			documentVariables.add(variables);
+		}
+		
+		if (!pending.isEmpty()) {
+			log.debug("Running check " + check.getId() + " on " + pending.size() + " documents");
+			List<Result> dispatched = new ArrayList<Result>();
+			DispatchState acrossState = new DispatchState();
+			// each document has the timeout of a check, so that a runaway document only times out itself
+			long timeout = documents.get(pending.get(0)).getTimeout(1, fetchMillis);
+			try {
+				if (timeout < 0) {
+					for (int i = 0; i < pending.size(); i++) {
+						dispatched.add(budgetExhausted());
+					}
+				}
+				// a document that times out abandons the dispatcher, and the documents after it go to another one
+				while (dispatched.size() < pending.size()) {
+					Dispatcher dispatcher = acrossState.lease(check.getEnvironment());
+					List<Result> batch = dispatcher.dispatchBatch(
+							documentVariables.subList(dispatched.size(), pending.size()), code, check.getId(), timeout);
+					if (batch.isEmpty()) {
+						throw new ScriptException("No results for check " + check.getId());
+					}
+					dispatched.addAll(batch);
+				}
+			} catch (ScriptException e) {
+				for (int i = dispatched.size(); i < pending.size(); i++) {
+					Result result = new Result();
+					result.setStatus(Status.ERROR);
+					result.setOutput(new Output(e.getMessage()));
+					dispatched.add(result);
+				}
+			} finally {
+				acrossState.release();
+			}
+			for (int i = 0; i < pending.size(); i++) {
+				results[pending.get(i)] = dispatched.get(i);
+			}
+		}
+		
+		List<Result> documentResults = new ArrayList<Result>();
+		for (int i = 0; i < documents.size(); i++) {
+			Result result = results[i];
+			result.setCheck(check);
+			result.setTimestamp(Calendar.getInstance().getTime());
+			documentResults.add(documents.get(i).postProcess(result));
+		}
+		return documentResults;
+	}
+	
+	/*
+	 * The values of the selectors of a check, by selector name
+	 */
+	private Map<String, Object> selectVariables(Check check) throws XPathExpressionException {
+		Map<String, Object> variables = new HashMap<String, Object>();
+		if (check.getSelector() != null) {
+			for (Selector selector: check.getSelector()) {
+				
+				String name = selector.getName();
+				Object value = this.select(selector);
+				
+				// make available in script
+				variables.put(name, value);
+			}
+		}
+		return variables;
+	}
+	
+	/*
+	 * The code of a check, preceded by the code of its libraries. Fetching a library takes no
+	 * longer than the timeout, if there is one.
+	 */
+	private String getCode(Check check, long timeout) {
+		// assemble the code to run
+		String code = check.getCode();
+		
+		// gather extra code from external resources
+		List<URL> libraries = check.getLibrary();
+		if (libraries != null) {
+			String libraryContent = "";
+			for (URL library: libraries) {
+				// TODO: loading random code from a URL is very risky!
+				log.debug("Loading library code from URL: " + library);
+				// read the library from given URL
+				try {
+					URLConnection connection = library.openConnection();
+					connection.setConnectTimeout((int) Math.min(timeout, Integer.MAX_VALUE));
+					connection.setReadTimeout((int) Math.min(timeout, Integer.MAX_VALUE));
+					libraryContent += IOUtils.toString(connection.getInputStream(), "UTF-8");
+				} catch (IOException e) {
+					log.error("Could not load code library: " + e.getMessage(), e);
+				}
+			}
+			// combine libraries and code
+			code = libraryContent + code;
+		}
+		return code;
+	}
+	
+	/*
+	 * Make sure the state has a dispatcher for the check. A check that inherits state continues
+	 * with the dispatcher of the previous check if it has the same environment and can be
+	 * reclaimed. Otherwise it gets a clean dispatcher from the pool, with the variables of the
+	 * previous one added to its own: all of them for the same environment, and only those the
+	 * previous check exports for a different one. Returns false if there is no state to inherit.
+	 */
+	private boolean acquireDispatcher(Check check, DispatchState state, Map<String, Object> variables) throws ScriptException {
+		String environment = check.getEnvironment();
+		Dispatcher previous = state.dispatcher;
+		
+		if (previous != null && previous.isAbandoned()) {
+			// the previous check timed out and may still be running, so there is no state to use
+			state.release();
+			state.dispatcher = null;
+			previous = null;
+		}
+		
+		if (check.isInheritState() && previous != null) {
+			boolean sameEnvironment = previous.isEnvSupported(environment);
+			if (sameEnvironment && state.reclaim()) {
+				log.debug("Reusing dispatcher for persistent state check");
+				return true;
+			}
+			
+			// the bindings from previous dispatcher, as they were when it was released, or only
+			// those it exports to another environment
+			Map<String, Object> inherited = sameEnvironment ? state.getBindings() : state.getExported();
+			if (inherited == null) {
+				return false;
+			}
+			// the selected values, document and run variables of this check are its own
+			for (Map.Entry<String, Object> entry: inherited.entrySet()) {
+				if (!variables.containsKey(entry.getKey())) {
+					log.trace("binding: " + entry.getKey() + "=" + entry.getValue());
+					variables.put(entry.getKey(), entry.getValue());
+				}
+			}
+			log.debug("Binding " + (sameEnvironment ? "existing" : "exported") + " variables for new dispatcher");
+		}
+		
+		if (previous != null && state.leased && previous.isEnvSupported(environment)) {
+			// still ours, so only the variables have to go
+			previous.reset();
+			return true;
+		}
+		state.lease(environment);
+		log.debug("Leased check dispatcher for " + environment);
+		return true;
+	}
+	
+	/*
+	 * How long a number of checks can run: the check timeout for each of them, limited to what is
+	 * left of the time budget of the run. Zero is no limit, and a negative value means that the
+	 * budget has been used up.
+	 */
+	private long getTimeout(int checks) {
+		return getTimeout(checks, 0);
+	}
+	
+	/*
+	 * How long a number of checks can still run when they have already spent some of their time,
+	 * e.g. fetching their libraries
+	 */
+	private long getTimeout(int checks, long spentMillis) {
+		long timeout = checkTimeout * checks;
+		if (timeout > 0) {
+			timeout -= spentMillis;
+			if (timeout <= 0) {
+				return -1;
+			}
+		}
+		Long deadline = this.deadline;
+		if (deadline != null) {
+			long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+			if (remaining <= 0) {
+				return -1;
+			}
+			timeout = timeout > 0 ? Math.min(timeout, remaining) : remaining;
+		}
+		return timeout;
+	}
+	
+	private static Result librariesTimedOut() {
+		Result result = new Result();
+		result.setStatus(Status.ERROR);
+		result.setOutput(new Output("Check was not run, fetching its libraries used up its time limit"));
+		return result;
+	}
+	
+	private static Result budgetExhausted() {
+		Result result = new Result();
+		result.setStatus(Status.ERROR);
+		result.setOutput(new Output("Check was not run, the time budget of the suite was used up"));
+		return result;
+	}
+	
+	/**
+	 * The inputs that are the same for every check in this run. They are computed when the first
+	 * check is run and reused until one of the values they are derived from is changed.
+	 * @return the run level variables
+	 */
+	private synchronized Map<String, Object> getRunVariables() {
+		if (runVariables != null) {
+			return runVariables;
+		}
+		
+		Map<String, Object> variables = new HashMap<String, Object>();
+		
+		// include system metadata if available
+		if (this.systemMetadata != null) {
+			try {
+				ByteArrayOutputStream baos = new ByteArrayOutputStream();
+				TypeMarshaller.marshalTypeToOutputStream(systemMetadata, baos);
+				variables.put("systemMetadata", baos.toString("UTF-8"));
+				variables.put("datasource", systemMetadata.getOriginMemberNode().getValue());
+				// dateUploaded
+				// This unusual date format is acceptable to Solr - it must be GMT time, with
+				// no offset
+				SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+				df.setTimeZone(TimeZone.getTimeZone("GMT"));
+				variables.put("dateUploaded", df.format(systemMetadata.getDateUploaded()));
+				variables.put("authoritativeMemberNode", systemMetadata.getAuthoritativeMemberNode().getValue());
+				variables.put("systemMetadataPid", systemMetadata.getIdentifier().getValue());
+			} catch (Exception e) {
+				log.error("Could not serialize SystemMetadata for check", e);
+			}
+		}
+		
+		// make extra parameters available to the check if we have them
+		if (this.params != null) {
+			variables.put("mdq_params", params);
+		}
+		
+		// give the check a place to write files during the run
+		if (this.directory != null) {
+			variables.put("tempDir", directory);
+		}
+		
+		runVariables = Collections.unmodifiableMap(variables);
+		return runVariables;
+	}
+	
+	/**
+	 * The serialized document, produced the first time a check needs it
+	 * @return the document as an XML string
+	 */
+	private synchronized String getDocumentString() {
+		if (documentString == null) {
+			if (model.hasSource()) {
+				// the source is only kept for documents that should not be parsed if possible
+				documentString = model.getSourceText();
+			} else {
+				// (both views serialize identically, so use the parsed one)
+				synchronized (model) {
+					documentString = toXmlString(model.getNamespaceAwareDocument());
+				}
+			}
+		}
+		return documentString;
+	}
+	
+	/**
+	 * Determine if a check makes use of the 'document' variable, so that the document is only
+	 * serialized when it is needed. Scripts are checked for the name, and Java checks for a
+	 * 'document' bean property.
+	 * @param check the check to run
+	 * @param code the check code, including any libraries
+	 * @return true if the check can use the serialized document
+	 */
+	private boolean usesDocument(Check check, String code) {
+		if (code == null) {
+			return false;
+		}
+		if ("Java".equalsIgnoreCase(check.getEnvironment())) {
+			return documentProperties.computeIfAbsent(code.trim(), XMLDialect::hasDocumentProperty);
+		}
+		return DOCUMENT_VARIABLE.matcher(code).find();
+	}
+	
+	private static boolean hasDocumentProperty(String className) {
+		try {
+			BeanInfo info = Introspector.getBeanInfo(Class.forName(className));
+			for (PropertyDescriptor property: info.getPropertyDescriptors()) {
+				if (property.getName().equals("document") && property.getWriteMethod() != null) {
+					return true;
+				}
+			}
+			return false;
+		} catch (Exception | LinkageError e) {
+			// the dispatcher will report the problem, provide the document in case it is needed
+			return true;
+		}
+	}
+	
 	private Result postProcess(Result result) {
 		// Return the result as-is if there are no outputs to post-process
 		if (result.getOutput() == null) {
@@ -322,16 +808,18 @@ public class XMLDialect {
 			return true;
 		}
 		
-		XPath xpath = xPathfactory.newXPath();
-
-		for (Dialect dialect: check.getDialect()) {
+		// the numbers of the dialects in the index, if the check has been indexed
+		int[] numbers = dialectIndex == null ? null : dialectIndex.getDialects(check);
+		
+		for (int i = 0; i < check.getDialect().size(); i++) {
 			
+			Dialect dialect = check.getDialect().get(i);
 			String name = dialect.getName();
 			String expression = dialect.getXpath();
 			log.debug("Dialect name: " + name + ", expression: " + expression);
-			String value = xpath.evaluate(expression, document);
+			boolean valid = numbers == null ? this.evaluateDialect(expression) : this.isDialectValid(numbers[i]);
 			
-			if (Boolean.valueOf(value)) {
+			if (valid) {
 				log.debug("Dialect " + name + " is valid for document ");
 				return true;
 			} else {
@@ -344,51 +832,82 @@ public class XMLDialect {
 		return false;
 	}
 	
+	/*
+	 * Test the document for the indexed dialect expression with the given number. Each expression
+	 * is evaluated at most once per document, and an error is reported every time it is tested.
+	 */
+	private boolean isDialectValid(int number) throws XPathExpressionException {
+		Object outcome = dialectOutcomes.get(number);
+		if (outcome == null) {
+			try {
+				outcome = this.evaluateDialect(dialectIndex.getExpression(number));
+			} catch (XPathExpressionException e) {
+				outcome = e;
+			}
+			dialectOutcomes.compareAndSet(number, null, outcome);
+			outcome = dialectOutcomes.get(number);
+		}
+		if (outcome instanceof XPathExpressionException) {
+			throw (XPathExpressionException) outcome;
+		}
+		return (Boolean) outcome;
+	}
+	
+	private boolean evaluateDialect(String expression) throws XPathExpressionException {
+		dialectEvaluations.incrementAndGet();
+		String value = null;
+		if (streamed != null && streamed.contains(expression)) {
+			value = streamed.getString(expression);
+		} else {
+			XPathExpression xpath = xPathCache.getExpression(expression);
+			synchronized (model) {
+				value = xpath.evaluate(model.getDocument());
+			}
+		}
+		return Boolean.valueOf(value);
+	}
+	
 	private Object selectPath(Selector selector, Node contextNode) throws XPathExpressionException {
 		
 		Object value = null;
 		
 		// select one or more values from document
 		String selectorPath = selector.getXpath();
-		XPath xpath = xPathfactory.newXPath();
 		
 		// combine the found namespaces and any additional ones asserted by selector. order matters here
 		List<Namespace> selectorNamespaces = new ArrayList<Namespace>();
 		
-		if (this.namespaces.values() != null) {
-			selectorNamespaces.addAll(this.namespaces.values());
-		}
+		selectorNamespaces.addAll(this.getNamespaces());
 		if (selector.getNamespace() != null) {
 			selectorNamespaces.addAll(selector.getNamespace());
 		}
 
-		// do we have any to actually set now?
-		if (selectorNamespaces != null && selectorNamespaces.size() > 0) {
-			SimpleNamespaceContext nsContext = new SimpleNamespaceContext();
-			Iterator<Namespace> nsIter = selectorNamespaces.iterator();
-			while (nsIter.hasNext()) {
-				Namespace entry = nsIter.next();
-				String prefix = entry.getPrefix();
-				String uri = entry.getUri();
-                // Some metadata files may have improper xmlns declarations that don't include
-				// a prefix (encountered in Dryad Data), so skip these.
-				if(prefix == null) continue;
-
-				// make sure we are overriding the found namespace[s] with the asserted ones
-				String existing = nsContext.getNamespaceURI(prefix);
-				if (existing == null) {
-					nsContext.removeBinding(prefix);
-				}
-				nsContext.bindNamespaceUri(prefix, uri);
-			}
-			xpath.setNamespaceContext(nsContext);	
+		// make sure we are overriding the found namespace[s] with the asserted ones
+		Map<String, String> bindings = new HashMap<String, String>();
+		for (Namespace entry: selectorNamespaces) {
+			// Some metadata files may have improper xmlns declarations that don't include
+			// a prefix (encountered in Dryad Data), so skip these.
+			if (entry.getPrefix() == null) continue;
+			bindings.put(entry.getPrefix(), entry.getUri());
+		}
+		
+		XPathExpression xpath = null;
+		try {
+			xpath = xPathCache.getExpression(selectorPath, bindings);
+		} catch (XPathExpressionException xpee) {
+			log.error("Selector '" + selector.getName() + "'" + " has an invalid Xpath: " + xpee.getMessage());
+			return null;
 		}
 		
+		// we may already know that this expression does not select nodes
+		if (xPathCache.isScalar(selectorPath)) {
+			return selectValue(selector, xpath, contextNode);
+		}
 		
 		// try multiple first
 		NodeList nodes = null;
 		try {
-			nodes = (NodeList) xpath.evaluate(selectorPath, contextNode, XPathConstants.NODESET);
+			nodes = (NodeList) xpath.evaluate(contextNode, XPathConstants.NODESET);
 
 			if (nodes != null && nodes.getLength() == 1 && selector.getSubSelector() == null) {
 				
@@ -423,19 +942,156 @@ public class XMLDialect {
 			}  
 		} catch (XPathExpressionException xpee) {
 			log.debug("Defaulting to single value selection: " + xpee.getCause().getMessage());
+			xPathCache.setScalar(selectorPath);
 			
 			// try just a single value
-			try {
-				value = xpath.evaluate(selectorPath, contextNode);
-				value = retypeObject(value);
-			} catch (XPathExpressionException xpee2) {
-				log.error("Selector '" + selector.getName() + "'" + " could not select single value with given Xpath: " + xpee2.getCause().getMessage());
-				value = null;
+			value = selectValue(selector, xpath, contextNode);
+		}
+		
+		return value;
+	
+	}
+	
+	/*
+	 * Select the value of a selector, reusing the value if an identical selector has been
+	 * evaluated for this document already
+	 */
+	private Object select(Selector selector) throws XPathExpressionException {
+		String key = selectionKey(selector);
+		Object cached = selections.get(key);
+		if (cached != null) {
+			selectionHits.incrementAndGet();
+			return cached == NO_VALUE ? null : copyValue(cached);
+		}
+		selectionMisses.incrementAndGet();
+		
+		Object value = null;
+		if (this.isStreamed(selector)) {
+			value = this.selectStreamed(selector);
+		} else {
+			// the DOM caches node lists as it is read, so checks running on other threads wait
+			// (the values are cached, so each selector is only evaluated once per document)
+			synchronized (model) {
+				Document docToUse = null;
+				if (selector.isNamespaceAware()) {
+					docToUse = model.getNamespaceAwareDocument();
+				} else {
+					docToUse = model.getDocument();
+				}
+				value = this.selectPath(selector, docToUse);
 			}
 		}
 		
+		// checks get their own copy of list values, so keep one that they cannot modify
+		selections.putIfAbsent(key, value == null ? NO_VALUE : copyValue(value));
+		return value;
+	}
+	
+	/*
+	 * Selectors with the same key select the same value from the document: the expressions,
+	 * namespace awareness and asserted namespaces of the selector and its subselectors are the
+	 * same. The name does not matter.
+	 */
+	private static String selectionKey(Selector selector) {
+		StringBuilder key = new StringBuilder();
+		for (Selector s = selector; s != null; s = s.getSubSelector()) {
+			key.append(s.isNamespaceAware() ? 'N' : 'D').append(s.getXpath());
+			if (s.getNamespace() != null) {
+				for (Namespace namespace: s.getNamespace()) {
+					key.append('\u0000').append(namespace.getPrefix()).append('=').append(namespace.getUri());
+				}
+			}
+			key.append('\u0001');
+		}
+		return key.toString();
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static Object copyValue(Object value) {
+		if (value instanceof List) {
+			List<Object> copy = new ArrayList<Object>();
+			for (Object item: (List<Object>) value) {
+				copy.add(copyValue(item));
+			}
+			return copy;
+		}
+		// strings, numbers and booleans
 		return value;
+	}
+	
+	/**
+	 * Decide whether the checks in the index apply to this document by testing each of the
+	 * distinct dialect expressions only once. Checks that are not in the index have their
+	 * dialects evaluated every time they are run.
+	 * @param dialectIndex the dialect expressions of the checks that will be run
+	 */
+	public void setDialectIndex(DialectIndex dialectIndex) {
+		this.dialectOutcomes = new AtomicReferenceArray<Object>(dialectIndex.size());
+		this.dialectIndex = dialectIndex;
+	}
+	
+	/**
+	 * The number of selections that reused the value of an identical selector for this document
+	 * @return the number of cache hits
+	 */
+	public long getSelectionHits() {
+		return selectionHits.get();
+	}
+	
+	/**
+	 * The number of selections that were evaluated against this document
+	 * @return the number of cache misses
+	 */
+	public long getSelectionMisses() {
+		return selectionMisses.get();
+	}
+	
+	/**
+	 * The number of dialect expressions that were evaluated against this document
+	 * @return the number of evaluations
+	 */
+	public long getDialectEvaluations() {
+		return dialectEvaluations.get();
+	}
+	
+	private boolean isStreamed(Selector selector) {
+		return streamed != null && !selector.isNamespaceAware() && selector.getSubSelector() == null
+				&& streamed.contains(selector.getXpath());
+	}
+	
+	/*
+	 * Select the value of a selector from the streaming results, in the same form as selectPath()
+	 */
+	private Object selectStreamed(Selector selector) {
+		String selectorPath = selector.getXpath();
+		if (!streamed.isNodeSet(selectorPath)) {
+			return retypeObject(streamed.getString(selectorPath));
+		}
+		List<String> nodes = streamed.getNodes(selectorPath);
+		if (nodes.isEmpty()) {
+			return null;
+		} else if (nodes.size() == 1) {
+			// just return single value, as a String
+			return retypeObject(nodes.get(0));
+		}
+		// multiple values
+		List<Object> values = new ArrayList<Object>();
+		for (String node: nodes) {
+			values.add(retypeObject(node));
+		}
+		return values;
+	}
 	
+	private Object selectValue(Selector selector, XPathExpression xpath, Node contextNode) {
+		Object value = null;
+		try {
+			value = xpath.evaluate(contextNode);
+			value = retypeObject(value);
+		} catch (XPathExpressionException xpee) {
+			log.error("Selector '" + selector.getName() + "'" + " could not select single value with given Xpath: " + xpee.getCause().getMessage());
+			value = null;
+		}
+		return value;
 	}
 	/* Retype an object based on a few simple assumptions. A "String" value is
 	 * typically passed in. If only numeric characters are present in the String, then
@@ -463,20 +1119,51 @@ public class XMLDialect {
 		return params;
 	}
 
-	public void setParams(Map<String, Object> params) {
+	public synchronized void setParams(Map<String, Object> params) {
 		this.params = params;
+		this.runVariables = null;
 	}
 	
-	public void setDirectory(String dir) {
+	public synchronized void setDirectory(String dir) {
 		this .directory = dir;
+		this.runVariables = null;
+	}
+	
+	/**
+	 * Limit how long checks can run. A check that takes longer is stopped and reported with the
+	 * status ERROR, and checks that have not started when the time budget of the run is used up
+	 * are not run.
+	 * @param checkTimeout how long each check can run in milliseconds, 0 for no limit
+	 * @param deadline the System.nanoTime() by which all the checks have to be done, or null for no limit
+	 */
+	public void setTimeouts(long checkTimeout, Long deadline) {
+		this.checkTimeout = checkTimeout;
+		this.deadline = deadline;
+	}
+	
+	public XPathCache getXPathCache() {
+		return xPathCache;
+	}
+	
+	/**
+	 * Use a longer lived cache of compiled expressions, e.g. one that is shared by every run of a suite
+	 * @param xPathCache the cache to use
+	 */
+	public void setXPathCache(XPathCache xPathCache) {
+		this.xPathCache = xPathCache;
+	}
+	
+	public DocumentModel getDocumentModel() {
+		return model;
 	}
 	
 	public SystemMetadata getSystemMetadata() {
 		return systemMetadata;
 	}
 
-	public void setSystemMetadata(SystemMetadata systemMetadata) {
+	public synchronized void setSystemMetadata(SystemMetadata systemMetadata) {
 		this.systemMetadata = systemMetadata;
+		this.runVariables = null;
 	}
 
 	private String toXmlString(Document document) {
@@ -493,4 +1180,75 @@ public class XMLDialect {
 
 	}
 
+	/*
+	 * The dispatcher used by the last check of a sequence, which a following check can inherit
+	 * the script environment state from. Once the dispatcher has been returned to its pool it
+	 * belongs to whoever leases it next, so the state it had is copied before it is returned.
+	 * Every dispatcher is leased through a state, which holds at most one at a time, so that a
+	 * run never waits for a dispatcher while it holds another one.
+	 */
+	private static class DispatchState {
+		private Dispatcher dispatcher;
+		
+		// the variables that the last check exports to a following check in another environment
+		private List<String> exports;
+		
+		// false once the dispatcher has been returned to its pool
+		private boolean leased = false;
+		
+		// the bindings and exported variables of the dispatcher when it was returned
+		private Map<String, Object> bindings;
+		
+		private Map<String, Object> exported;
+		
+		/*
+		 * The bindings the last check left, or null if there are none
+		 */
+		private Map<String, Object> getBindings() {
+			return leased ? dispatcher.getBindings() : bindings;
+		}
+		
+		/*
+		 * The variables the last check exports, or null if it does not export any
+		 */
+		private Map<String, Object> getExported() {
+			if (!leased) {
+				return exported;
+			}
+			return exports == null || exports.isEmpty() ? null : dispatcher.exportVariables(exports);
+		}
+		
+		/*
+		 * Lease a clean dispatcher for an environment, returning the one held until now
+		 */
+		private Dispatcher lease(String environment) throws ScriptException {
+			release();
+			dispatcher = DispatcherPool.lease(environment);
+			leased = true;
+			return dispatcher;
+		}
+		
+		private boolean reclaim() {
+			if (!leased && dispatcher != null) {
+				leased = DispatcherPool.reclaim(dispatcher);
+			}
+			return leased;
+		}
+		
+		private void release() {
+			if (leased) {
+				bindings = null;
+				exported = null;
+				if (!dispatcher.isAbandoned()) {
+					// the dispatcher only resets its bindings when it is leased again, so a shallow copy will do
+					Map<String, Object> current = dispatcher.getBindings();
+					bindings = current == null ? null : new HashMap<String, Object>(current);
+					exported = getExported();
+				}
+				DispatcherPool.release(dispatcher);
+				leased = false;
+			}
+		}
+	}
+
 }
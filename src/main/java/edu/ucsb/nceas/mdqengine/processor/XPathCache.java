@@ -0,0 +1,167 @@
+package edu.ucsb.nceas.mdqengine.processor;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.util.xml.SimpleNamespaceContext;
+
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A cache of compiled XPath expressions, keyed by the expression and the namespace bindings
+ * that it uses. An instance is meant to live as long as the Suite or Check that the expressions
+ * come from, so that every document that is run reuses the same compiled expressions.
+ * <p>
+ * Only the bindings for prefixes that actually appear in an expression are part of its key,
+ * so the (typically prefix free) selector and dialect expressions are compiled once no matter
+ * which namespaces a particular document declares.
+ * </p>
+ * <p>
+ * The cache can be shared by several threads. Compiled JAXP expressions are not thread safe
+ * themselves, so each thread gets its own compiled copy and an expression returned by
+ * {@link #getExpression(String, Map)} must only be evaluated by the thread that requested it.
+ * </p>
+ */
+public class XPathCache {
+
+	// a qualified name prefix, but not an axis specifier (e.g. 'child::') or part of a longer name
+	private static final Pattern PREFIX = Pattern.compile("(?<![\\w.:-])([A-Za-z_][\\w.-]*):(?!:)");
+
+	// XPathFactory is not thread safe and is expensive to look up, so keep one per thread
+	private static final ThreadLocal<XPathFactory> factories = ThreadLocal.withInitial(XPathFactory::newInstance);
+
+	private ConcurrentMap<String, ThreadLocal<XPathExpression>> expressions = new ConcurrentHashMap<>();
+
+	private ConcurrentMap<String, Set<String>> prefixes = new ConcurrentHashMap<>();
+
+	private Set<String> scalarExpressions = ConcurrentHashMap.newKeySet();
+
+	public static Log log = LogFactory.getLog(XPathCache.class);
+
+	/**
+	 * Get the compiled form of an expression that does not use any namespace prefixes.
+	 * @param xpath the expression
+	 * @return the compiled expression, for use by the calling thread only
+	 * @throws XPathExpressionException if the expression cannot be compiled
+	 */
+	public XPathExpression getExpression(String xpath) throws XPathExpressionException {
+		return getExpression(xpath, null);
+	}
+
+	/**
+	 * Get the compiled form of an expression, compiling it if this thread has not done so already.
+	 * @param xpath the expression
+	 * @param bindings the namespace prefix to uri bindings that are in effect, may be null
+	 * @return the compiled expression, for use by the calling thread only
+	 * @throws XPathExpressionException if the expression cannot be compiled
+	 */
+	public XPathExpression getExpression(String xpath, Map<String, String> bindings) throws XPathExpressionException {
+		Map<String, String> used = usedBindings(xpath, bindings);
+		String key = key(xpath, used);
+
+		ThreadLocal<XPathExpression> compiled = expressions.get(key);
+		if (compiled == null) {
+			// compile now so that syntax errors are reported to the caller, then share the key
+			XPathExpression expression = compile(xpath, used);
+			compiled = ThreadLocal.withInitial(() -> {
+				try {
+					return compile(xpath, used);
+				} catch (XPathExpressionException e) {
+					// this expression has compiled before, so this is not expected
+					throw new IllegalStateException(e);
+				}
+			});
+			ThreadLocal<XPathExpression> existing = expressions.putIfAbsent(key, compiled);
+			if (existing != null) {
+				compiled = existing;
+			} else {
+				compiled.set(expression);
+				return expression;
+			}
+		}
+		return compiled.get();
+	}
+
+	/**
+	 * Record that an expression evaluates to a scalar (string, number or boolean) instead of a
+	 * node set. This only depends on the expression itself, so later evaluations can skip trying
+	 * to select nodes.
+	 * @param xpath the expression
+	 */
+	public void setScalar(String xpath) {
+		scalarExpressions.add(xpath);
+	}
+
+	/**
+	 * Is the expression known to evaluate to a scalar value?
+	 * @param xpath the expression
+	 * @return true if {@link #setScalar(String)} has been called for the expression
+	 */
+	public boolean isScalar(String xpath) {
+		return scalarExpressions.contains(xpath);
+	}
+
+	/**
+	 * The number of distinct expressions (including namespace bindings) that have been compiled
+	 * @return the cache size
+	 */
+	public int size() {
+		return expressions.size();
+	}
+
+	private XPathExpression compile(String xpath, Map<String, String> bindings) throws XPathExpressionException {
+		log.trace("Compiling expression: " + xpath);
+		XPath path = factories.get().newXPath();
+		if (!bindings.isEmpty()) {
+			SimpleNamespaceContext nsContext = new SimpleNamespaceContext();
+			for (Map.Entry<String, String> entry: bindings.entrySet()) {
+				nsContext.bindNamespaceUri(entry.getKey(), entry.getValue());
+			}
+			path.setNamespaceContext(nsContext);
+		}
+		return path.compile(xpath);
+	}
+
+	private Map<String, String> usedBindings(String xpath, Map<String, String> bindings) {
+		if (bindings == null || bindings.isEmpty()) {
+			return Collections.emptyMap();
+		}
+		Set<String> found = prefixes.get(xpath);
+		if (found == null) {
+			found = new HashSet<>();
+			Matcher matcher = PREFIX.matcher(xpath);
+			while (matcher.find()) {
+				found.add(matcher.group(1));
+			}
+			prefixes.putIfAbsent(xpath, found);
+		}
+		// sorted so that the key does not depend on the order the bindings were declared in
+		Map<String, String> used = new TreeMap<>();
+		for (String prefix: found) {
+			String uri = bindings.get(prefix);
+			if (uri != null) {
+				used.put(prefix, uri);
+			}
+		}
+		return used;
+	}
+
+	private String key(String xpath, Map<String, String> bindings) {
+		if (bindings.isEmpty()) {
+			return xpath;
+		}
+		StringBuilder key = new StringBuilder(xpath);
+		for (Map.Entry<String, String> entry: bindings.entrySet()) {
+			key.append('\u0000').append(entry.getKey()).append('=').append(entry.getValue());
+		}
+		return key.toString();
+	}
+
+}
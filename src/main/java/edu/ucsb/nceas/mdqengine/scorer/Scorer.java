@@ -8,6 +8,7 @@ import edu.ucsb.nceas.mdqengine.exception.MetadigProcessException;
 import edu.ucsb.nceas.mdqengine.filestore.MetadigFile;
 import edu.ucsb.nceas.mdqengine.filestore.MetadigFileStore;
 import edu.ucsb.nceas.mdqengine.filestore.StorageType;
+import edu.ucsb.nceas.mdqengine.serialize.QueueEntryMarshaller;
 import edu.ucsb.nceas.mdqengine.solr.QualityScore;
 import org.apache.commons.configuration2.ex.ConfigurationException;
 import org.apache.commons.csv.CSVFormat;
@@ -113,6 +114,7 @@ public class Scorer {
             CNauthToken =  cfg.getString("CN.authToken");
             CNserviceUrl = cfg.getString("CN.serviceUrl");
             CNsubjectId = cfg.getString("CN.subjectId");
+            QueueEntryMarshaller.setLegacyFormat(Boolean.parseBoolean(cfg.getString("queue.legacy.format")));
         } catch (ConfigurationException cex) {
             log.error("Unable to read configuration");
             MetadigException me = new MetadigException("Unable to read config properties");
@@ -136,9 +138,6 @@ public class Scorer {
             @Override
             public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) throws IOException {
 
-                // Read the queue entry
-                ByteArrayInputStream bis = new ByteArrayInputStream(body);
-                ObjectInput in = new ObjectInputStream(bis);
                 ScorerQueueEntry qEntry = null;
                 String graphFilename = null;
                 MetadigException metadigException = null;
@@ -157,8 +156,8 @@ public class Scorer {
 
                 // Read the queue entry passed to the callback from RabbitMQ
                 try {
-                    qEntry = (ScorerQueueEntry) in.readObject();
-                } catch (java.lang.ClassNotFoundException e) {
+                    qEntry = QueueEntryMarshaller.scorerQueueEntryFromBytes(body);
+                } catch (IOException e) {
                     log.error("Unable to process graph request");
                     e.printStackTrace();
                     return;
@@ -787,10 +786,7 @@ public class Scorer {
                     + ", suiteId: " + suiteId
                     + "\n");
 
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            ObjectOutput out = new ObjectOutputStream(bos);
-            out.writeObject(qEntry);
-            message = bos.toByteArray();
+            message = QueueEntryMarshaller.toBytes(qEntry);
 
             log.info(" [x] Done");
             this.writeCompletedQueue(message);
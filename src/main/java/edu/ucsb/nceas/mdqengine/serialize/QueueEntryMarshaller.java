@@ -0,0 +1,508 @@
+package edu.ucsb.nceas.mdqengine.serialize;
+
+import edu.ucsb.nceas.mdqengine.QueueEntry;
+import edu.ucsb.nceas.mdqengine.exception.MetadigException;
+import edu.ucsb.nceas.mdqengine.scorer.ScorerQueueEntry;
+import org.apache.commons.io.IOUtils;
+import org.dataone.service.types.v2.SystemMetadata;
+import org.dataone.service.util.TypeMarshaller;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Converts the entries that the controller, workers and scorer exchange through RabbitMQ to and
+ * from bytes.
+ * <p>
+ * A message starts with a header of the characters 'MDQ', the format version and the kind of
+ * entry. The fields follow, each as a tag, the length of its value and the value, and a zero tag
+ * ends the entry. Fields that are null are left out, and a reader skips the tags it does not
+ * know, so fields can be added without changing the version. The metadata document, the run
+ * XML and the system metadata are gzipped when they are large.
+ * </p>
+ * <p>
+ * Entries that were written with Java serialization, by a version that did not have this format,
+ * are still read. Writing them can be enabled while the processes are being upgraded, with
+ * {@link #setLegacyFormat(boolean)}.
+ * </p>
+ */
+public class QueueEntryMarshaller {
+
+	private static final byte[] MAGIC = { 'M', 'D', 'Q' };
+
+	private static final int VERSION = 1;
+
+	private static final int QUEUE_ENTRY = 1;
+
+	private static final int SCORER_QUEUE_ENTRY = 2;
+
+	// the first bytes of a Java serialization stream
+	private static final int JAVA_MAGIC_0 = 0xAC;
+
+	private static final int JAVA_MAGIC_1 = 0xED;
+
+	// text of at least this many bytes is gzipped
+	private static final int COMPRESSION_THRESHOLD = 1024;
+
+	private static final int RAW = 0;
+
+	private static final int GZIP = 1;
+
+	// the fields of a QueueEntry
+	private static final int MEMBER_NODE = 1;
+	private static final int METADATA_PID = 2;
+	private static final int METADATA_DOC = 3;
+	private static final int QUALITY_SUITE_ID = 4;
+	private static final int LOCAL_FILE_PATH = 5;
+	private static final int REQUEST_DATE_TIME = 6;
+	private static final int SYSTEM_METADATA = 7;
+	private static final int RUN_XML = 8;
+	private static final int PROCESSING_SECONDS = 9;
+	private static final int INDEXING_SECONDS = 10;
+	private static final int TOTAL_SECONDS = 11;
+	private static final int EXCEPTION = 12;
+	private static final int HOSTNAME = 13;
+	private static final int METADATA_DOC_CLAIM = 14;
+	private static final int RUN_XML_CLAIM = 15;
+
+	// the fields of a ScorerQueueEntry
+	private static final int SCORER_NODE_ID = 1;
+	private static final int SCORER_QUALITY_SUITE_ID = 2;
+	private static final int SCORER_COLLECTION_ID = 3;
+	private static final int SCORER_FORMAT_FAMILY = 4;
+	private static final int SCORER_REQUEST_DATE_TIME = 5;
+	private static final int SCORER_PROCESSING_SECONDS = 6;
+	private static final int SCORER_EXCEPTION = 7;
+	private static final int SCORER_HOSTNAME = 8;
+
+	private static volatile boolean legacyFormat = false;
+
+	/**
+	 * Write entries with Java serialization, so that processes which only read that can read them
+	 * @param legacy true to write Java serialization, false for the binary format
+	 */
+	public static void setLegacyFormat(boolean legacy) {
+		legacyFormat = legacy;
+	}
+
+	/**
+	 * Write a QueueEntry as a message body
+	 * @param entry the entry
+	 * @return the bytes of the entry
+	 * @throws IOException if the system metadata of the entry cannot be written
+	 */
+	public static byte[] toBytes(QueueEntry entry) throws IOException {
+		if (legacyFormat) {
+			return serialize(entry);
+		}
+		EntryWriter writer = new EntryWriter(QUEUE_ENTRY);
+		writer.writeString(MEMBER_NODE, entry.getMemberNode());
+		writer.writeString(METADATA_PID, entry.getMetadataPid());
+		writer.writeText(METADATA_DOC, entry.getMetadataDoc());
+		writer.writeString(QUALITY_SUITE_ID, entry.getQualitySuiteId());
+		writer.writeString(LOCAL_FILE_PATH, entry.getLocalFilePath());
+		writer.writeDateTime(REQUEST_DATE_TIME, entry.getRequestDataTime());
+		writer.writeSystemMetadata(SYSTEM_METADATA, entry.getSystemMetadata());
+		writer.writeText(RUN_XML, entry.getRunXML());
+		writer.writeLong(PROCESSING_SECONDS, entry.getProcessingElapsedTimeSeconds());
+		writer.writeLong(INDEXING_SECONDS, entry.getIndexingElapsedTimeSeconds());
+		writer.writeLong(TOTAL_SECONDS, entry.getTotalElapsedTimeSeconds());
+		writer.writeException(EXCEPTION, entry.getException());
+		writer.writeString(HOSTNAME, entry.getHostname());
+		writer.writeString(METADATA_DOC_CLAIM, entry.getMetadataDocClaim());
+		writer.writeString(RUN_XML_CLAIM, entry.getRunXMLClaim());
+		return writer.toBytes();
+	}
+
+	/**
+	 * Write a ScorerQueueEntry as a message body
+	 * @param entry the entry
+	 * @return the bytes of the entry
+	 * @throws IOException if the entry cannot be written
+	 */
+	public static byte[] toBytes(ScorerQueueEntry entry) throws IOException {
+		if (legacyFormat) {
+			return serialize(entry);
+		}
+		EntryWriter writer = new EntryWriter(SCORER_QUEUE_ENTRY);
+		writer.writeString(SCORER_NODE_ID, entry.getNodeId());
+		writer.writeString(SCORER_QUALITY_SUITE_ID, entry.getQualitySuiteId());
+		writer.writeString(SCORER_COLLECTION_ID, entry.getCollectionId());
+		writer.writeString(SCORER_FORMAT_FAMILY, entry.getFormatFamily());
+		writer.writeDateTime(SCORER_REQUEST_DATE_TIME, entry.getRequestDataTime());
+		writer.writeLong(SCORER_PROCESSING_SECONDS, entry.getProcessingElapsedTimeSeconds());
+		writer.writeException(SCORER_EXCEPTION, entry.getException());
+		writer.writeString(SCORER_HOSTNAME, entry.getHostname());
+		return writer.toBytes();
+	}
+
+	/**
+	 * Read a QueueEntry, in the binary format or Java serialization
+	 * @param bytes the body of the message
+	 * @return the entry
+	 * @throws IOException if the message is not a QueueEntry, or is damaged
+	 */
+	public static QueueEntry queueEntryFromBytes(byte[] bytes) throws IOException {
+		if (isJavaSerialization(bytes)) {
+			return deserialize(bytes, QueueEntry.class);
+		}
+		EntryReader reader = new EntryReader(bytes, QUEUE_ENTRY);
+		QueueEntry entry = new QueueEntry(null, null, null, null, null, null, null, null, null);
+		int tag;
+		while ((tag = reader.next()) != 0) {
+			switch (tag) {
+			case MEMBER_NODE: entry.setMemberNode(reader.readString()); break;
+			case METADATA_PID: entry.setMetadataPid(reader.readString()); break;
+			case METADATA_DOC: entry.setMetadataDoc(reader.readText()); break;
+			case QUALITY_SUITE_ID: entry.setQualitySuiteId(reader.readString()); break;
+			case LOCAL_FILE_PATH: entry.setLocalFilePath(reader.readString()); break;
+			case REQUEST_DATE_TIME: entry.setRequestDataTime(reader.readDateTime()); break;
+			case SYSTEM_METADATA: entry.setSystemMetadata(reader.readSystemMetadata()); break;
+			case RUN_XML: entry.setRunXML(reader.readText()); break;
+			case PROCESSING_SECONDS: entry.setProcessingElapsedTimeSeconds(reader.readLong()); break;
+			case INDEXING_SECONDS: entry.setIndexingElapsedTimeSeconds(reader.readLong()); break;
+			case TOTAL_SECONDS: entry.setTotalElapsedTimeSeconds(reader.readLong()); break;
+			case EXCEPTION: entry.setException(reader.readException()); break;
+			case HOSTNAME: entry.setHostname(reader.readString()); break;
+			case METADATA_DOC_CLAIM: entry.setMetadataDocClaim(reader.readString()); break;
+			case RUN_XML_CLAIM: entry.setRunXMLClaim(reader.readString()); break;
+			default: reader.skip();
+			}
+		}
+		return entry;
+	}
+
+	/**
+	 * Read a ScorerQueueEntry, in the binary format or Java serialization
+	 * @param bytes the body of the message
+	 * @return the entry
+	 * @throws IOException if the message is not a ScorerQueueEntry, or is damaged
+	 */
+	public static ScorerQueueEntry scorerQueueEntryFromBytes(byte[] bytes) throws IOException {
+		if (isJavaSerialization(bytes)) {
+			return deserialize(bytes, ScorerQueueEntry.class);
+		}
+		EntryReader reader = new EntryReader(bytes, SCORER_QUEUE_ENTRY);
+		String nodeId = null;
+		String qualitySuiteId = null;
+		String collectionId = null;
+		String formatFamily = null;
+		DateTime requestDateTime = null;
+		long processingSeconds = 0;
+		Exception exception = null;
+		String hostname = null;
+		int tag;
+		while ((tag = reader.next()) != 0) {
+			switch (tag) {
+			case SCORER_NODE_ID: nodeId = reader.readString(); break;
+			case SCORER_QUALITY_SUITE_ID: qualitySuiteId = reader.readString(); break;
+			case SCORER_COLLECTION_ID: collectionId = reader.readString(); break;
+			case SCORER_FORMAT_FAMILY: formatFamily = reader.readString(); break;
+			case SCORER_REQUEST_DATE_TIME: requestDateTime = reader.readDateTime(); break;
+			case SCORER_PROCESSING_SECONDS: processingSeconds = reader.readLong(); break;
+			case SCORER_EXCEPTION: exception = reader.readException(); break;
+			case SCORER_HOSTNAME: hostname = reader.readString(); break;
+			default: reader.skip();
+			}
+		}
+		// there is no setter for the collection id
+		ScorerQueueEntry entry = new ScorerQueueEntry(collectionId, qualitySuiteId, nodeId, formatFamily, requestDateTime);
+		entry.setProcessingElapsedTimeSeconds(processingSeconds);
+		entry.setException(exception);
+		entry.setHostname(hostname);
+		return entry;
+	}
+
+	private static boolean isJavaSerialization(byte[] bytes) {
+		return bytes.length >= 2 && (bytes[0] & 0xFF) == JAVA_MAGIC_0 && (bytes[1] & 0xFF) == JAVA_MAGIC_1;
+	}
+
+	private static byte[] serialize(Serializable entry) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		ObjectOutput out = new ObjectOutputStream(bos);
+		out.writeObject(entry);
+		out.close();
+		return bos.toByteArray();
+	}
+
+	private static <T> T deserialize(byte[] bytes, Class<T> type) throws IOException {
+		ObjectInput in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+		try {
+			Object entry = in.readObject();
+			if (!type.isInstance(entry)) {
+				throw new IOException("Expected a " + type.getSimpleName() + ", not a " + entry.getClass().getName());
+			}
+			return type.cast(entry);
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Unable to read legacy " + type.getSimpleName() + ": " + e.getMessage(), e);
+		}
+	}
+
+	private static byte[] gzip(byte[] bytes) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(bytes.length / 4);
+		GZIPOutputStream out = new GZIPOutputStream(bos);
+		out.write(bytes);
+		out.close();
+		return bos.toByteArray();
+	}
+
+	private static byte[] gunzip(byte[] bytes) throws IOException {
+		return IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(bytes)));
+	}
+
+	/*
+	 * Writes the header and fields of an entry
+	 */
+	private static class EntryWriter {
+
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+		private final DataOutputStream out = new DataOutputStream(bytes);
+
+		private EntryWriter(int kind) throws IOException {
+			out.write(MAGIC);
+			out.writeByte(VERSION);
+			out.writeByte(kind);
+		}
+
+		private void writeField(int tag, byte[] value) throws IOException {
+			out.writeByte(tag);
+			out.writeInt(value.length);
+			out.write(value);
+		}
+
+		private void writeString(int tag, String value) throws IOException {
+			if (value != null) {
+				writeField(tag, value.getBytes(StandardCharsets.UTF_8));
+			}
+		}
+
+		/*
+		 * Text that may be large, gzipped if that makes it smaller
+		 */
+		private void writeText(int tag, String value) throws IOException {
+			if (value != null) {
+				writeCompressed(tag, value.getBytes(StandardCharsets.UTF_8));
+			}
+		}
+
+		private void writeCompressed(int tag, byte[] value) throws IOException {
+			int encoding = RAW;
+			if (value.length >= COMPRESSION_THRESHOLD) {
+				byte[] compressed = gzip(value);
+				if (compressed.length < value.length) {
+					encoding = GZIP;
+					value = compressed;
+				}
+			}
+			out.writeByte(tag);
+			out.writeInt(value.length + 1);
+			out.writeByte(encoding);
+			out.write(value);
+		}
+
+		private void writeLong(int tag, long value) throws IOException {
+			out.writeByte(tag);
+			out.writeInt(8);
+			out.writeLong(value);
+		}
+
+		private void writeDateTime(int tag, DateTime value) throws IOException {
+			if (value != null) {
+				ByteArrayOutputStream field = new ByteArrayOutputStream();
+				DataOutputStream fieldOut = new DataOutputStream(field);
+				fieldOut.writeLong(value.getMillis());
+				fieldOut.writeUTF(value.getZone().getID());
+				writeField(tag, field.toByteArray());
+			}
+		}
+
+		private void writeSystemMetadata(int tag, SystemMetadata value) throws IOException {
+			if (value != null) {
+				ByteArrayOutputStream xml = new ByteArrayOutputStream();
+				try {
+					TypeMarshaller.marshalTypeToOutputStream(value, xml);
+				} catch (Exception e) {
+					throw new IOException("Unable to write system metadata: " + e.getMessage(), e);
+				}
+				writeCompressed(tag, xml.toByteArray());
+			}
+		}
+
+		/*
+		 * The class and message of an exception and of its cause, as the stack traces are not
+		 * used by the receiver
+		 */
+		private void writeException(int tag, Exception value) throws IOException {
+			if (value != null) {
+				ByteArrayOutputStream field = new ByteArrayOutputStream();
+				DataOutputStream fieldOut = new DataOutputStream(field);
+				writeThrowable(fieldOut, value);
+				Throwable cause = value.getCause();
+				fieldOut.writeBoolean(cause != null);
+				if (cause != null) {
+					writeThrowable(fieldOut, cause);
+				}
+				writeField(tag, field.toByteArray());
+			}
+		}
+
+		private void writeThrowable(DataOutputStream fieldOut, Throwable value) throws IOException {
+			fieldOut.writeUTF(value.getClass().getName());
+			String message = value.getMessage();
+			fieldOut.writeBoolean(message != null);
+			if (message != null) {
+				byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+				fieldOut.writeInt(bytes.length);
+				fieldOut.write(bytes);
+			}
+		}
+
+		private byte[] toBytes() throws IOException {
+			out.writeByte(0);
+			out.flush();
+			return bytes.toByteArray();
+		}
+	}
+
+	/*
+	 * Reads the fields of an entry, after checking its header
+	 */
+	private static class EntryReader {
+
+		private final DataInputStream in;
+
+		private byte[] value = null;
+
+		private EntryReader(byte[] bytes, int kind) throws IOException {
+			in = new DataInputStream(new ByteArrayInputStream(bytes));
+			byte[] magic = new byte[MAGIC.length];
+			try {
+				in.readFully(magic);
+				if (!Arrays.equals(magic, MAGIC)) {
+					throw new IOException("Not a queue entry message");
+				}
+				int version = in.readUnsignedByte();
+				if (version > VERSION) {
+					throw new IOException("Unsupported queue entry version " + version + ", the latest is " + VERSION);
+				}
+				int actual = in.readUnsignedByte();
+				if (actual != kind) {
+					throw new IOException("Expected queue entry kind " + kind + ", not " + actual);
+				}
+			} catch (EOFException e) {
+				throw new IOException("Not a queue entry message");
+			}
+		}
+
+		/*
+		 * Read the next field, returning its tag, or 0 at the end of the entry
+		 */
+		private int next() throws IOException {
+			try {
+				int tag = in.readUnsignedByte();
+				if (tag == 0) {
+					return 0;
+				}
+				int length = in.readInt();
+				if (length < 0 || length > in.available()) {
+					throw new IOException("Queue entry field " + tag + " is damaged");
+				}
+				value = new byte[length];
+				in.readFully(value);
+				return tag;
+			} catch (EOFException e) {
+				throw new IOException("Queue entry is truncated");
+			}
+		}
+
+		private void skip() {
+			value = null;
+		}
+
+		private String readString() {
+			return new String(value, StandardCharsets.UTF_8);
+		}
+
+		private byte[] readCompressed() throws IOException {
+			if (value.length == 0) {
+				throw new IOException("Queue entry field has no encoding");
+			}
+			byte[] bytes = Arrays.copyOfRange(value, 1, value.length);
+			switch (value[0]) {
+			case RAW: return bytes;
+			case GZIP: return gunzip(bytes);
+			default: throw new IOException("Unknown queue entry field encoding " + value[0]);
+			}
+		}
+
+		private String readText() throws IOException {
+			return new String(readCompressed(), StandardCharsets.UTF_8);
+		}
+
+		private long readLong() throws IOException {
+			return field().readLong();
+		}
+
+		private DateTime readDateTime() throws IOException {
+			DataInputStream field = field();
+			long millis = field.readLong();
+			return new DateTime(millis, DateTimeZone.forID(field.readUTF()));
+		}
+
+		private SystemMetadata readSystemMetadata() throws IOException {
+			try {
+				return TypeMarshaller.unmarshalTypeFromStream(SystemMetadata.class, new ByteArrayInputStream(readCompressed()));
+			} catch (IOException e) {
+				throw e;
+			} catch (Exception e) {
+				throw new IOException("Unable to read system metadata: " + e.getMessage(), e);
+			}
+		}
+
+		/*
+		 * A MetadigException is recreated with its own class, so receivers can tell what failed.
+		 * Other exceptions, and causes, become an Exception with the message of the original.
+		 */
+		private Exception readException() throws IOException {
+			DataInputStream field = field();
+			String className = field.readUTF();
+			String message = readMessage(field);
+			Exception cause = null;
+			if (field.readBoolean()) {
+				String causeClassName = field.readUTF();
+				String causeMessage = readMessage(field);
+				cause = new Exception(causeMessage == null ? causeClassName : causeMessage);
+			}
+			try {
+				// only MetadigExceptions are created again, other classes named by a message are not even initialized
+				Class<?> type = Class.forName(className, false, QueueEntryMarshaller.class.getClassLoader());
+				if (MetadigException.class.isAssignableFrom(type)) {
+					return (Exception) type.getConstructor(String.class, Throwable.class).newInstance(message, cause);
+				}
+			} catch (ReflectiveOperationException | LinkageError e) {
+				// fall through to a plain exception
+			}
+			return new Exception(className + (message == null ? "" : ": " + message), cause);
+		}
+
+		private String readMessage(DataInputStream field) throws IOException {
+			if (!field.readBoolean()) {
+				return null;
+			}
+			byte[] bytes = new byte[field.readInt()];
+			field.readFully(bytes);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+
+		private DataInputStream field() {
+			return new DataInputStream(new ByteArrayInputStream(value));
+		}
+	}
+
+}
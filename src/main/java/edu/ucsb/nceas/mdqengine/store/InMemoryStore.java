@@ -1,22 +1,11 @@
 package edu.ucsb.nceas.mdqengine.store;
 
-import edu.ucsb.nceas.mdqengine.MDQconfig;
 import edu.ucsb.nceas.mdqengine.exception.MetadigStoreException;
 import edu.ucsb.nceas.mdqengine.model.*;
-import edu.ucsb.nceas.mdqengine.serialize.XmlMarshaller;
-import org.apache.commons.configuration2.ex.ConfigurationException;
-import org.apache.commons.io.IOUtils;
-import org.apache.commons.lang.ArrayUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.dataone.service.types.v2.Node;
-import org.springframework.core.io.Resource;
-import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
-import org.xml.sax.SAXException;
 
-import javax.xml.bind.JAXBException;
-import java.io.IOException;
-import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
@@ -37,95 +26,24 @@ public class InMemoryStore implements MDQStore{
 	
 	Map<String, Run> runs = new HashMap<String, Run>();
 	
+	protected Log log = LogFactory.getLog(this.getClass());
+
+	/**
+	 * Create a store with the suites and checks that are currently in the registry of the process
+	 * @throws MetadigStoreException if the registry cannot be loaded
+	 */
 	public InMemoryStore() throws MetadigStoreException {
-		this.init();
+		this(SuiteRegistry.getInstance().getSnapshot());
 	}
-	protected Log log = LogFactory.getLog(this.getClass());
-	
-	private void init() throws MetadigStoreException {
-
-		MDQconfig cfg = null;
-
-	    try {
-			cfg = new MDQconfig();
-		} catch (IOException | ConfigurationException e) {
-
-		}
-		String storeDirectory;
-
-		try {
-			storeDirectory = cfg.getString("metadig.base.directory");
-		} catch (ConfigurationException cex) {
-			log.error("Unable to read configuration");
-			MetadigStoreException mse = new MetadigStoreException("Unable to read config properties");
-			mse.initCause(cex.getCause());
-			throw mse;
-		}
-		
-		PathMatchingResourcePatternResolver resolver = new PathMatchingResourcePatternResolver();
-		
-		Resource[] suiteResources = null;
-		// load all the resources from local files
-		try {
-			suiteResources  = resolver.getResources("classpath*:/suites/*.xml");
-			// do we have an additional location for these?
-			if (storeDirectory != null) {
-				log.info("Reading suites from: file://" + storeDirectory + "/suites");
-				Resource[] additionalSuiteResources = resolver.getResources("file://" + storeDirectory + "/suites/*.xml");
-				log.debug("Adding " + additionalSuiteResources.length + " additional suites");
-				suiteResources = (Resource[]) ArrayUtils.addAll(suiteResources, additionalSuiteResources);
-			}
-		} catch (IOException e) {
-			log.error("Could not read local suite resources: " + e.getMessage(), e);
-		}
-		if (suiteResources != null) {
-			for (Resource resource: suiteResources) {
-				Suite suite = null;
-				try {
-					URL url = resource.getURL();
-					log.debug("Loading suite found at: " + url.toString());
-					String xml = IOUtils.toString(url.openStream(), "UTF-8");
-					suite = (Suite) XmlMarshaller.fromXml(xml, Suite.class);
-				} catch (JAXBException | IOException | SAXException e) {
-					log.warn("Could not load suite '" + resource.getFilename() + "' due to an error: " + e.getMessage() + ".");
-					continue;
-				}
-				this.createSuite(suite);
-	
-			}
-		}
-		
-		// checks
-		Resource[] checkResources = null;
-		// load all the resources from local files
-		try {
-			checkResources  = resolver.getResources("classpath*:/checks/*.xml");
-			// do we have an additional location for these?
-			if (storeDirectory != null) {
-				log.debug("Reading checks from: file://" + storeDirectory + "/checks");
-				Resource[] additionalCheckResources = resolver.getResources("file://" + storeDirectory + "/checks/*.xml");
-				checkResources = (Resource[]) ArrayUtils.addAll(checkResources, additionalCheckResources);
-				log.debug("Adding " + additionalCheckResources.length + " additional checks");
-			}
-		} catch (IOException e) {
-			log.error("Could not read local check resources: " + e.getMessage(), e);
-		}
-		if (checkResources != null) {
-			for (Resource resource: checkResources) {
-				
-				Check check = null;
-				try {
-					URL url = resource.getURL();
-					log.trace("Loading check found at: " + url.toString());
-					String xml = IOUtils.toString(url.openStream(), "UTF-8");
-					check = (Check) XmlMarshaller.fromXml(xml, Check.class);
-				} catch (JAXBException | IOException | SAXException e) {
-					log.warn("Could not load check '" + resource.getFilename() + "' due to an error: " + e.getMessage() + ".");
-					continue;
-				}
-				this.createCheck(check);
-			}
-		}		
+
+	/**
+	 * Create a store with the suites and checks of a registry snapshot. The store can be changed
+	 * without changing the snapshot.
+	 * @param snapshot the suites and checks to start with
+	 */
+	public InMemoryStore(SuiteRegistry.Snapshot snapshot) {
+		suites.putAll(snapshot.getSuites());
+		checks.putAll(snapshot.getChecks());
 	}
 	
 	@Override
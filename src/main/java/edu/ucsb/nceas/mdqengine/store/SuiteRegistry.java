@@ -0,0 +1,289 @@
+package edu.ucsb.nceas.mdqengine.store;
+
+import edu.ucsb.nceas.mdqengine.MDQconfig;
+import edu.ucsb.nceas.mdqengine.exception.MetadigStoreException;
+import edu.ucsb.nceas.mdqengine.model.Check;
+import edu.ucsb.nceas.mdqengine.model.Suite;
+import edu.ucsb.nceas.mdqengine.serialize.XmlMarshaller;
+import org.apache.commons.configuration2.ex.ConfigurationException;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+import org.xml.sax.SAXException;
+
+import javax.xml.bind.JAXBException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The suites and checks of the process, loaded once from the classpath and from the 'suites' and
+ * 'checks' folders of the 'metadig.base.directory'. They are held as an immutable snapshot that
+ * is shared by every store and engine, so a store can be created without reading any suites.
+ * <p>
+ * The folders are watched for changes, and when a file is added, changed or removed a new
+ * snapshot is loaded and swapped in. Only the files that changed are parsed again, the others,
+ * and the suites and checks on the classpath, keep the instances of the previous snapshot.
+ * </p>
+ */
+public class SuiteRegistry {
+
+	private static Log log = LogFactory.getLog(SuiteRegistry.class);
+
+	// how long to wait for more changes to a folder before reloading it, in milliseconds
+	private static final long RELOAD_DELAY = 500;
+
+	private static SuiteRegistry instance = null;
+
+	private final String storeDirectory;
+
+	private final PathMatchingResourcePatternResolver resolver = new PathMatchingResourcePatternResolver();
+
+	// the suites and checks on the classpath, which do not change
+	private final Map<String, Suite> classpathSuites;
+
+	private final Map<String, Check> classpathChecks;
+
+	// the files of the store directory that were loaded, by URL, to reuse if they have not changed
+	private Map<String, Loaded> loadedFiles = new HashMap<String, Loaded>();
+
+	private final AtomicReference<Snapshot> snapshot = new AtomicReference<Snapshot>();
+
+	private WatchService watcher = null;
+
+	/**
+	 * Load the suites and checks from the classpath and a store directory
+	 * @param storeDirectory the directory with 'suites' and 'checks' folders, or null for the classpath only
+	 */
+	public SuiteRegistry(String storeDirectory) {
+		this.storeDirectory = storeDirectory;
+		classpathSuites = load(getResources("classpath*:/suites/*.xml"), Suite.class, null);
+		classpathChecks = load(getResources("classpath*:/checks/*.xml"), Check.class, null);
+		reload();
+	}
+
+	/**
+	 * The registry of the process, loaded from the 'metadig.base.directory' the first time it is
+	 * requested, and kept up to date with changes to that directory
+	 * @return the shared registry
+	 * @throws MetadigStoreException if the configuration cannot be read
+	 */
+	public static synchronized SuiteRegistry getInstance() throws MetadigStoreException {
+		if (instance == null) {
+			String storeDirectory;
+			try {
+				storeDirectory = new MDQconfig().getString("metadig.base.directory");
+			} catch (ConfigurationException | IOException e) {
+				log.error("Unable to read configuration");
+				throw new MetadigStoreException("Unable to read config properties", e);
+			}
+			SuiteRegistry registry = new SuiteRegistry(storeDirectory);
+			registry.watch();
+			instance = registry;
+		}
+		return instance;
+	}
+
+	/**
+	 * @return the current suites and checks, which do not change once returned
+	 */
+	public Snapshot getSnapshot() {
+		return snapshot.get();
+	}
+
+	/**
+	 * Load the suites and checks of the store directory again, and swap them in with those of
+	 * the classpath as a new snapshot. Files that have not changed since they were last loaded
+	 * are not parsed again.
+	 * @return the new snapshot
+	 */
+	public synchronized Snapshot reload() {
+		long start = System.currentTimeMillis();
+		Map<String, Loaded> previous = loadedFiles;
+		loadedFiles = new HashMap<String, Loaded>();
+
+		// suites and checks in the store directory take the place of those on the classpath
+		Map<String, Suite> suites = new HashMap<String, Suite>(classpathSuites);
+		Map<String, Check> checks = new HashMap<String, Check>(classpathChecks);
+		if (storeDirectory != null) {
+			log.info("Reading suites from: file://" + storeDirectory + "/suites");
+			suites.putAll(load(getResources("file://" + storeDirectory + "/suites/*.xml"), Suite.class, previous));
+			log.debug("Reading checks from: file://" + storeDirectory + "/checks");
+			checks.putAll(load(getResources("file://" + storeDirectory + "/checks/*.xml"), Check.class, previous));
+		}
+
+		Snapshot loaded = new Snapshot(suites, checks);
+		snapshot.set(loaded);
+		log.info("Loaded " + suites.size() + " suites and " + checks.size() + " checks in "
+				+ (System.currentTimeMillis() - start) + " ms");
+		return loaded;
+	}
+
+	/**
+	 * Stop watching the store directory for changes
+	 */
+	public synchronized void close() {
+		if (watcher != null) {
+			IOUtils.closeQuietly(watcher);
+			watcher = null;
+		}
+	}
+
+	/*
+	 * Watch the folders of the store directory, reloading when their files change
+	 */
+	private synchronized void watch() {
+		if (storeDirectory == null) {
+			return;
+		}
+		try {
+			watcher = FileSystems.getDefault().newWatchService();
+			for (String folder: new String[] {"suites", "checks"}) {
+				Path path = Paths.get(storeDirectory, folder);
+				if (Files.isDirectory(path)) {
+					path.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+							StandardWatchEventKinds.ENTRY_DELETE);
+				}
+			}
+		} catch (IOException e) {
+			log.warn("Unable to watch " + storeDirectory + " for changes to suites and checks: " + e.getMessage());
+			close();
+			return;
+		}
+
+		final WatchService service = watcher;
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				reloadOnChange(service);
+			}
+		}, "mdq-registry-watcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void reloadOnChange(WatchService service) {
+		try {
+			while (true) {
+				WatchKey key = service.take();
+				// a change usually comes with others, e.g. when a folder is synced, so reload once for all of them
+				Thread.sleep(RELOAD_DELAY);
+				do {
+					key.pollEvents();
+					key.reset();
+				} while ((key = service.poll(RELOAD_DELAY, TimeUnit.MILLISECONDS)) != null);
+				log.info("Suites or checks in " + storeDirectory + " have changed, reloading");
+				try {
+					reload();
+				} catch (RuntimeException e) {
+					log.error("Unable to reload suites and checks: " + e.getMessage(), e);
+				}
+			}
+		} catch (ClosedWatchServiceException e) {
+			log.debug("Stopped watching " + storeDirectory);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private Resource[] getResources(String pattern) {
+		try {
+			return resolver.getResources(pattern);
+		} catch (IOException e) {
+			log.error("Could not read resources " + pattern + ": " + e.getMessage(), e);
+			return new Resource[0];
+		}
+	}
+
+	/*
+	 * Parse the suites or checks of the resources by id, reusing those in previous that have not
+	 * been modified since, and recording the files in loadedFiles if previous is given
+	 */
+	private <T> Map<String, T> load(Resource[] resources, Class<T> type, Map<String, Loaded> previous) {
+		Map<String, T> loaded = new HashMap<String, T>();
+		for (Resource resource: resources) {
+			try {
+				String url = resource.getURL().toString();
+				long modified = previous == null ? 0 : resource.lastModified();
+				Loaded file = previous == null ? null : previous.get(url);
+				if (file == null || file.modified != modified) {
+					log.trace("Loading " + type.getSimpleName().toLowerCase() + " found at: " + url);
+					InputStream input = resource.getInputStream();
+					try {
+						file = new Loaded(modified, XmlMarshaller.fromXml(IOUtils.toString(input, "UTF-8"), type));
+					} finally {
+						IOUtils.closeQuietly(input);
+					}
+				}
+				if (previous != null) {
+					loadedFiles.put(url, file);
+				}
+				Object value = file.value;
+				String id = value instanceof Suite ? ((Suite) value).getId() : ((Check) value).getId();
+				loaded.put(id, type.cast(value));
+			} catch (JAXBException | IOException | SAXException e) {
+				log.warn("Could not load " + type.getSimpleName().toLowerCase() + " '" + resource.getFilename()
+						+ "' due to an error: " + e.getMessage() + ".");
+			}
+		}
+		return loaded;
+	}
+
+	/*
+	 * A suite or check parsed from a file, and when the file was modified
+	 */
+	private static class Loaded {
+
+		private final long modified;
+
+		private final Object value;
+
+		private Loaded(long modified, Object value) {
+			this.modified = modified;
+			this.value = value;
+		}
+	}
+
+	/**
+	 * The suites and checks of the registry at some point in time
+	 */
+	public static class Snapshot {
+
+		private final Map<String, Suite> suites;
+
+		private final Map<String, Check> checks;
+
+		private Snapshot(Map<String, Suite> suites, Map<String, Check> checks) {
+			this.suites = Collections.unmodifiableMap(suites);
+			this.checks = Collections.unmodifiableMap(checks);
+		}
+
+		public Suite getSuite(String id) {
+			return suites.get(id);
+		}
+
+		public Check getCheck(String id) {
+			return checks.get(id);
+		}
+
+		/**
+		 * @return the suites, by id
+		 */
+		public Map<String, Suite> getSuites() {
+			return suites;
+		}
+
+		/**
+		 * @return the checks, by id
+		 */
+		public Map<String, Check> getChecks() {
+			return checks;
+		}
+	}
+
+}
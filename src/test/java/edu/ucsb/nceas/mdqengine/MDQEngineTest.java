@@ -13,9 +13,12 @@ import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
+import java.util.Arrays;
+import java.util.List;
 
 import static org.dataone.configuration.Settings.getConfiguration;
 import static org.junit.Assert.assertEquals;
@@ -103,4 +106,23 @@ public class MDQEngineTest {
 		}
 
 	}
+	
+	@Test
+	public void testRunSuiteBatch() throws Exception {
+		MDQEngine mdqe = new MDQEngine();
+		List<InputStream> inputs = Arrays.asList(
+				this.getClass().getResourceAsStream("/test-docs/eml.1.1.xml"),
+				new ByteArrayInputStream("not a document".getBytes("UTF-8")),
+				this.getClass().getResourceAsStream("/test-docs/eml.1.1.xml"));
+		List<Run> runs = mdqe.runSuiteBatch(suite, inputs, null, null);
+		
+		// a run for each document, in order, even though one of them cannot be read
+		assertEquals(3, runs.size());
+		assertEquals(suite.getCheck().size(), runs.get(0).getResult().size());
+		assertEquals(Run.FAILURE, runs.get(1).getRunStatus());
+		assertEquals(suite.getCheck().size(), runs.get(2).getResult().size());
+		for (int i = 0; i < suite.getCheck().size(); i++) {
+			assertEquals(runs.get(0).getResult().get(i).getStatus(), runs.get(2).getResult().get(i).getStatus());
+		}
+	}
 }
@@ -0,0 +1,216 @@
+package edu.ucsb.nceas.mdqengine;
+
+import edu.ucsb.nceas.mdqengine.model.*;
+import edu.ucsb.nceas.mdqengine.store.InMemoryStore;
+import edu.ucsb.nceas.mdqengine.store.MDQStore;
+import edu.ucsb.nceas.mdqengine.store.SuiteRegistry;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+public class PreparedSuiteTest {
+
+	private Suite suite = null;
+
+	@Before
+	public void setUpSuite() {
+		suite = new Suite();
+		suite.setId("suite.batch.1");
+
+		// passes for documents with a packageId, i.e. EML but not ISO
+		Selector selector = new Selector();
+		selector.setName("packageId");
+		selector.setXpath("/*/@packageId");
+		Check packageId = new Check();
+		packageId.setId("check.packageId.1");
+		packageId.setEnvironment("JavaScript");
+		packageId.setSelector(Arrays.asList(selector));
+		packageId.setCode("status = (packageId != null ? 'SUCCESS' : 'FAILURE');");
+
+		// a chain, which is run document by document
+		Check first = new Check();
+		first.setId("check.first.1");
+		first.setEnvironment("JavaScript");
+		first.setCode("n = 1; status = 'SUCCESS';");
+		Check second = new Check();
+		second.setId("check.second.1");
+		second.setEnvironment("JavaScript");
+		second.setInheritState(true);
+		second.setCode("status = (n == 1 ? 'SUCCESS' : 'FAILURE');");
+
+		suite.setCheck(new ArrayList<Check>(Arrays.asList(packageId, first, second)));
+	}
+
+	@Test
+	public void testRunBatch() throws Exception {
+		PreparedSuite prepared = new PreparedSuite(suite, null);
+		List<InputStream> inputs = Arrays.asList(
+				this.getClass().getResourceAsStream("/test-docs/eml.1.1.xml"),
+				new ByteArrayInputStream("<eml><dataset>".getBytes("UTF-8")),
+				this.getClass().getResourceAsStream("/test-docs/iso19139.xml"));
+
+		List<Run> runs = prepared.runBatch(inputs, null, null);
+		assertEquals(3, runs.size());
+
+		// the document that cannot be read fails on its own
+		assertEquals(Run.FAILURE, runs.get(1).getRunStatus());
+		assertTrue(runs.get(1).getResult().isEmpty());
+
+		// and the others have their own results, in the order of the checks
+		Run eml = runs.get(0);
+		assertEquals(3, eml.getResult().size());
+		assertEquals(Status.SUCCESS, eml.getResult().get(0).getStatus());
+		assertEquals("check.packageId.1", eml.getResult().get(0).getCheck().getId());
+		assertEquals(Status.SUCCESS, eml.getResult().get(2).getStatus());
+
+		Run iso = runs.get(2);
+		assertEquals(3, iso.getResult().size());
+		assertEquals(Status.FAILURE, iso.getResult().get(0).getStatus());
+		assertEquals(Status.SUCCESS, iso.getResult().get(2).getStatus());
+	}
+
+	@Test
+	public void testRExport() throws Exception {
+		Check export = new Check();
+		export.setId("check.export.1");
+		export.setEnvironment("r");
+		export.setCode("names <- c('site', 'date'); TRUE");
+		export.setExport(Arrays.asList("names"));
+		suite.getCheck().add(0, export);
+
+		// the check is rejected up front, rather than passing nothing to the checks after it
+		PreparedSuite prepared = new PreparedSuite(suite, null);
+		Run run = prepared.run(this.getClass().getResourceAsStream("/test-docs/eml.1.1.xml"), null, null);
+		assertEquals(4, run.getResult().size());
+		assertEquals(Status.ERROR, run.getResult().get(0).getStatus());
+		assertEquals("check.export.1", run.getResult().get(0).getCheck().getId());
+		assertEquals(Status.SUCCESS, run.getResult().get(1).getStatus());
+	}
+
+	@Test
+	public void testRunSuites() throws Exception {
+		// a check in the store, which counts how often it is run
+		MDQStore store = new InMemoryStore(new SuiteRegistry(null).getSnapshot());
+		Selector selector = new Selector();
+		selector.setName("packageId");
+		selector.setXpath("/*/@packageId");
+		Check stored = new Check();
+		stored.setId("check.shared.1");
+		stored.setEnvironment("JavaScript");
+		stored.setLevel(Level.REQUIRED);
+		stored.setType("metadata");
+		stored.setSelector(Arrays.asList(selector));
+		stored.setCode("mdq_params.get('runs').incrementAndGet(); status = (packageId != null ? 'SUCCESS' : 'FAILURE');");
+		store.createCheck(stored);
+
+		// which two suites reference with their own level and type
+		Check first = new Check();
+		first.setId("check.shared.1");
+		first.setLevel(Level.INFO);
+		first.setType("identification");
+		suite.getCheck().add(0, first);
+		Suite other = new Suite();
+		other.setId("suite.batch.2");
+		Check second = new Check();
+		second.setId("check.shared.1");
+		second.setLevel(Level.OPTIONAL);
+		other.setCheck(new ArrayList<Check>(Arrays.asList(second)));
+
+		PreparedSuite a = new PreparedSuite(suite, store);
+		PreparedSuite b = new PreparedSuite(other, store);
+		AtomicInteger runs = new AtomicInteger();
+		Map<String, Object> params = new HashMap<String, Object>();
+		params.put("runs", runs);
+
+		List<Run> together = PreparedSuite.run(Arrays.asList(a, b),
+				this.getClass().getResourceAsStream("/test-docs/eml.1.1.xml"), null, params);
+		assertEquals(2, together.size());
+		assertEquals(1, runs.get());
+
+		// each suite reports the shared result with its own definition of the check
+		Result resultA = together.get(0).getResult().get(0);
+		Result resultB = together.get(1).getResult().get(0);
+		assertEquals(Status.SUCCESS, resultA.getStatus());
+		assertEquals(Status.SUCCESS, resultB.getStatus());
+		assertEquals(Level.INFO, resultA.getCheck().getLevel());
+		assertEquals("identification", resultA.getCheck().getType());
+		assertEquals(Level.OPTIONAL, resultB.getCheck().getLevel());
+		assertEquals("metadata", resultB.getCheck().getType());
+		assertNotSame(resultA.getCheck(), resultB.getCheck());
+		assertNotSame(resultA, resultB);
+
+		// and the same results as when the suites are run one at a time
+		Run separateA = a.run(this.getClass().getResourceAsStream("/test-docs/eml.1.1.xml"), null, params);
+		Run separateB = b.run(this.getClass().getResourceAsStream("/test-docs/eml.1.1.xml"), null, params);
+		assertEquals(3, runs.get());
+		assertSameResults(separateA, together.get(0));
+		assertSameResults(separateB, together.get(1));
+	}
+
+	@Test
+	public void testConcurrentRun() throws Exception {
+		// checks that take longer the earlier they are in the suite, so they finish out of order
+		for (int i = 0; i < 4; i++) {
+			Check check = new Check();
+			check.setId("check.slow." + i);
+			check.setEnvironment("JavaScript");
+			check.setCode("mdq_params.get('threads').add(java.lang.Thread.currentThread().getName());"
+					+ " java.lang.Thread.sleep(" + (200 - i * 50) + "); status = 'SUCCESS';");
+			suite.getCheck().add(i, check);
+		}
+		// and a chain whose second check sleeps before it reads what the first one set
+		suite.getCheck().get(suite.getCheck().size() - 1)
+				.setCode("java.lang.Thread.sleep(100); status = (n == 1 ? 'SUCCESS' : 'FAILURE');");
+
+		PreparedSuite prepared = new PreparedSuite(suite, null);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			prepared.setExecutor(executor);
+			Set<String> threads = Collections.synchronizedSet(new HashSet<String>());
+			Map<String, Object> params = new HashMap<String, Object>();
+			params.put("threads", threads);
+
+			Run run = prepared.run(this.getClass().getResourceAsStream("/test-docs/eml.1.1.xml"), null, params);
+			assertTrue(threads.toString(), threads.size() > 1);
+
+			// the results are in suite order, however the checks were scheduled
+			List<Result> results = run.getResult();
+			assertEquals(suite.getCheck().size(), results.size());
+			for (int i = 0; i < results.size(); i++) {
+				assertEquals(suite.getCheck().get(i).getId(), results.get(i).getCheck().getId());
+				assertEquals(results.get(i).getCheck().getId(), Status.SUCCESS, results.get(i).getStatus());
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private static void assertSameResults(Run expected, Run actual) {
+		assertEquals(expected.getResult().size(), actual.getResult().size());
+		for (int i = 0; i < expected.getResult().size(); i++) {
+			Result result = expected.getResult().get(i);
+			assertEquals(result.getCheck().getId(), actual.getResult().get(i).getCheck().getId());
+			assertEquals(result.getCheck().getLevel(), actual.getResult().get(i).getCheck().getLevel());
+			assertEquals(result.getCheck().getType(), actual.getResult().get(i).getCheck().getType());
+			assertEquals(result.getStatus(), actual.getResult().get(i).getStatus());
+		}
+	}
+
+}
@@ -0,0 +1,206 @@
+package edu.ucsb.nceas.mdqengine;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class StageTest {
+
+    private Stage<Integer> stage = null;
+
+    // the batches that were handled, and the ones that were passed to the failure handler
+    private final List<List<Integer>> batches = Collections.synchronizedList(new ArrayList<List<Integer>>());
+
+    private final List<List<Integer>> failures = Collections.synchronizedList(new ArrayList<List<Integer>>());
+
+    @After
+    public void stopStage() {
+        if (stage != null) {
+            stage.shutdown();
+        }
+    }
+
+    @Test
+    public void testBatching() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch handled = new CountDownLatch(7);
+        stage = new Stage<>("batching", 1, 3, 10, null, batch -> {
+            started.countDown();
+            await(release);
+            batches.add(new ArrayList<>(batch));
+            for (int i = 0; i < batch.size(); i++) {
+                handled.countDown();
+            }
+        }, (batch, e) -> failures.add(batch));
+
+        // the first item keeps the thread busy while the others wait in the queue
+        stage.submit(0);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        for (int i = 1; i < 7; i++) {
+            stage.submit(i);
+        }
+        release.countDown();
+        assertTrue(handled.await(5, TimeUnit.SECONDS));
+
+        assertEquals(3, batches.size());
+        assertEquals(Collections.singletonList(0), batches.get(0));
+        assertEquals(Arrays.asList(1, 2, 3), batches.get(1));
+        assertEquals(Arrays.asList(4, 5, 6), batches.get(2));
+        assertTrue(failures.isEmpty());
+    }
+
+    @Test
+    public void testBackpressure() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        stage = new Stage<>("backpressure", 1, 1, 1, null, batch -> {
+            started.countDown();
+            await(release);
+            batches.add(batch);
+        }, (batch, e) -> failures.add(batch));
+
+        // one item is being handled and another one fills the queue
+        stage.submit(0);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        stage.submit(1);
+
+        // so the next one waits until there is room
+        final CountDownLatch submitted = new CountDownLatch(1);
+        Thread producer = new Thread(() -> {
+            try {
+                stage.submit(2);
+                submitted.countDown();
+            } catch (InterruptedException e) {
+                // the test fails on its own
+            }
+        });
+        producer.start();
+        assertFalse(submitted.await(200, TimeUnit.MILLISECONDS));
+
+        release.countDown();
+        assertTrue(submitted.await(5, TimeUnit.SECONDS));
+        producer.join();
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        final CountDownLatch done = new CountDownLatch(3);
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        stage = new Stage<>("failure", 1, 1, 10, null, batch -> {
+            try {
+                if (batch.get(0) == 0) {
+                    // not only exceptions, errors reach the failure handler too
+                    throw new Error("handler failed");
+                }
+                if (batch.get(0) == 1) {
+                    throw new IllegalStateException("handler failed");
+                }
+                batches.add(batch);
+            } finally {
+                done.countDown();
+            }
+        }, (batch, e) -> {
+            errors.add(e);
+            failures.add(batch);
+        });
+
+        stage.submit(0);
+        stage.submit(1);
+        stage.submit(2);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        waitFor(() -> failures.size() == 2);
+
+        // the thread goes on with the next batch
+        assertEquals(Collections.singletonList(Collections.singletonList(2)), batches);
+        assertEquals(Collections.singletonList(0), failures.get(0));
+        assertEquals(Collections.singletonList(1), failures.get(1));
+        assertEquals(Error.class, errors.get(0).getClass());
+        assertEquals(IllegalStateException.class, errors.get(1).getClass());
+    }
+
+    @Test
+    public void testFailingFailureHandler() throws Exception {
+        final CountDownLatch handled = new CountDownLatch(1);
+        stage = new Stage<>("failing", 1, 1, 10, null, batch -> {
+            if (batch.get(0) == 0) {
+                throw new IllegalStateException("handler failed");
+            }
+            batches.add(batch);
+            handled.countDown();
+        }, (batch, e) -> {
+            throw new IllegalStateException("failure handler failed");
+        });
+
+        stage.submit(0);
+        stage.submit(1);
+        assertTrue(handled.await(5, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList(Collections.singletonList(1)), batches);
+    }
+
+    @Test
+    public void testAffinity() throws Exception {
+        final int count = 40;
+        final CountDownLatch handled = new CountDownLatch(count);
+        final Map<Integer, String> threads = new HashMap<>();
+        final Map<Integer, List<Integer>> order = new HashMap<>();
+        final List<String> conflicts = Collections.synchronizedList(new ArrayList<String>());
+        stage = new Stage<>("affinity", 4, 2, 8, item -> item % 3, batch -> {
+            for (Integer item : batch) {
+                synchronized (threads) {
+                    String thread = Thread.currentThread().getName();
+                    String previous = threads.put(item % 3, thread);
+                    if (previous != null && !previous.equals(thread)) {
+                        conflicts.add(item + " was handled by " + thread + " instead of " + previous);
+                    }
+                    order.computeIfAbsent(item % 3, key -> new ArrayList<>()).add(item);
+                }
+                handled.countDown();
+            }
+        }, (batch, e) -> failures.add(batch));
+
+        for (int i = 0; i < count; i++) {
+            stage.submit(i);
+        }
+        assertTrue(handled.await(5, TimeUnit.SECONDS));
+
+        // the items with the same key are handled by the same thread, in the order they were submitted
+        assertTrue(conflicts.toString(), conflicts.isEmpty());
+        for (List<Integer> items : order.values()) {
+            for (int i = 1; i < items.size(); i++) {
+                assertTrue(items.get(i - 1) < items.get(i));
+            }
+        }
+        assertTrue(failures.isEmpty());
+    }
+
+    private interface Condition {
+        boolean holds();
+    }
+
+    private static void waitFor(Condition condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.holds() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(condition.holds());
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package edu.ucsb.nceas.mdqengine.dispatch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.ucsb.nceas.mdqengine.model.Result;
+import edu.ucsb.nceas.mdqengine.model.Status;
+
+import javax.script.ScriptException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+public class DispatcherPoolTest {
+
+	private int maxSize;
+
+	@Before
+	public void init() {
+		maxSize = DispatcherPool.getMaxSize();
+		DispatcherPool.setMaxSize(2);
+	}
+
+	@After
+	public void restore() {
+		DispatcherPool.setMaxSize(maxSize);
+	}
+
+	@Test
+	public void testLease() throws Exception {
+		Dispatcher first = DispatcherPool.lease("Java");
+		Dispatcher second = DispatcherPool.lease("java");
+		assertNotSame(first, second);
+		assertEquals(2, DispatcherPool.getStats().get("Java").getLeased());
+
+		// a returned dispatcher is leased again
+		DispatcherPool.release(second);
+		assertSame(second, DispatcherPool.lease("Java"));
+
+		DispatcherPool.release(first);
+		DispatcherPool.release(second);
+		assertEquals(0, DispatcherPool.getStats().get("Java").getLeased());
+	}
+
+	@Test
+	public void testBounded() throws Exception {
+		final Dispatcher first = DispatcherPool.lease("Java");
+		Dispatcher second = DispatcherPool.lease("Java");
+
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<Dispatcher> third = executor.submit(new Callable<Dispatcher>() {
+				@Override
+				public Dispatcher call() throws ScriptException {
+					return DispatcherPool.lease("Java");
+				}
+			});
+			try {
+				third.get(200, TimeUnit.MILLISECONDS);
+				fail("The pool should be exhausted");
+			} catch (TimeoutException e) {
+				// expected
+			}
+			DispatcherPool.release(first);
+			assertSame(first, third.get(5, TimeUnit.SECONDS));
+			assertTrue(DispatcherPool.getStats().get("Java").getWaits() > 0);
+			DispatcherPool.release(first);
+			DispatcherPool.release(second);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testReclaim() throws Exception {
+		Dispatcher dispatcher = DispatcherPool.lease("Java");
+		DispatcherPool.release(dispatcher);
+		assertTrue(DispatcherPool.reclaim(dispatcher));
+		assertFalse(DispatcherPool.reclaim(dispatcher));
+		DispatcherPool.release(dispatcher);
+	}
+
+	@Test
+	public void testTimeout() throws Exception {
+		Dispatcher dispatcher = DispatcherPool.lease("Java");
+		long abandoned = DispatcherPool.getStats().get("Java").getAbandoned();
+
+		Map<String, Object> names = new HashMap<String, Object>();
+		names.put("millis", 10);
+		Result result = dispatcher.dispatch(names, MockJavaSlowCheck.class.getName(), null, 5000);
+		assertEquals("true", result.getOutput().get(0).getValue());
+		assertFalse(dispatcher.isAbandoned());
+
+		// the check is interrupted, and the dispatcher is not used again
+		names.put("millis", 60000);
+		result = dispatcher.dispatch(names, MockJavaSlowCheck.class.getName(), null, 100);
+		assertEquals(Status.ERROR, result.getStatus());
+		assertTrue(dispatcher.isAbandoned());
+		DispatcherPool.release(dispatcher);
+		assertEquals(abandoned + 1, DispatcherPool.getStats().get("Java").getAbandoned());
+		Dispatcher next = DispatcherPool.lease("Java");
+		assertNotSame(dispatcher, next);
+		DispatcherPool.release(next);
+	}
+
+	@Test
+	public void testBatchTimeout() throws Exception {
+		List<Map<String, Object>> variables = new ArrayList<Map<String, Object>>();
+		for (long millis: new long[] {10, 60000, 10}) {
+			Map<String, Object> names = new HashMap<String, Object>();
+			names.put("millis", millis);
+			variables.add(names);
+		}
+
+		// each run has a timeout of its own, and the batch stops at the run that abandoned the dispatcher
+		Dispatcher dispatcher = DispatcherPool.lease("Java");
+		List<Result> results = dispatcher.dispatchBatch(variables, MockJavaSlowCheck.class.getName(), null, 1000);
+		assertEquals(2, results.size());
+		assertEquals("true", results.get(0).getOutput().get(0).getValue());
+		assertEquals(Status.ERROR, results.get(1).getStatus());
+		assertTrue(dispatcher.isAbandoned());
+		DispatcherPool.release(dispatcher);
+
+		// so the rest go to another dispatcher
+		Dispatcher next = DispatcherPool.lease("Java");
+		results = next.dispatchBatch(variables.subList(2, 3), MockJavaSlowCheck.class.getName(), null, 1000);
+		assertEquals(1, results.size());
+		assertEquals("true", results.get(0).getOutput().get(0).getValue());
+		DispatcherPool.release(next);
+	}
+
+	@Test
+	public void testRunaway() throws Exception {
+		Map<String, Object> names = new HashMap<String, Object>();
+		String code = MockJavaRunawayCheck.class.getName();
+		int runaways = Dispatcher.getRunaways();
+		MockJavaRunawayCheck.stop = false;
+		try {
+			Dispatcher dispatcher = DispatcherPool.lease("Java");
+			Result result = dispatcher.dispatch(names, code, "check.runaway", 100);
+			assertEquals(Status.ERROR, result.getStatus());
+			DispatcherPool.release(dispatcher);
+			assertEquals(runaways + 1, Dispatcher.getRunaways());
+
+			// the check is not started again while it is still running
+			dispatcher = DispatcherPool.lease("Java");
+			try {
+				dispatcher.dispatch(names, code, "check.runaway", 100);
+				fail("The check should not be run");
+			} catch (ScriptException e) {
+				// expected
+			} finally {
+				DispatcherPool.release(dispatcher);
+			}
+
+			// and no other check is started while too many are running
+			Dispatcher.setMaxRunaways(runaways + 1);
+			dispatcher = DispatcherPool.lease("Java");
+			try {
+				names.put("millis", 10);
+				dispatcher.dispatch(names, MockJavaSlowCheck.class.getName(), "check.slow", 5000);
+				fail("The check should not be run");
+			} catch (ScriptException e) {
+				// expected
+			} finally {
+				DispatcherPool.release(dispatcher);
+			}
+		} finally {
+			Dispatcher.setMaxRunaways(Math.max(4, Runtime.getRuntime().availableProcessors()));
+			MockJavaRunawayCheck.stop = true;
+		}
+
+		// once it stops, it can be run again
+		for (int i = 0; i < 100 && Dispatcher.getRunaways() > runaways; i++) {
+			Thread.sleep(50);
+		}
+		assertEquals(runaways, Dispatcher.getRunaways());
+		Dispatcher dispatcher = DispatcherPool.lease("Java");
+		try {
+			Result result = dispatcher.dispatch(names, code, "check.runaway", 5000);
+			assertEquals("true", result.getOutput().get(0).getValue());
+		} finally {
+			DispatcherPool.release(dispatcher);
+		}
+	}
+
+	@Test(expected = ScriptException.class)
+	public void testUnsupported() throws Exception {
+		DispatcherPool.lease("fortran");
+	}
+
+}
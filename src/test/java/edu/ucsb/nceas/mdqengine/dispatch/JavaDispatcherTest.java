@@ -37,4 +37,25 @@ public class JavaDispatcherTest {
 		}
 		assertEquals("true", result.getOutput().get(0).getValue());
 	}
+
+	@Test
+	public void testConversion() {
+		// values are converted to the property types, variables without a property are skipped
+		Map<String, Object> names = new HashMap<String, Object>();
+		names.put("x", "3");
+		names.put("y", 3L);
+		names.put("z", "not a property");
+		String className = MockJavaEqualityCheck.class.getName();
+		Result result = null;
+		try {
+			result = dispatcher.dispatch(names, className);
+			assertEquals("true", result.getOutput().get(0).getValue());
+			names.put("y", 4.0);
+			result = dispatcher.dispatch(names, className);
+		} catch (ScriptException e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+		assertEquals("false", result.getOutput().get(0).getValue());
+	}
 }
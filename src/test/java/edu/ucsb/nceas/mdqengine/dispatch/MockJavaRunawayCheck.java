@@ -0,0 +1,25 @@
+package edu.ucsb.nceas.mdqengine.dispatch;
+
+import java.util.concurrent.Callable;
+
+import edu.ucsb.nceas.mdqengine.model.Output;
+import edu.ucsb.nceas.mdqengine.model.Result;
+
+/**
+ * A check that ignores interrupts, as script engines can, and only stops when it is told to
+ */
+public class MockJavaRunawayCheck implements Callable<Result> {
+
+	public static volatile boolean stop = false;
+
+	@Override
+	public Result call() throws Exception {
+		while (!stop) {
+			Thread.yield();
+		}
+		Result dr = new Result();
+		dr.setOutput(new Output("true"));
+		return dr;
+	}
+
+}
@@ -0,0 +1,28 @@
+package edu.ucsb.nceas.mdqengine.dispatch;
+
+import java.util.concurrent.Callable;
+
+import edu.ucsb.nceas.mdqengine.model.Output;
+import edu.ucsb.nceas.mdqengine.model.Result;
+
+public class MockJavaSlowCheck implements Callable<Result> {
+
+	private long millis;
+	
+	@Override
+	public Result call() throws Exception {
+		Thread.sleep(millis);
+		Result dr = new Result();
+		dr.setOutput(new Output("true"));
+		return dr;
+	}
+	
+	public long getMillis() {
+		return millis;
+	}
+
+	public void setMillis(long millis) {
+		this.millis = millis;
+	}
+
+}
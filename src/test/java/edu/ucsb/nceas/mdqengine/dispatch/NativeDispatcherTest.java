@@ -0,0 +1,81 @@
+package edu.ucsb.nceas.mdqengine.dispatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.script.ScriptException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.ucsb.nceas.mdqengine.model.Result;
+import edu.ucsb.nceas.mdqengine.model.Status;
+
+public class NativeDispatcherTest {
+	
+	private Dispatcher dispatcher = null;
+	
+	private Map<String, Object> names = null;
+	
+	@Before
+	public void init() {
+		dispatcher = Dispatcher.getDispatcher("native");
+		names = new HashMap<String, Object>();
+		names.put("title", "Soil moisture of the Konza Prairie");
+		names.put("blank", "  ");
+		names.put("attributeName", Arrays.asList("site", "date", null, "moisture"));
+		names.put("identifier", Arrays.asList("doi:10.5063/F1", "doi:10.5063/F2"));
+		names.put("count", 2);
+	}
+	
+	@Test
+	public void testRules() {
+		assertStatus(Status.SUCCESS, "nonEmpty(title)");
+		assertStatus(Status.FAILURE, "nonEmpty(blank)");
+		assertStatus(Status.FAILURE, "nonEmpty(missing)");
+		assertStatus(Status.SUCCESS, "minCount(attributeName, 3)");
+		assertStatus(Status.FAILURE, "minCount(attributeName, 4)");
+		assertStatus(Status.SUCCESS, "maxCount(missing, 0)");
+		assertStatus(Status.SUCCESS, "matchesRegex(identifier, \"doi:10\\\\.\\\\d+/.*\")");
+		assertStatus(Status.FAILURE, "matchesRegex(identifier, \"doi:10\\\\.\\\\d+/F1\")");
+		assertStatus(Status.SUCCESS, "matchesRegex(count, \"\\\\d+\")");
+		assertStatus(Status.SUCCESS, "lengthBetween(title, 5, 100)");
+		assertStatus(Status.FAILURE, "lengthBetween(attributeName, 5, 10)");
+	}
+	
+	@Test
+	public void testSeveralRules() {
+		assertStatus(Status.SUCCESS, "nonEmpty(title)\nminCount(attributeName, 1); lengthBetween(title, 1, 200)");
+		Result result = dispatch("nonEmpty(blank)\nnonEmpty(title)\nminCount(identifier, 3)");
+		assertEquals(Status.FAILURE, result.getStatus());
+		assertEquals(2, result.getOutput().size());
+	}
+	
+	@Test(expected = ScriptException.class)
+	public void testUnknownRule() throws ScriptException {
+		dispatcher.dispatch(names, "isValid(title)");
+	}
+	
+	@Test(expected = ScriptException.class)
+	public void testInvalidArguments() throws ScriptException {
+		dispatcher.dispatch(names, "minCount(title, \"one\")");
+	}
+	
+	private void assertStatus(Status status, String code) {
+		assertEquals(code, status, dispatch(code).getStatus());
+	}
+	
+	private Result dispatch(String code) {
+		try {
+			return dispatcher.dispatch(names, code);
+		} catch (ScriptException e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+			return null;
+		}
+	}
+}
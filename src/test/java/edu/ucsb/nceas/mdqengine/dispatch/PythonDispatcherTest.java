@@ -5,7 +5,10 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import javax.script.ScriptException;
@@ -151,4 +154,55 @@ public class PythonDispatcherTest {
 		// make sure the file is named as expected
 		assertTrue(result.getOutput().get(0).getValue().endsWith(DigestUtils.md5Hex(dataUrl)));
 	}
+	
+	@Test
+	public void testCompiledCheck() throws Exception {
+		Dispatcher pooled = DispatcherPool.lease("python");
+		try {
+			long compilations = DispatcherPool.getStats().get("python").getCompilations();
+			
+			Map<String, Object> names = new HashMap<String, Object>();
+			names.put("x", 2);
+			names.put("y", 2);
+			Result result = pooled.dispatch(names, "x == y", "check.compiled.1");
+			assertEquals("true", result.getOutput().get(0).getValue());
+			
+			// the second dispatch runs the same compiled code with the new variables
+			names.put("y", 3);
+			result = pooled.dispatch(names, "x == y", "check.compiled.1");
+			assertEquals("false", result.getOutput().get(0).getValue());
+			assertEquals(compilations + 1, DispatcherPool.getStats().get("python").getCompilations());
+		} finally {
+			DispatcherPool.release(pooled);
+		}
+	}
+	
+	@Test
+	public void testBatch() throws Exception {
+		List<Map<String, Object>> variables = new ArrayList<Map<String, Object>>();
+		for (int y = 1; y <= 3; y++) {
+			Map<String, Object> names = new HashMap<String, Object>();
+			names.put("x", 2);
+			names.put("y", y);
+			variables.add(names);
+		}
+		List<Result> results = dispatcher.dispatchBatch(variables, "x == y", "check.batch.1");
+		assertEquals(3, results.size());
+		assertEquals("false", results.get(0).getOutput().get(0).getValue());
+		assertEquals("true", results.get(1).getOutput().get(0).getValue());
+		assertEquals("false", results.get(2).getOutput().get(0).getValue());
+	}
+	
+	@Test
+	public void testExportVariables() throws Exception {
+		Map<String, Object> names = new HashMap<String, Object>();
+		names.put("x", 2);
+		dispatcher.dispatch(names, "count = x + 1\nnames = ['a', 'b']\nvalid = True\nx > 1");
+		
+		Map<String, Object> exported = dispatcher.exportVariables(Arrays.asList("count", "names", "valid", "missing"));
+		assertEquals(3, exported.size());
+		assertEquals(3, exported.get("count"));
+		assertEquals(Arrays.asList("a", "b"), exported.get("names"));
+		assertEquals(Boolean.TRUE, exported.get("valid"));
+	}
 }
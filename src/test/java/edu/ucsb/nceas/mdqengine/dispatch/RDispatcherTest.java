@@ -1,6 +1,7 @@
 package edu.ucsb.nceas.mdqengine.dispatch;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -206,4 +207,109 @@ public class RDispatcherTest {
 		assertTrue(result.getOutput().get(0).getValue().endsWith(DigestUtils.md5Hex(dataUrl)));
 	}
 
+	
+	@Test
+	public void testWorker() throws Exception {
+		// once warm processes are enabled, pooled dispatchers run checks in the same R process
+		RDispatcher.setWorkerOptions(100, 600000);
+		Dispatcher pooled = DispatcherPool.lease("r");
+		try {
+			Map<String, Object> names = new HashMap<String, Object>();
+			names.put("x", 2);
+			names.put("y", 2);
+			Result result = pooled.dispatch(names, "z <- 1; (x == y);");
+			assertEquals("true", result.getOutput().get(0).getValue());
+			
+			// each check has its own environment
+			result = pooled.dispatch(names, "exists('z');");
+			assertEquals("false", result.getOutput().get(0).getValue());
+			
+			result = pooled.dispatch(names, "stop('failing check')");
+			assertEquals(Status.ERROR, result.getStatus());
+			assertTrue(result.getOutput().get(0).getValue().contains("failing check"));
+			
+			String pid = pooled.dispatch(names, "Sys.getpid();").getOutput().get(0).getValue();
+			assertEquals(pid, pooled.dispatch(names, "Sys.getpid();").getOutput().get(0).getValue());
+		} finally {
+			DispatcherPool.release(pooled);
+			RDispatcher.setWorkerOptions(0, 600000);
+		}
+	}
+	
+	@Test
+	public void testWorkerPerDispatch() throws Exception {
+		// by default, even a pooled dispatcher starts an R process for each check
+		Dispatcher pooled = DispatcherPool.lease("r");
+		try {
+			Map<String, Object> names = new HashMap<String, Object>();
+			String pid = pooled.dispatch(names, "Sys.getpid();").getOutput().get(0).getValue();
+			assertNotEquals(pid, pooled.dispatch(names, "Sys.getpid();").getOutput().get(0).getValue());
+		} finally {
+			DispatcherPool.release(pooled);
+		}
+	}
+	
+	@Test
+	public void testWorkerOutput() throws Exception {
+		// output without a line break does not hide the response
+		Dispatcher pooled = DispatcherPool.lease("r");
+		try {
+			Map<String, Object> names = new HashMap<String, Object>();
+			Result result = pooled.dispatch(names, "cat('x'); TRUE;", null, 10000);
+			assertEquals("true", result.getOutput().get(0).getValue());
+			
+			result = pooled.dispatch(names, "cat('x'); FALSE;", null, 10000);
+			assertEquals("false", result.getOutput().get(0).getValue());
+		} finally {
+			DispatcherPool.release(pooled);
+		}
+	}
+	
+	@Test
+	public void testWorkerIsolation() throws Exception {
+		Dispatcher pooled = DispatcherPool.lease("r");
+		try {
+			Map<String, Object> names = new HashMap<String, Object>();
+			Result result = pooled.dispatch(names, "a <<- 1; assign('b', 2, envir=globalenv()); mdq_marker <- 'x'; TRUE;");
+			assertEquals("true", result.getOutput().get(0).getValue());
+			
+			// nothing a check assigns globally is seen by the next one, and the server still responds
+			result = pooled.dispatch(names, "exists('a') || exists('b') || exists('mdq_run');");
+			assertEquals("false", result.getOutput().get(0).getValue());
+		} finally {
+			DispatcherPool.release(pooled);
+		}
+	}
+	
+	@Test
+	public void testBatch() throws Exception {
+		RDispatcher pooled = (RDispatcher) DispatcherPool.lease("r");
+		try {
+			Map<String, Object> shared = new HashMap<String, Object>();
+			shared.put("y", 2);
+			List<Map<String, Object>> variables = new ArrayList<Map<String, Object>>();
+			List<String> codes = new ArrayList<String>();
+			
+			Map<String, Object> first = new HashMap<String, Object>();
+			first.put("x", 2);
+			variables.add(first);
+			codes.add("z <- 1; (x == y);");
+			
+			Map<String, Object> second = new HashMap<String, Object>();
+			second.put("x", 3);
+			variables.add(second);
+			codes.add("(x == y) || exists('z');");
+			
+			variables.add(new HashMap<String, Object>());
+			codes.add("stop('failing check')");
+			
+			List<Result> results = pooled.dispatchBatch(shared, variables, codes);
+			assertEquals(3, results.size());
+			assertEquals("true", results.get(0).getOutput().get(0).getValue());
+			assertEquals("false", results.get(1).getOutput().get(0).getValue());
+			assertEquals(Status.ERROR, results.get(2).getStatus());
+		} finally {
+			DispatcherPool.release(pooled);
+		}
+	}
 }
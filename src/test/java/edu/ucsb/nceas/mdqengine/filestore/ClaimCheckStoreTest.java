@@ -0,0 +1,119 @@
+package edu.ucsb.nceas.mdqengine.filestore;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ClaimCheckStoreTest {
+
+    private File directory;
+
+    private ClaimCheckStore store;
+
+    @Before
+    public void createStore() throws IOException {
+        directory = Files.createTempDirectory("mdq-claims").toFile();
+        store = new ClaimCheckStore(directory, 0);
+    }
+
+    @After
+    public void deleteStore() throws IOException {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    @Test
+    public void testPutAndGet() throws IOException {
+        String claim = store.put("<eml>a large document</eml>");
+        assertEquals(64 + 1 + 32, claim.length());
+        assertEquals("<eml>a large document</eml>", store.getString(claim));
+
+        // the same payload is only stored once, but each message has a claim of its own
+        String again = store.put("<eml>a large document</eml>".getBytes(StandardCharsets.UTF_8));
+        assertNotEquals(claim, again);
+        assertEquals(claim.substring(0, 64), again.substring(0, 64));
+        assertNotEquals(claim.substring(0, 64), store.put("<eml>another document</eml>").substring(0, 64));
+    }
+
+    @Test
+    public void testRelease() throws IOException {
+        String first = store.put("<eml>a large document</eml>");
+        String second = store.put("<eml>a large document</eml>");
+
+        // the payload is kept for as long as a claim refers to it
+        assertFalse(store.release(first));
+        assertEquals("<eml>a large document</eml>", store.getString(second));
+        assertTrue(store.release(second));
+        assertFalse(getPayloadFile(second).exists());
+        try {
+            store.open(second);
+            fail("The payload should have been deleted");
+        } catch (FileNotFoundException e) {
+            // expected
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testDamagedPayload() throws IOException {
+        String claim = store.put("<eml>a large document</eml>");
+        FileUtils.writeStringToFile(getPayloadFile(claim), "<eml>changed</eml>", StandardCharsets.UTF_8);
+        store.getString(claim);
+    }
+
+    @Test(expected = IOException.class)
+    public void testDamagedPayloadSkipped() throws IOException {
+        String claim = store.put("<eml>a large document</eml>");
+        FileUtils.writeStringToFile(getPayloadFile(claim), "<eml>a LARGE document</eml>", StandardCharsets.UTF_8);
+        InputStream input = store.open(claim);
+        try {
+            // skipping the changed bytes doesn't keep them from being verified
+            assertEquals(12, input.skip(12));
+            IOUtils.toString(input, StandardCharsets.UTF_8);
+        } finally {
+            input.close();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testInvalidClaim() throws IOException {
+        store.open("../../etc/passwd");
+    }
+
+    @Test
+    public void testPurge() throws IOException {
+        String old = store.put("<eml>an old document</eml>");
+        String recent = store.put("<eml>a recent document</eml>");
+        String released = store.put("<eml>a released document</eml>");
+        File reference = new File(getPayloadFile(released).getParentFile(), released);
+        assertTrue(reference.delete());
+
+        // an old claim is kept until it is released, only the payload that lost its reference goes
+        getPayloadFile(old).setLastModified(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(2));
+        assertEquals(1, store.purge());
+        assertFalse(getPayloadFile(released).exists());
+        assertEquals("<eml>an old document</eml>", store.getString(old));
+
+        // unless the store has a maximum age for claims
+        ClaimCheckStore expiring = new ClaimCheckStore(directory, TimeUnit.HOURS.toMillis(1));
+        new File(getPayloadFile(old).getParentFile(), old).setLastModified(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(2));
+        assertEquals(1, expiring.purge());
+        assertFalse(getPayloadFile(old).exists());
+        assertEquals("<eml>a recent document</eml>", store.getString(recent));
+    }
+
+    private File getPayloadFile(String claim) {
+        String checksum = claim.substring(0, 64);
+        return new File(new File(directory, checksum.substring(0, 2)), checksum);
+    }
+}
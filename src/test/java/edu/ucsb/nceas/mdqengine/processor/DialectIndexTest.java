@@ -0,0 +1,60 @@
+package edu.ucsb.nceas.mdqengine.processor;
+
+import edu.ucsb.nceas.mdqengine.model.Check;
+import edu.ucsb.nceas.mdqengine.model.Dialect;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class DialectIndexTest {
+
+	private static final String EML = "boolean(/*[local-name() = 'eml'])";
+
+	private static final String ISO = "boolean(/*[local-name() = 'MD_Metadata'])";
+
+	@Test
+	public void testSharedExpressions() {
+		Check eml = newCheck(EML);
+		Check iso = newCheck(ISO);
+		Check either = newCheck(ISO, EML);
+		Check none = new Check();
+
+		DialectIndex index = new DialectIndex();
+		index.add(eml);
+		index.add(iso);
+		index.add(either);
+		index.add(none);
+		// adding a check again changes nothing
+		index.add(eml);
+
+		// each distinct expression gets one number, in the order they were added
+		assertEquals(2, index.size());
+		assertEquals(EML, index.getExpression(0));
+		assertEquals(ISO, index.getExpression(1));
+		assertArrayEquals(new int[] {0}, index.getDialects(eml));
+		assertArrayEquals(new int[] {1}, index.getDialects(iso));
+		assertArrayEquals(new int[] {1, 0}, index.getDialects(either));
+
+		// checks are looked up by instance
+		assertNull(index.getDialects(none));
+		assertNull(index.getDialects(newCheck(EML)));
+	}
+
+	private static Check newCheck(String... expressions) {
+		List<Dialect> dialects = new ArrayList<Dialect>();
+		for (String expression: expressions) {
+			Dialect dialect = new Dialect();
+			dialect.setXpath(expression);
+			dialects.add(dialect);
+		}
+		Check check = new Check();
+		check.setDialect(dialects);
+		return check;
+	}
+
+}
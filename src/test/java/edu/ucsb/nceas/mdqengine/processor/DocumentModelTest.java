@@ -0,0 +1,71 @@
+package edu.ucsb.nceas.mdqengine.processor;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathFactory;
+import java.io.InputStream;
+
+import static org.junit.Assert.*;
+
+public class DocumentModelTest {
+
+	private String[] expressions = {
+			"//dataset/title",
+			"count(//attribute/attributeName)",
+			"/*/@packageId",
+			"boolean(/*[local-name() = 'eml'])",
+			"name(/*)",
+			"//creator/individualName/surName"
+	};
+
+	@Test
+	public void testDerivedDocument() throws Exception {
+		DocumentModel model = new DocumentModel(this.getClass().getResourceAsStream("/test-docs/eml.1.1.xml"));
+		assertFalse(model.isDocumentDerived());
+
+		// the derived view should look just like a non-namespace aware parse
+		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+		factory.setNamespaceAware(false);
+		InputStream input = this.getClass().getResourceAsStream("/test-docs/eml.1.1.xml");
+		Document parsed = factory.newDocumentBuilder().parse(input);
+
+		Document derived = model.getDocument();
+		assertTrue(model.isDocumentDerived());
+		assertSame(derived, model.getDocument());
+		assertEquals(parsed.getDocumentElement().getNodeName(), derived.getDocumentElement().getNodeName());
+		assertNull(derived.getDocumentElement().getNamespaceURI());
+
+		XPath xpath = XPathFactory.newInstance().newXPath();
+		for (String expression: expressions) {
+			assertEquals(expression, xpath.evaluate(expression, parsed), xpath.evaluate(expression, derived));
+		}
+	}
+
+	@Test
+	public void testNamespaceAwareDocument() throws Exception {
+		DocumentModel model = new DocumentModel(this.getClass().getResourceAsStream("/test-docs/eml.1.1.xml"));
+		Document document = model.getNamespaceAwareDocument();
+		assertEquals("eml", document.getDocumentElement().getLocalName());
+		assertEquals("eml://ecoinformatics.org/eml-2.1.1", document.getDocumentElement().getNamespaceURI());
+		assertFalse(model.isDocumentDerived());
+	}
+
+	@Test
+	public void testSourceDocument() throws Exception {
+		byte[] source = IOUtils.toByteArray(this.getClass().getResourceAsStream("/test-docs/iso19139.xml"));
+		DocumentModel model = new DocumentModel(source);
+		assertFalse(model.isParsed());
+		assertTrue(model.hasSource());
+		assertEquals(new String(source, "UTF-8"), model.getSourceText());
+
+		// parsed when a tree is first requested
+		assertEquals("MD_Metadata", model.getNamespaceAwareDocument().getDocumentElement().getLocalName());
+		assertTrue(model.isParsed());
+		assertEquals("gmd:MD_Metadata", model.getDocument().getDocumentElement().getNodeName());
+	}
+
+}
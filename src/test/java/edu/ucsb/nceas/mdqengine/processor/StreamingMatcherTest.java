@@ -0,0 +1,117 @@
+package edu.ucsb.nceas.mdqengine.processor;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.NodeList;
+
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class StreamingMatcherTest {
+
+	private String[] emlExpressions = {
+			"/eml/dataset/title",
+			"//dataset/title",
+			"//attribute/attributeName",
+			"/eml/@packageId",
+			"/*/@packageId",
+			"/eml/dataset/creator",
+			"//creator/individualName/surName",
+			"/eml/dataset/dataTable/attributeList/attribute/@id",
+			"//dataset/dataTable | //dataset/otherEntity",
+			"count(//dataset/dataTable | //dataset/otherEntity)",
+			"count(//attribute)",
+			"boolean(/*[local-name() = 'eml'])",
+			"boolean(/*[local-name() = 'MD_Metadata' or local-name() = 'MI_Metadata'])",
+			"boolean(/eml/dataset/methods)",
+			"//attribute[@id]/attributeName",
+			"//*[@system='knb']",
+			"//coverage//geographicCoverage/boundingCoordinates/northBoundingCoordinate",
+			"/eml/dataset/*",
+			// attributes selected by more than one path of a union are only selected once
+			"/eml/@packageId | /*/@packageId",
+			"count(/eml/@packageId | /*/@packageId)",
+			"//attribute/@id | /eml/dataset/dataTable/attributeList/attribute/@id"
+	};
+
+	private String[] isoExpressions = {
+			"/MD_Metadata/fileIdentifier/CharacterString",
+			"//CI_Citation/title/CharacterString",
+			"//MD_CharacterSetCode/@codeListValue",
+			"boolean(/*[local-name() = 'MD_Metadata' or local-name() = 'MI_Metadata'])",
+			"count(//CharacterString)",
+			"count(/MD_Metadata//CharacterString)",
+			"//fileIdentifier/CharacterString",
+			"boolean(//fileIdentifier)",
+			"count(//MD_CharacterSetCode[@codeListValue='utf8'])",
+			"//MD_CharacterSetCode/@codeListValue",
+			"count(//fileIdentifier | //language)"
+	};
+
+	private String[] unsupported = {
+			"/eml/dataset/*[self::dataTable|self::otherEntity]",
+			"./attributeName",
+			"//description//para/text()",
+			"/gmd:MD_Metadata/gmd:fileIdentifier",
+			"//attribute[1]",
+			"string-length(//dataset/title)",
+			"//@id"
+	};
+
+	@Test
+	public void testEml() throws Exception {
+		compare("/test-docs/eml.1.1.xml", emlExpressions);
+	}
+
+	@Test
+	public void testIso() throws Exception {
+		compare("/test-docs/iso19139.xml", isoExpressions);
+	}
+
+	@Test
+	public void testUnsupported() {
+		StreamingMatcher matcher = new StreamingMatcher();
+		for (String expression: unsupported) {
+			assertFalse(expression, matcher.add(expression));
+		}
+		assertTrue(matcher.isEmpty());
+	}
+
+	@Test
+	public void testNamespaces() throws Exception {
+		StreamingMatcher matcher = new StreamingMatcher();
+		StreamingMatcher.Results results = matcher.match(this.getClass().getResourceAsStream("/test-docs/iso19139.xml"));
+		assertEquals("gmd", results.getNamespaces().get("http://www.isotc211.org/2005/gmd"));
+		assertEquals("gco", results.getNamespaces().get("http://www.isotc211.org/2005/gco"));
+		// declared, but not used by an element
+		assertFalse(results.getNamespaces().containsKey("http://www.w3.org/2001/XMLSchema-instance"));
+	}
+
+	private void compare(String resource, String[] expressions) throws Exception {
+		StreamingMatcher matcher = new StreamingMatcher();
+		for (String expression: expressions) {
+			assertTrue(expression, matcher.add(expression));
+		}
+		StreamingMatcher.Results results = matcher.match(this.getClass().getResourceAsStream(resource));
+
+		Document document = new DocumentModel(this.getClass().getResourceAsStream(resource)).getDocument();
+		XPath xpath = XPathFactory.newInstance().newXPath();
+		for (String expression: expressions) {
+			assertEquals(expression, xpath.evaluate(expression, document), results.getString(expression));
+			if (results.isNodeSet(expression)) {
+				NodeList nodes = (NodeList) xpath.evaluate(expression, document, XPathConstants.NODESET);
+				List<String> values = new ArrayList<String>();
+				for (int i = 0; i < nodes.getLength(); i++) {
+					values.add(nodes.item(i).getTextContent());
+				}
+				assertEquals(expression, values, results.getNodes(expression));
+			}
+		}
+	}
+
+}
@@ -1,5 +1,7 @@
 package edu.ucsb.nceas.mdqengine.processor;
 
+import edu.ucsb.nceas.mdqengine.dispatch.Dispatcher;
+import edu.ucsb.nceas.mdqengine.dispatch.DispatcherPool;
 import edu.ucsb.nceas.mdqengine.model.*;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -14,6 +16,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 
 import static org.junit.Assert.assertEquals;
@@ -531,6 +535,229 @@ public class XMLDialectTest {
 			
 	}
 
+	@Test
+	public void testExport() throws Exception {
+
+		Check check = new Check();
+		check.setCode("names = [n for n in ['site', 'date', ''] if n]\nhidden = 1\nlen(names) == 2");
+		check.setEnvironment("python");
+		check.setExport(Arrays.asList("names"));
+		
+		InputStream input = this.getClass().getResourceAsStream("/test-docs/eml.1.1.xml");
+		XMLDialect xml = new XMLDialect(input);
+		Result result = xml.runCheck(check);
+		assertEquals(result.getOutput().get(0).getValue(), Status.SUCCESS, result.getStatus());
+		
+		// only the exported variable is carried over to the other environment, as a list
+		check = new Check();
+		check.setCode("minCount(names, 2); maxCount(names, 2); maxCount(hidden, 0)");
+		check.setEnvironment("native");
+		check.setInheritState(true);
+		result = xml.runCheck(check);
+		assertEquals(result.getOutput().get(0).getValue(), Status.SUCCESS, result.getStatus());
+	}
+
+	@Test
+	public void testBatchVariables() throws Exception {
+
+		// a selector with the name of a run variable
+		Selector selector = new Selector();
+		selector.setName("tempDir");
+		selector.setXpath("//title");
+		
+		Check check = new Check();
+		check.setSelector(Arrays.asList(selector));
+		check.setCode("identical(tempDir, '/tmp/mdq-run')");
+		check.setEnvironment("r");
+		
+		InputStream input = this.getClass().getResourceAsStream("/test-docs/eml.1.1.xml");
+		XMLDialect xml = new XMLDialect(input);
+		xml.setDirectory("/tmp/mdq-run");
+		
+		// the run variable wins whether or not the check is run in a batch
+		Result result = xml.runCheck(check);
+		assertEquals("true", result.getOutput().get(0).getValue());
+		List<Result> results = xml.runBatch(Arrays.asList(check));
+		assertEquals("true", results.get(0).getOutput().get(0).getValue());
+	}
+
+	@Test
+	public void testRunAcross() throws Exception {
+
+		Selector selector = new Selector();
+		selector.setName("packageId");
+		selector.setXpath("/*/@packageId");
+		
+		Check check = new Check();
+		check.setSelector(Arrays.asList(selector));
+		check.setCode("status = (packageId != null ? 'SUCCESS' : 'FAILURE');");
+		check.setEnvironment("JavaScript");
+		
+		// only the EML documents have a packageId
+		List<XMLDialect> documents = new ArrayList<XMLDialect>();
+		documents.add(new XMLDialect(this.getClass().getResourceAsStream("/test-docs/eml.1.1.xml")));
+		documents.add(new XMLDialect(this.getClass().getResourceAsStream("/test-docs/iso19139.xml")));
+		documents.add(new XMLDialect(this.getClass().getResourceAsStream("/test-docs/eml.1.1.xml")));
+		
+		List<Result> results = XMLDialect.runAcross(check, documents);
+		assertEquals(3, results.size());
+		assertEquals(Status.SUCCESS, results.get(0).getStatus());
+		assertEquals(Status.FAILURE, results.get(1).getStatus());
+		assertEquals(Status.SUCCESS, results.get(2).getStatus());
+	}
+
+	@Test
+	public void testPersistAfterRelease() throws Exception {
+
+		Check check = new Check();
+		check.setCode("x = 1; status = 'SUCCESS';");
+		check.setEnvironment("JavaScript");
+		
+		InputStream input = this.getClass().getResourceAsStream("/test-docs/eml.1.1.xml");
+		XMLDialect xml = new XMLDialect(input);
+		Result result = xml.runCheck(check);
+		assertEquals(result.getOutput().get(0).getValue(), Status.SUCCESS, result.getStatus());
+		
+		// the dispatcher went back to the pool, so another run can lease it and change its variables
+		Dispatcher other = DispatcherPool.lease("JavaScript");
+		try {
+			other.dispatch(new HashMap<String, Object>(), "x = 2; status = 'SUCCESS';");
+			
+			// the next check still sees the variables of this run
+			check = new Check();
+			check.setCode("status = (x == 1 ? 'SUCCESS' : 'FAILURE');");
+			check.setEnvironment("JavaScript");
+			check.setInheritState(true);
+			result = xml.runCheck(check);
+			assertEquals(result.getOutput().get(0).getValue(), Status.SUCCESS, result.getStatus());
+		} finally {
+			DispatcherPool.release(other);
+		}
+	}
+
+	@Test
+	public void testPersistSelectedAfterRelease() throws Exception {
+
+		Check check = new Check();
+		check.setCode("x = 1; packageId = 'previous'; status = 'SUCCESS';");
+		check.setEnvironment("JavaScript");
+		
+		InputStream input = this.getClass().getResourceAsStream("/test-docs/eml.1.1.xml");
+		XMLDialect xml = new XMLDialect(input);
+		Result result = xml.runCheck(check);
+		assertEquals(result.getOutput().get(0).getValue(), Status.SUCCESS, result.getStatus());
+		
+		// another run takes the released dispatcher, so the next check cannot reclaim it
+		Dispatcher other = DispatcherPool.lease("JavaScript");
+		try {
+			// the next check selects a name that the previous check bound, and its own value wins
+			Selector selector = new Selector();
+			selector.setName("packageId");
+			selector.setXpath("/*/@packageId");
+			check = new Check();
+			check.setCode("status = (x == 1 && packageId != 'previous' ? 'SUCCESS' : 'FAILURE');");
+			check.setEnvironment("JavaScript");
+			check.setSelector(Arrays.asList(selector));
+			check.setInheritState(true);
+			result = xml.runCheck(check);
+			assertEquals(result.getOutput().get(0).getValue(), Status.SUCCESS, result.getStatus());
+		} finally {
+			DispatcherPool.release(other);
+		}
+	}
+
+	@Test
+	public void testSelectionCache() throws Exception {
+
+		InputStream input = this.getClass().getResourceAsStream("/test-docs/eml.1.1.xml");
+		XMLDialect xml = new XMLDialect(input);
+		
+		// the first check changes the list it was given
+		Check check = new Check();
+		check.setSelector(Arrays.asList(newSelector("names", "//attributeName")));
+		check.setCode("names.add('extra'); status = (names.size() == 12 ? 'SUCCESS' : 'FAILURE');");
+		check.setEnvironment("JavaScript");
+		Result result = xml.runCheck(check);
+		assertEquals(result.getOutput().get(0).getValue(), Status.SUCCESS, result.getStatus());
+		assertEquals(0, xml.getSelectionHits());
+		assertEquals(1, xml.getSelectionMisses());
+		
+		// the next check with the same expression, by another name, reuses the selection as it was
+		check = new Check();
+		check.setSelector(Arrays.asList(newSelector("attributes", "//attributeName")));
+		check.setCode("status = (attributes.size() == 11 ? 'SUCCESS' : 'FAILURE');");
+		check.setEnvironment("JavaScript");
+		result = xml.runCheck(check);
+		assertEquals(result.getOutput().get(0).getValue(), Status.SUCCESS, result.getStatus());
+		assertEquals(1, xml.getSelectionHits());
+		assertEquals(1, xml.getSelectionMisses());
+		
+		// merging namespaces may change what an expression selects, so it is evaluated again
+		Namespace namespace = new Namespace();
+		namespace.setPrefix("eml");
+		namespace.setUri("eml://ecoinformatics.org/eml-2.1.1");
+		xml.mergeNamespaces(Arrays.asList(namespace));
+		result = xml.runCheck(check);
+		assertEquals(result.getOutput().get(0).getValue(), Status.SUCCESS, result.getStatus());
+		assertEquals(1, xml.getSelectionHits());
+		assertEquals(2, xml.getSelectionMisses());
+	}
+	
+	private static Selector newSelector(String name, String xpath) {
+		Selector selector = new Selector();
+		selector.setName(name);
+		selector.setXpath(xpath);
+		return selector;
+	}
+
+	@Test
+	public void testDialectIndex() throws Exception {
+
+		// three checks for EML, and one for ISO that does not apply to the document
+		List<Check> checks = new ArrayList<Check>();
+		for (int i = 0; i < 3; i++) {
+			checks.add(newDialectCheck("eml", "boolean(/*[local-name() = 'eml'])"));
+		}
+		checks.add(newDialectCheck("iso", "boolean(/*[local-name() = 'MD_Metadata'])"));
+		DialectIndex index = new DialectIndex();
+		for (Check check: checks) {
+			index.add(check);
+		}
+		assertEquals(2, index.size());
+		
+		// without the index, each check evaluates its own dialect
+		XMLDialect xml = new XMLDialect(this.getClass().getResourceAsStream("/test-docs/eml.1.1.xml"));
+		List<Result> expected = xml.runChecks(checks);
+		assertEquals(4, xml.getDialectEvaluations());
+		
+		// with it, each distinct expression is evaluated once, for the same results
+		xml = new XMLDialect(this.getClass().getResourceAsStream("/test-docs/eml.1.1.xml"));
+		xml.setDialectIndex(index);
+		List<Result> results = xml.runChecks(checks);
+		assertEquals(2, xml.getDialectEvaluations());
+		assertEquals(expected.size(), results.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assertEquals(expected.get(i).getStatus(), results.get(i).getStatus());
+		}
+		assertEquals(Status.SUCCESS, results.get(0).getStatus());
+		assertEquals(Status.SKIP, results.get(3).getStatus());
+		
+		// and checks that are run one at a time reuse the outcomes
+		assertEquals(Status.SKIP, xml.runCheck(checks.get(3)).getStatus());
+		assertEquals(2, xml.getDialectEvaluations());
+	}
+	
+	private static Check newDialectCheck(String name, String xpath) {
+		Dialect dialect = new Dialect();
+		dialect.setName(name);
+		dialect.setXpath(xpath);
+		Check check = new Check();
+		check.setDialect(Arrays.asList(dialect));
+		check.setCode("status = 'SUCCESS';");
+		check.setEnvironment("JavaScript");
+		return check;
+	}
+
 	@Test
 	public void testSelectorNullIfNotFound() {
 		/* If the XPath expression provided by a selector does not match any path in the document, the `name` of the
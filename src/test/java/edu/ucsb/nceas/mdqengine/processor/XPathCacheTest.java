@@ -0,0 +1,86 @@
+package edu.ucsb.nceas.mdqengine.processor;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class XPathCacheTest {
+
+	@Test
+	public void testReuse() throws Exception {
+		XPathCache cache = new XPathCache();
+		XPathExpression title = cache.getExpression("//dataset/title");
+		assertSame(title, cache.getExpression("//dataset/title"));
+
+		// bindings for prefixes that the expression does not use are not part of the key
+		Map<String, String> bindings = new HashMap<String, String>();
+		bindings.put("eml", "eml://ecoinformatics.org/eml-2.1.1");
+		assertSame(title, cache.getExpression("//dataset/title", bindings));
+		assertEquals(1, cache.size());
+
+		XPathExpression prefixed = cache.getExpression("/eml:eml/dataset/title", bindings);
+		assertSame(prefixed, cache.getExpression("/eml:eml/dataset/title", bindings));
+		bindings.put("eml", "eml://ecoinformatics.org/eml-2.1.0");
+		assertNotSame(prefixed, cache.getExpression("/eml:eml/dataset/title", bindings));
+		assertEquals(3, cache.size());
+	}
+
+	@Test
+	public void testEvaluate() throws Exception {
+		DocumentModel model = new DocumentModel(this.getClass().getResourceAsStream("/test-docs/eml.1.1.xml"));
+		Document document = model.getNamespaceAwareDocument();
+		XPathCache cache = new XPathCache();
+
+		Map<String, String> bindings = new HashMap<String, String>();
+		bindings.put("eml", "eml://ecoinformatics.org/eml-2.1.1");
+		XPathExpression xpath = cache.getExpression("/eml:eml/dataset/title", bindings);
+		assertEquals(xpath.evaluate(document), cache.getExpression("//*[local-name() = 'title']").evaluate(document));
+		assertEquals("1", cache.getExpression("count(/eml:eml)", bindings).evaluate(document));
+
+		try {
+			cache.getExpression("/eml:eml/dataset/title[");
+			fail("Invalid expression should not compile");
+		} catch (XPathExpressionException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testThreads() throws Exception {
+		final XPathCache cache = new XPathCache();
+		final XPathExpression expression = cache.getExpression("//dataset/title");
+		final Document document = new DocumentModel(this.getClass().getResourceAsStream("/test-docs/eml.1.1.xml")).getDocument();
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<XPathExpression> other = executor.submit(() -> {
+				XPathExpression compiled = cache.getExpression("//dataset/title");
+				compiled.evaluate(document, XPathConstants.NODESET);
+				return compiled;
+			});
+			// each thread gets its own compiled copy
+			assertNotSame(expression, other.get());
+			assertEquals(1, cache.size());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testScalar() {
+		XPathCache cache = new XPathCache();
+		assertFalse(cache.isScalar("count(//dataset)"));
+		cache.setScalar("count(//dataset)");
+		assertTrue(cache.isScalar("count(//dataset)"));
+	}
+
+}
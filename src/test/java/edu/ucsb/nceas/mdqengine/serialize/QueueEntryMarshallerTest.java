@@ -0,0 +1,152 @@
+package edu.ucsb.nceas.mdqengine.serialize;
+
+import edu.ucsb.nceas.mdqengine.QueueEntry;
+import edu.ucsb.nceas.mdqengine.exception.MetadigException;
+import edu.ucsb.nceas.mdqengine.exception.MetadigProcessException;
+import edu.ucsb.nceas.mdqengine.scorer.ScorerQueueEntry;
+import org.joda.time.DateTime;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class QueueEntryMarshallerTest {
+
+	@After
+	public void resetFormat() {
+		QueueEntryMarshaller.setLegacyFormat(false);
+	}
+
+	@Test
+	public void testQueueEntry() throws Exception {
+		StringBuilder doc = new StringBuilder("<eml>");
+		for (int i = 0; i < 1000; i++) {
+			doc.append("<title>A title that repeats</title>");
+		}
+		String metadataDoc = doc.append("</eml>").toString();
+		DateTime requested = new DateTime();
+		QueueEntry entry = new QueueEntry("urn:node:KNB", "doi:10.5063/AA/tao.1.1", metadataDoc, "suite.1.1", null,
+				requested, null, "<run/>", null);
+		entry.setProcessingElapsedTimeSeconds(12);
+		entry.setHostname("worker-1");
+		MetadigException failure = new MetadigProcessException("Unable to run quality suite.");
+		failure.initCause(new IllegalStateException("no such check"));
+		entry.setException(failure);
+
+		byte[] bytes = QueueEntryMarshaller.toBytes(entry);
+		// the repeated document is compressed
+		assertTrue(bytes.length < metadataDoc.length() / 10);
+
+		QueueEntry read = QueueEntryMarshaller.queueEntryFromBytes(bytes);
+		assertEquals("urn:node:KNB", read.getMemberNode());
+		assertEquals("doi:10.5063/AA/tao.1.1", read.getMetadataPid());
+		assertEquals(metadataDoc, read.getMetadataDoc());
+		assertEquals("suite.1.1", read.getQualitySuiteId());
+		assertNull(read.getLocalFilePath());
+		assertEquals(requested, read.getRequestDataTime());
+		assertNull(read.getSystemMetadata());
+		assertEquals("<run/>", read.getRunXML());
+		assertEquals(12, read.getProcessingElapsedTimeSeconds());
+		assertEquals("worker-1", read.getHostname());
+		assertTrue(read.getException() instanceof MetadigProcessException);
+		assertEquals("Unable to run quality suite.", read.getException().getMessage());
+		assertEquals("no such check", read.getException().getCause().getMessage());
+	}
+
+	@Test
+	public void testScorerQueueEntry() throws Exception {
+		ScorerQueueEntry entry = new ScorerQueueEntry("urn:uuid:1234", "suite.1.1", "urn:node:KNB", "eml", new DateTime());
+		entry.setProcessingElapsedTimeSeconds(3);
+
+		ScorerQueueEntry read = QueueEntryMarshaller.scorerQueueEntryFromBytes(QueueEntryMarshaller.toBytes(entry));
+		assertEquals("urn:uuid:1234", read.getCollectionId());
+		assertEquals("suite.1.1", read.getQualitySuiteId());
+		assertEquals("urn:node:KNB", read.getNodeId());
+		assertEquals("eml", read.getFormatFamily());
+		assertEquals(entry.getRequestDataTime(), read.getRequestDataTime());
+		assertEquals(3, read.getProcessingElapsedTimeSeconds());
+		assertNull(read.getException());
+	}
+
+	@Test
+	public void testLegacyFormat() throws Exception {
+		QueueEntry entry = new QueueEntry("urn:node:KNB", "pid", "<eml/>", "suite.1.1", null, null, null, null, null);
+
+		// a message queued before the binary format existed
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bos);
+		out.writeObject(entry);
+		out.close();
+		assertEquals("<eml/>", QueueEntryMarshaller.queueEntryFromBytes(bos.toByteArray()).getMetadataDoc());
+
+		QueueEntryMarshaller.setLegacyFormat(true);
+		byte[] bytes = QueueEntryMarshaller.toBytes(entry);
+		assertEquals(0xAC, bytes[0] & 0xFF);
+		assertEquals("pid", QueueEntryMarshaller.queueEntryFromBytes(bytes).getMetadataPid());
+	}
+
+	@Test(expected = IOException.class)
+	public void testWrongKind() throws Exception {
+		ScorerQueueEntry entry = new ScorerQueueEntry("urn:uuid:1234", "suite.1.1", null, null, null);
+		QueueEntryMarshaller.queueEntryFromBytes(QueueEntryMarshaller.toBytes(entry));
+	}
+
+	@Test
+	public void testExceptionClassNotInitialized() throws Exception {
+		QueueEntry entry = new QueueEntry("urn:node:KNB", "doi:10.5063/AA/tao.1.1", null, "suite.1.1", null,
+				new DateTime(), null, null, null);
+		entry.setException(new ProbeAException("failed"));
+		byte[] bytes = QueueEntryMarshaller.toBytes(entry);
+
+		// a message that names another class, which is not a MetadigException
+		byte[] name = ProbeAException.class.getName().getBytes(StandardCharsets.UTF_8);
+		byte[] other = ProbeBException.class.getName().getBytes(StandardCharsets.UTF_8);
+		int at = indexOf(bytes, name);
+		assertTrue(at >= 0);
+		System.arraycopy(other, 0, bytes, at, other.length);
+
+		QueueEntry read = QueueEntryMarshaller.queueEntryFromBytes(bytes);
+		assertEquals(Exception.class, read.getException().getClass());
+		assertTrue(read.getException().getMessage().startsWith(ProbeBException.class.getName()));
+		assertFalse(probeInitialized);
+	}
+
+	private static int indexOf(byte[] bytes, byte[] part) {
+		for (int i = 0; i + part.length <= bytes.length; i++) {
+			boolean found = true;
+			for (int j = 0; j < part.length && found; j++) {
+				found = bytes[i + j] == part[j];
+			}
+			if (found) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	public static class ProbeAException extends Exception {
+		public ProbeAException(String message) {
+			super(message);
+		}
+	}
+
+	// set when ProbeBException is initialized, which reading the message must not do
+	private static volatile boolean probeInitialized = false;
+
+	// the same length of name as ProbeAException
+	public static class ProbeBException extends Exception {
+		static {
+			probeInitialized = true;
+		}
+
+		public ProbeBException(String message) {
+			super(message);
+		}
+	}
+
+}
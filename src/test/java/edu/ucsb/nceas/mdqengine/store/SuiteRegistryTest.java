@@ -0,0 +1,76 @@
+package edu.ucsb.nceas.mdqengine.store;
+
+import edu.ucsb.nceas.mdqengine.model.Check;
+import edu.ucsb.nceas.mdqengine.model.Suite;
+import edu.ucsb.nceas.mdqengine.model.SuiteFactory;
+import edu.ucsb.nceas.mdqengine.serialize.XmlMarshaller;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+public class SuiteRegistryTest {
+
+	private File directory;
+
+	@Before
+	public void createDirectory() throws Exception {
+		directory = Files.createTempDirectory("mdq-registry").toFile();
+		new File(directory, "suites").mkdir();
+		new File(directory, "checks").mkdir();
+	}
+
+	@After
+	public void deleteDirectory() throws Exception {
+		FileUtils.deleteDirectory(directory);
+	}
+
+	@Test
+	public void testReload() throws Exception {
+		Suite suite = SuiteFactory.getMockSuite();
+		write("suites/suite.xml", suite);
+		Check check = suite.getCheck().get(0);
+		write("checks/check.xml", check);
+
+		SuiteRegistry registry = new SuiteRegistry(directory.getAbsolutePath());
+		SuiteRegistry.Snapshot first = registry.getSnapshot();
+		assertNotNull(first.getSuite(suite.getId()));
+		assertEquals(check.getName(), first.getCheck(check.getId()).getName());
+
+		// only the changed check is loaded again
+		check.setName("changedName");
+		write("checks/check.xml", check);
+		SuiteRegistry.Snapshot second = registry.reload();
+		assertNotSame(first, second);
+		assertSame(first.getSuite(suite.getId()), second.getSuite(suite.getId()));
+		assertEquals("changedName", second.getCheck(check.getId()).getName());
+		assertEquals(check.getName(), registry.getSnapshot().getCheck(check.getId()).getName());
+
+		// the previous snapshot is not changed
+		assertEquals("titleLength", first.getCheck(check.getId()).getName());
+
+		new File(directory, "suites/suite.xml").delete();
+		assertNull(registry.reload().getSuite(suite.getId()));
+
+		// a store starts with the suites and checks of the snapshot
+		InMemoryStore store = new InMemoryStore(registry.getSnapshot());
+		assertNotNull(store.getCheck(check.getId()));
+		registry.close();
+	}
+
+	private void write(String path, Object value) throws Exception {
+		File file = new File(directory, path);
+		long modified = file.exists() ? file.lastModified() : 0;
+		FileUtils.writeStringToFile(file, XmlMarshaller.toXml(value, false), "UTF-8");
+		// some file systems only keep the modification time to the second
+		if (file.lastModified() == modified) {
+			file.setLastModified(modified + 1000);
+		}
+	}
+
+}